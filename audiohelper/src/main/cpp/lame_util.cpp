@@ -5,46 +5,58 @@ extern "C" {
 #include "lame.h"
 }
 
-static lame_global_flags *lame = nullptr;
+static inline lame_global_flags *to_lame(jlong handle) {
+    return reinterpret_cast<lame_global_flags *>(handle);
+}
 
 extern "C"
-JNIEXPORT void JNICALL
-Java_net_arvin_audiohelper_AudioRecorder_init(JNIEnv *env, jclass clazz, jint in_samplerate,
-                                              jint in_channel, jint out_samplerate,
-                                              jint out_bitrate, jint quality) {
-    if (lame != nullptr) {
-        lame_close(lame);
-        lame = nullptr;
+JNIEXPORT jlong JNICALL
+Java_net_arvin_audiohelper_LameEncoder_nativeInit(JNIEnv *env, jclass clazz, jint in_samplerate,
+                                                  jint in_channel, jint out_samplerate,
+                                                  jint out_bitrate, jint quality) {
+    lame_global_flags *lame = lame_init();
+    if (lame == nullptr) {
+        return 0;
     }
 
-    lame = lame_init();
-
     lame_set_in_samplerate(lame, in_samplerate);
     lame_set_num_channels(lame, in_channel);
     lame_set_out_samplerate(lame, out_samplerate);
     lame_set_brate(lame, out_bitrate);
     lame_set_quality(lame, quality);
-    lame_init_params(lame);
+    // 低码率CBR时lame自带的标签帧放不下，由Java层统一写入Info/Xing帧
+    lame_set_bWriteVbrTag(lame, 0);
+    if (lame_init_params(lame) < 0) {
+        lame_close(lame);
+        return 0;
+    }
+    return reinterpret_cast<jlong>(lame);
 }
 
 extern "C"
 JNIEXPORT jint JNICALL
-Java_net_arvin_audiohelper_AudioRecorder_encode(JNIEnv *env, jclass clazz, jshortArray buffer_left,
-                                                jshortArray buffer_right, jint samples,
-                                                jbyteArray mp3buf) {
+Java_net_arvin_audiohelper_LameEncoder_nativeEncode(JNIEnv *env, jclass clazz, jlong handle,
+                                                    jshortArray buffer_left,
+                                                    jshortArray buffer_right, jint samples,
+                                                    jbyteArray mp3buf) {
     jshort *j_buffer_l = env->GetShortArrayElements(buffer_left, nullptr);
 
-    jshort *j_buffer_r = env->GetShortArrayElements(buffer_right, nullptr);
+    // 单声道时lame不会访问右声道，允许传null
+    jshort *j_buffer_r = buffer_right != nullptr
+                         ? env->GetShortArrayElements(buffer_right, nullptr) : nullptr;
 
     const jsize mp3buf_size = env->GetArrayLength(mp3buf);
     jbyte *j_mp3buf = env->GetByteArrayElements(mp3buf, nullptr);
 
-    int result = lame_encode_buffer(lame, j_buffer_l, j_buffer_r,
+    int result = lame_encode_buffer(to_lame(handle), j_buffer_l, j_buffer_r,
                                     samples, reinterpret_cast<unsigned char *>(j_mp3buf),
                                     mp3buf_size);
 
-    env->ReleaseShortArrayElements(buffer_left, j_buffer_l, 0);
-    env->ReleaseShortArrayElements(buffer_right, j_buffer_r, 0);
+    // 输入只读，不需要拷回
+    env->ReleaseShortArrayElements(buffer_left, j_buffer_l, JNI_ABORT);
+    if (j_buffer_r != nullptr) {
+        env->ReleaseShortArrayElements(buffer_right, j_buffer_r, JNI_ABORT);
+    }
     env->ReleaseByteArrayElements(mp3buf, j_mp3buf, 0);
 
     return result;
@@ -52,20 +64,86 @@ Java_net_arvin_audiohelper_AudioRecorder_encode(JNIEnv *env, jclass clazz, jshor
 
 extern "C"
 JNIEXPORT jint JNICALL
-Java_net_arvin_audiohelper_AudioRecorder_flush(JNIEnv *env, jclass clazz, jbyteArray mp3buf) {
+Java_net_arvin_audiohelper_LameEncoder_nativeEncodeInterleaved(JNIEnv *env, jclass clazz,
+                                                               jlong handle, jshortArray pcm,
+                                                               jint frames, jbyteArray mp3buf) {
+    lame_global_flags *lame = to_lame(handle);
+    jshort *j_pcm = env->GetShortArrayElements(pcm, nullptr);
+
     const jsize mp3buf_size = env->GetArrayLength(mp3buf);
     jbyte *j_mp3buf = env->GetByteArrayElements(mp3buf, nullptr);
 
-    int result = lame_encode_flush(lame, reinterpret_cast<unsigned char *>(j_mp3buf), mp3buf_size);
+    int result;
+    if (lame_get_num_channels(lame) == 1) {
+        // 单声道交错数据就是左声道本身
+        result = lame_encode_buffer(lame, j_pcm, nullptr, frames,
+                                    reinterpret_cast<unsigned char *>(j_mp3buf), mp3buf_size);
+    } else {
+        result = lame_encode_buffer_interleaved(lame, j_pcm, frames,
+                                                reinterpret_cast<unsigned char *>(j_mp3buf),
+                                                mp3buf_size);
+    }
 
+    env->ReleaseShortArrayElements(pcm, j_pcm, JNI_ABORT);
     env->ReleaseByteArrayElements(mp3buf, j_mp3buf, 0);
 
     return result;
 }
 
+extern "C"
+JNIEXPORT jint JNICALL
+Java_net_arvin_audiohelper_LameEncoder_nativeEncodeDirect(JNIEnv *env, jclass clazz, jlong handle,
+                                                          jobject pcm, jint pcm_offset,
+                                                          jint frames, jobject mp3buf,
+                                                          jint mp3buf_offset, jint mp3buf_size) {
+    // direct buffer直接按地址访问，不需要pin或拷贝
+    auto *j_pcm = static_cast<jbyte *>(env->GetDirectBufferAddress(pcm));
+    auto *j_mp3buf = static_cast<jbyte *>(env->GetDirectBufferAddress(mp3buf));
+    if (j_pcm == nullptr || j_mp3buf == nullptr) {
+        return -1;
+    }
+    auto *samples = reinterpret_cast<short *>(j_pcm + pcm_offset);
+    auto *out = reinterpret_cast<unsigned char *>(j_mp3buf + mp3buf_offset);
+
+    lame_global_flags *lame = to_lame(handle);
+    if (lame_get_num_channels(lame) == 1) {
+        return lame_encode_buffer(lame, samples, nullptr, frames, out, mp3buf_size);
+    }
+    return lame_encode_buffer_interleaved(lame, samples, frames, out, mp3buf_size);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_net_arvin_audiohelper_LameEncoder_nativeFlush(JNIEnv *env, jclass clazz, jlong handle,
+                                                   jbyteArray mp3buf) {
+    const jsize mp3buf_size = env->GetArrayLength(mp3buf);
+    jbyte *j_mp3buf = env->GetByteArrayElements(mp3buf, nullptr);
+
+    int result = lame_encode_flush(to_lame(handle), reinterpret_cast<unsigned char *>(j_mp3buf),
+                                   mp3buf_size);
+
+    env->ReleaseByteArrayElements(mp3buf, j_mp3buf, 0);
+
+    return result;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_net_arvin_audiohelper_LameEncoder_nativeGetEncoderDelay(JNIEnv *env, jclass clazz,
+                                                             jlong handle) {
+    return lame_get_encoder_delay(to_lame(handle));
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_net_arvin_audiohelper_LameEncoder_nativeGetEncoderPadding(JNIEnv *env, jclass clazz,
+                                                               jlong handle) {
+    // flush之后才是最终值
+    return lame_get_encoder_padding(to_lame(handle));
+}
+
 extern "C"
 JNIEXPORT void JNICALL
-Java_net_arvin_audiohelper_AudioRecorder_close(JNIEnv *env, jclass clazz) {
-    lame_close(lame);
-    lame = nullptr;
+Java_net_arvin_audiohelper_LameEncoder_nativeClose(JNIEnv *env, jclass clazz, jlong handle) {
+    lame_close(to_lame(handle));
 }
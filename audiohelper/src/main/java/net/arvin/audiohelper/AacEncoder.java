@@ -0,0 +1,348 @@
+package net.arvin.audiohelper;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * 基于MediaCodec的AAC编码器，大部分设备上由硬件完成编码，比软件lame省电
+ * <p>
+ * 输出为带ADTS头的AAC裸流（.aac），每一帧都可以单独解码，方便边录边写和按帧切分。
+ */
+public class AacEncoder implements Encoder {
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public Encoder create() {
+            return new AacEncoder();
+        }
+    };
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int SAMPLES_PER_FRAME = 1024;
+    /**
+     * AAC规定每个声道每帧最多6144bit
+     */
+    private static final int MAX_FRAME_BYTES_PER_CHANNEL = 768;
+    private static final long TIMEOUT_US = 10000;
+    /**
+     * flush时送入结束标记和等待结束标记输出的总时长，编码器异常时超时放弃，不会卡住编码线程
+     */
+    private static final long EOS_TIMEOUT_US = 500000;
+    /**
+     * 一次encode等待输入缓冲的总时长，编码器一直不腾出输入缓冲时放弃剩下的输入，不会卡住编码线程；
+     * 已经送入或取出了一部分时返回已取出的字节数，一点都没送入时返回错误
+     */
+    private static final long ENCODE_TIMEOUT_US = 500000;
+
+    private static final int[] SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000,
+            24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    private MediaCodec codec;
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+    private MediaCodec.BufferInfo bufferInfo;
+    private int sampleRate;
+    private int channelCount;
+    private int sampleRateIndex;
+    private long inputFrames;
+    private long eosDeadlineNanos;
+    private final byte[] adtsHeader = new byte[ADTS_HEADER_SIZE];
+
+    /**
+     * @throws IllegalArgumentException sampleRate不是ADTS头能表示的采样率
+     * @throws IllegalStateException    设备上没有可用的AAC编码器或配置失败，此时已释放编码器
+     */
+    @Override
+    public void init(int sampleRate, int channelCount, int bitRate, int quality) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.sampleRateIndex = getSampleRateIndex(sampleRate);
+        inputFrames = 0;
+        bufferInfo = new MediaCodec.BufferInfo();
+        try {
+            MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channelCount);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate * 1000);
+            codec = MediaCodec.createEncoderByType(MIME_TYPE);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+            inputBuffers = codec.getInputBuffers();
+            outputBuffers = codec.getOutputBuffers();
+        } catch (Exception e) {
+            close();
+            // 不能吞掉，否则prepare成功而之后每次encode都返回-1，录音得到一个空文件
+            throw new IllegalStateException("failed to start AAC encoder", e);
+        }
+    }
+
+    @Override
+    public int encode(short[] bufferLeft, short[] bufferRight, int samples, byte[] out) {
+        if (codec == null) {
+            return -1;
+        }
+        long deadlineNanos = System.nanoTime() + ENCODE_TIMEOUT_US * 1000;
+        int written = 0;
+        int offset = 0;
+        while (offset < samples) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0 && System.nanoTime() >= deadlineNanos) {
+                return offset > 0 || written > 0 ? written : -1;
+            }
+            if (index >= 0) {
+                ByteBuffer inputBuffer = inputBuffers[index];
+                inputBuffer.clear();
+                ShortBuffer shorts = inputBuffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+                int count = Math.min(samples - offset, shorts.remaining() / channelCount);
+                if (channelCount == 1) {
+                    shorts.put(bufferLeft, offset, count);
+                } else {
+                    for (int i = offset; i < offset + count; i++) {
+                        shorts.put(bufferLeft[i]);
+                        shorts.put(bufferRight[i]);
+                    }
+                }
+                queueInput(index, count);
+                offset += count;
+            }
+            written += drain(out, written, false);
+        }
+        return written;
+    }
+
+    @Override
+    public int encodeInterleaved(short[] pcm, int frames, byte[] out) {
+        if (codec == null) {
+            return -1;
+        }
+        long deadlineNanos = System.nanoTime() + ENCODE_TIMEOUT_US * 1000;
+        int written = 0;
+        int samples = frames * channelCount;
+        int offset = 0;
+        while (offset < samples) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0 && System.nanoTime() >= deadlineNanos) {
+                return offset > 0 || written > 0 ? written : -1;
+            }
+            if (index >= 0) {
+                ByteBuffer inputBuffer = inputBuffers[index];
+                inputBuffer.clear();
+                ShortBuffer shorts = inputBuffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+                // 保证每次送入的都是完整的帧
+                int count = Math.min(samples - offset, shorts.remaining() / channelCount * channelCount);
+                shorts.put(pcm, offset, count);
+                queueInput(index, count / channelCount);
+                offset += count;
+            }
+            written += drain(out, written, false);
+        }
+        return written;
+    }
+
+    @Override
+    public int encode(ByteBuffer pcm, int frames, ByteBuffer out) {
+        if (codec == null) {
+            return -1;
+        }
+        int pcmStart = pcm.position();
+        int pcmLimit = pcm.limit();
+        int outStart = out.position();
+        int frameBytes = channelCount * 2;
+        int remaining = frames * frameBytes;
+        long deadlineNanos = System.nanoTime() + ENCODE_TIMEOUT_US * 1000;
+        while (remaining > 0) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0 && System.nanoTime() >= deadlineNanos) {
+                if (remaining < frames * frameBytes || out.position() > outStart) {
+                    break;
+                }
+                pcm.position(pcmStart);
+                return -1;
+            }
+            if (index >= 0) {
+                ByteBuffer inputBuffer = inputBuffers[index];
+                inputBuffer.clear();
+                int count = Math.min(remaining, inputBuffer.remaining() / frameBytes * frameBytes);
+                pcm.limit(pcm.position() + count);
+                inputBuffer.put(pcm);
+                pcm.limit(pcmLimit);
+                queueInput(index, count / frameBytes);
+                remaining -= count;
+            }
+            drain(out, false);
+        }
+        pcm.position(pcmStart);
+        int written = out.position() - outStart;
+        out.position(outStart);
+        return written;
+    }
+
+    private void queueInput(int index, int frames) {
+        long presentationTimeUs = inputFrames * 1000000L / sampleRate;
+        codec.queueInputBuffer(index, 0, frames * channelCount * 2, presentationTimeUs, 0);
+        inputFrames += frames;
+    }
+
+    @Override
+    public int flush(byte[] out) {
+        if (codec == null) {
+            return 0;
+        }
+        eosDeadlineNanos = System.nanoTime() + EOS_TIMEOUT_US * 1000;
+        int written = 0;
+        boolean eosQueued = false;
+        while (!eosQueued && System.nanoTime() < eosDeadlineNanos) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index >= 0) {
+                long presentationTimeUs = inputFrames * 1000000L / sampleRate;
+                codec.queueInputBuffer(index, 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                eosQueued = true;
+            } else {
+                // 输入缓冲都被占着，先取走输出让编码器腾出输入缓冲再重试
+                written += drain(out, written, false);
+            }
+        }
+        return written + drain(out, written, eosQueued);
+    }
+
+    /**
+     * 取出已编码好的帧，加上ADTS头写入out
+     *
+     * @param endOfStream 为true时一直等待直到收到结束标记，最多等到flush设置的超时时间
+     */
+    private int drain(byte[] out, int offset, boolean endOfStream) {
+        int start = offset;
+        int maxFrameSize = ADTS_HEADER_SIZE + MAX_FRAME_BYTES_PER_CHANNEL * channelCount;
+        while (out.length - offset >= maxFrameSize) {
+            int index = dequeueOutput(endOfStream);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            }
+            if (index < 0) {
+                continue;
+            }
+            if (bufferInfo.size > 0) {
+                ByteBuffer outputBuffer = outputBuffers[index];
+                outputBuffer.position(bufferInfo.offset);
+                outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                writeAdtsHeader(out, offset, bufferInfo.size + ADTS_HEADER_SIZE);
+                outputBuffer.get(out, offset + ADTS_HEADER_SIZE, bufferInfo.size);
+                offset += bufferInfo.size + ADTS_HEADER_SIZE;
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                break;
+            }
+        }
+        return offset - start;
+    }
+
+    /**
+     * 同{@link #drain(byte[], int, boolean)}，写入out的position处，position随之前移
+     */
+    private void drain(ByteBuffer out, boolean endOfStream) {
+        int maxFrameSize = ADTS_HEADER_SIZE + MAX_FRAME_BYTES_PER_CHANNEL * channelCount;
+        while (out.remaining() >= maxFrameSize) {
+            int index = dequeueOutput(endOfStream);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            }
+            if (index < 0) {
+                continue;
+            }
+            if (bufferInfo.size > 0) {
+                ByteBuffer outputBuffer = outputBuffers[index];
+                outputBuffer.position(bufferInfo.offset);
+                outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                writeAdtsHeader(adtsHeader, 0, bufferInfo.size + ADTS_HEADER_SIZE);
+                out.put(adtsHeader);
+                out.put(outputBuffer);
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 可用的输出缓冲下标；没有数据时返回INFO_TRY_AGAIN_LATER；
+     * 其余负数表示状态变化或配置数据，调用方应继续取
+     */
+    private int dequeueOutput(boolean endOfStream) {
+        int index = codec.dequeueOutputBuffer(bufferInfo, endOfStream ? TIMEOUT_US : 0);
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            outputBuffers = codec.getOutputBuffers();
+            return index;
+        }
+        if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            // 结束时需要等到结束标记，超时后按没有数据返回
+            return endOfStream && System.nanoTime() < eosDeadlineNanos
+                    ? MediaCodec.INFO_OUTPUT_FORMAT_CHANGED : index;
+        }
+        if (index >= 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // ADTS头中已包含解码配置，不需要单独输出
+            codec.releaseOutputBuffer(index, false);
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        return index;
+    }
+
+    private void writeAdtsHeader(byte[] out, int offset, int frameLength) {
+        int profile = 2;// AAC LC
+        out[offset] = (byte) 0xFF;
+        out[offset + 1] = (byte) 0xF1;
+        out[offset + 2] = (byte) (((profile - 1) << 6) + (sampleRateIndex << 2) + (channelCount >> 2));
+        out[offset + 3] = (byte) (((channelCount & 3) << 6) + (frameLength >> 11));
+        out[offset + 4] = (byte) ((frameLength & 0x7FF) >> 3);
+        out[offset + 5] = (byte) (((frameLength & 7) << 5) + 0x1F);
+        out[offset + 6] = (byte) 0xFC;
+    }
+
+    private static int getSampleRateIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        // 写入不匹配的采样率下标会让播放器按错误的速度解码
+        throw new IllegalArgumentException("unsupported AAC sample rate: " + sampleRate);
+    }
+
+    @Override
+    public int getHeader(byte[] out) {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            codec.release();
+            codec = null;
+        }
+        inputBuffers = null;
+        outputBuffers = null;
+    }
+
+    @Override
+    public int getOutputBufferSize(int samples) {
+        // 编码器内部可能还缓存着几帧，多预留一些
+        int frames = samples / SAMPLES_PER_FRAME + 4;
+        return frames * (ADTS_HEADER_SIZE + MAX_FRAME_BYTES_PER_CHANNEL * 2);
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "aac";
+    }
+}
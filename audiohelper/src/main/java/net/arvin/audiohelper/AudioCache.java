@@ -0,0 +1,856 @@
+package net.arvin.audiohelper;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 远程音频的本地磁盘缓存
+ * <p>
+ * 已经完整缓存的url直接返回本地文件路径；没有缓存的url返回本机代理地址，MediaPlayer通过代理播放，
+ * 代理一边从源地址下载写入缓存文件，一边把已下载的部分返回给播放器，下载完成后该url即被缓存。
+ * 代理支持Range请求，seek到已下载或即将下载到的位置时从缓存文件读取，距离太远时直接转发到源地址。
+ * <p>
+ * 代理地址中带有每个实例随机生成的token，并且只处理通过{@link #getProxyUrl(String)}取得过代理地址的url，
+ * 本机其它应用不能把代理当作开放的HTTP代理，借用本应用的网络身份下载任意地址或塞满缓存目录。
+ * <p>
+ * 缓存总大小超过maxBytes时按最近使用顺序删除最旧的文件，上次没有下载完的临时文件也计入并参与淘汰。
+ * 一个应用中建议只创建一个实例。
+ */
+public class AudioCache implements Closeable {
+    private static final String CACHE_DIR = "/audioHelper/audio/";
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final String DOWNLOAD_SUFFIX = ".download";
+
+    private static final int SERVE_THREADS = 6;
+    private static final int DOWNLOAD_THREADS = 3;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int TIMEOUT_MILLIS = 15000;
+    /**
+     * seek的位置超过已下载位置这么多字节时不再等待下载，直接转发到源地址
+     */
+    private static final long BYPASS_DISTANCE = 512 * 1024;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    /**
+     * 416时起止位置为"*"，只有总长度
+     */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (?:\\d+-\\d+|\\*)/(\\d+)");
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    public interface CacheListener {
+        /**
+         * 在下载线程中回调
+         *
+         * @param percent 已缓存的百分比，0~100
+         */
+        void onCacheProgress(String url, int percent);
+    }
+
+    private final File cacheDir;
+    private final long maxBytes;
+    /**
+     * 代理地址路径的第一段，不匹配的请求直接返回403
+     */
+    private final String token = newToken();
+    /**
+     * 取得过代理地址的url，代理只为这些url下载和转发
+     */
+    private final Set<String> proxiedUrls = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * 缓存文件名到大小，包括没有在下载的临时文件，accessOrder为true，遍历顺序即从最久没有使用到最近使用
+     */
+    private final LinkedHashMap<String, Long> cachedFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    /**
+     * 正在下载的url
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final List<CacheListener> listeners = new CopyOnWriteArrayList<>();
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private ThreadPoolExecutor serveExecutor;
+    private ThreadPoolExecutor downloadExecutor;
+
+    private volatile int hitCount;
+    private volatile int missCount;
+    // 多个请求线程和下载线程同时累加
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    public AudioCache(Context context) {
+        this(new File(context.getCacheDir().getPath() + CACHE_DIR), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes 缓存目录的最大字节数，不包括正在下载的文件，包括上次中断留下的临时文件
+     */
+    public AudioCache(File cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        loadCachedFiles();
+    }
+
+    private void loadCachedFiles() {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : files) {
+                // 临时文件也计入，否则中断的下载会一直占着空间
+                if (file.isFile()) {
+                    cachedFiles.put(file.getName(), file.length());
+                    cachedBytes += file.length();
+                }
+            }
+            trimToSize();
+        }
+    }
+
+    public void addCacheListener(CacheListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeCacheListener(CacheListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return 已完整缓存时返回本地文件路径，否则返回本机代理地址；代理无法启动时返回原url
+     */
+    public String getProxyUrl(String url) {
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            return url;
+        }
+        File file = getCachedFile(url);
+        if (file != null) {
+            hitCount++;
+            bytesSaved.addAndGet(file.length());
+            return file.getPath();
+        }
+        missCount++;
+        try {
+            int port = startServer();
+            proxiedUrls.add(url);
+            return "http://127.0.0.1:" + port + "/" + token + "/" + URLEncoder.encode(url, "UTF-8");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return url;
+        }
+    }
+
+    public boolean isCached(String url) {
+        synchronized (this) {
+            return cachedFiles.containsKey(getCacheName(url));
+        }
+    }
+
+    /**
+     * @return 已完整缓存的文件，同时更新为最近使用
+     */
+    private File getCachedFile(String url) {
+        String name = getCacheName(url);
+        synchronized (this) {
+            if (cachedFiles.get(name) == null) {
+                return null;
+            }
+        }
+        File file = new File(cacheDir, name);
+        if (!file.exists()) {
+            synchronized (this) {
+                Long size = cachedFiles.remove(name);
+                if (size != null) {
+                    cachedBytes -= size;
+                }
+            }
+            return null;
+        }
+        // 重启后按修改时间恢复使用顺序
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    private synchronized int startServer() throws IOException {
+        if (serverSocket != null) {
+            return serverSocket.getLocalPort();
+        }
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        serveExecutor = newExecutor(SERVE_THREADS);
+        downloadExecutor = newExecutor(DOWNLOAD_THREADS);
+        final ServerSocket server = serverSocket;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket socket = server.accept();
+                        try {
+                            serveExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(socket);
+                                }
+                            });
+                        } catch (RejectedExecutionException e) {
+                            // close()已经关闭了线程池，断开连接，播放器不会一直等待回复
+                            socket.close();
+                        }
+                    } catch (Exception e) {
+                        if (!server.isClosed()) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }, "AudioCacheProxy");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 关闭代理，正在进行的下载和播放会中断，已缓存的文件保留
+     */
+    @Override
+    public synchronized void close() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        serverSocket = null;
+        serveExecutor.shutdownNow();
+        downloadExecutor.shutdownNow();
+        // 下载和播放线程还在修改entries，先在锁内取出
+        List<Entry> closing;
+        synchronized (entries) {
+            closing = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        for (Entry entry : closing) {
+            entry.fail();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2 || parts[1].length() < 2) {
+                return;
+            }
+            long rangeStart = -1;
+            long rangeEnd = -1;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    Matcher matcher = RANGE_PATTERN.matcher(line.substring(colon + 1).trim());
+                    if (matcher.matches() && matcher.group(1).length() > 0) {
+                        rangeStart = Long.parseLong(matcher.group(1));
+                        if (matcher.group(2).length() > 0) {
+                            rangeEnd = Long.parseLong(matcher.group(2));
+                        }
+                    }
+                }
+            }
+            // 读完请求头再回复，否则关闭时还没读的数据会让对方收到RST而不是403
+            String url = getRequestUrl(parts[1]);
+            if (url == null) {
+                socket.getOutputStream().write(("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("UTF-8"));
+                return;
+            }
+            boolean head = "HEAD".equals(parts[0]);
+            serve(url, rangeStart, rangeEnd, head, socket.getOutputStream());
+        } catch (Exception e) {
+            // 播放器seek或release时会直接断开连接
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param path 请求路径，即"/token/编码后的url"
+     * @return token不对或url没有通过getProxyUrl登记过时返回null
+     */
+    private String getRequestUrl(String path) throws IOException {
+        int slash = path.indexOf('/', 1);
+        if (slash < 0 || !MessageDigest.isEqual(token.getBytes("UTF-8"),
+                path.substring(1, slash).getBytes("UTF-8"))) {
+            return null;
+        }
+        String url = URLDecoder.decode(path.substring(slash + 1), "UTF-8");
+        return proxiedUrls.contains(url) ? url : null;
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b & 0xFF));
+        }
+        return builder.toString();
+    }
+
+    private void serve(String url, long rangeStart, long rangeEnd, boolean head, OutputStream out)
+            throws IOException, InterruptedException {
+        File file = getCachedFile(url);
+        if (file != null) {
+            long length = file.length();
+            if (rangeStart >= length) {
+                writeRangeNotSatisfiable(out, length);
+                return;
+            }
+            long start = Math.max(rangeStart, 0);
+            long end = rangeEnd >= 0 ? Math.min(rangeEnd + 1, length) : length;
+            writeHeaders(out, rangeStart >= 0, start, end, length, null);
+            if (!head) {
+                bytesSaved.addAndGet(copyFile(file, start, end, out, null));
+            }
+            return;
+        }
+
+        Entry entry = getEntry(url);
+        entry.awaitHeaders();
+        if (entry.failed) {
+            out.write("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes("UTF-8"));
+            return;
+        }
+        if (entry.length >= 0 && rangeStart >= entry.length) {
+            writeRangeNotSatisfiable(out, entry.length);
+            return;
+        }
+        long start = Math.max(rangeStart, 0);
+        if (start > entry.available() + BYPASS_DISTANCE && entry.length > 0) {
+            // 离下载位置太远，等待下载会卡住播放，直接转发这一段
+            forward(url, rangeStart, rangeEnd, head, out);
+            return;
+        }
+        long length = entry.length;
+        long end = length < 0 ? -1 : rangeEnd >= 0 ? Math.min(rangeEnd + 1, length) : length;
+        writeHeaders(out, rangeStart >= 0, start, end, length, entry.contentType);
+        if (!head) {
+            long cachedAtStart = entry.available();
+            long sent = copyFile(null, start, end, out, entry);
+            bytesSaved.addAndGet(Math.max(0, Math.min(sent, cachedAtStart - start)));
+        }
+    }
+
+    private static void writeHeaders(OutputStream out, boolean partial, long start, long end, long length,
+                                     String contentType) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        builder.append("Accept-Ranges: bytes\r\n");
+        builder.append("Content-Type: ").append(contentType != null ? contentType : "audio/mpeg").append("\r\n");
+        if (end >= 0) {
+            builder.append("Content-Length: ").append(end - start).append("\r\n");
+            if (partial) {
+                builder.append("Content-Range: bytes ").append(start).append('-').append(end - 1)
+                        .append('/').append(length).append("\r\n");
+            }
+        }
+        builder.append("Connection: close\r\n\r\n");
+        out.write(builder.toString().getBytes("UTF-8"));
+        out.flush();
+    }
+
+    /**
+     * 请求的起始位置不小于总长度，起止位置写为"*"
+     */
+    private static void writeRangeNotSatisfiable(OutputStream out, long length) throws IOException {
+        out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + length
+                + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+        out.flush();
+    }
+
+    /**
+     * 把文件[start, end)的内容写给播放器，entry不为空时等待下载，end为-1时读到下载结束
+     *
+     * @return 写出的字节数
+     */
+    private static long copyFile(File file, long start, long end, OutputStream out, Entry entry)
+            throws IOException, InterruptedException {
+        RandomAccessFile input = new RandomAccessFile(entry != null ? entry.file() : file, "r");
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (end < 0 || position < end) {
+                long available = entry != null ? entry.awaitAvailable(position) : end;
+                if (available <= position) {
+                    break;
+                }
+                int size = (int) Math.min(buffer.length, available - position);
+                if (end >= 0) {
+                    size = (int) Math.min(size, end - position);
+                }
+                input.seek(position);
+                int read = input.read(buffer, 0, size);
+                if (read <= 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            out.flush();
+            return position - start;
+        } finally {
+            input.close();
+        }
+    }
+
+    private void forward(String url, long rangeStart, long rangeEnd, boolean head, OutputStream out)
+            throws IOException {
+        HttpURLConnection connection = openConnection(url, rangeStart, rangeEnd);
+        try {
+            long contentLength = getContentLength(connection);
+            boolean partial = connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+            long length = partial ? getTotalLength(connection, -1) : contentLength;
+            long start = partial ? Math.max(rangeStart, 0) : 0;
+            long end = contentLength >= 0 ? start + contentLength : -1;
+            writeHeaders(out, partial, start, end, length, connection.getContentType());
+            if (head) {
+                return;
+            }
+            InputStream input = connection.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+                bytesDownloaded.addAndGet(read);
+            }
+            out.flush();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private Entry getEntry(String url) {
+        final Entry entry;
+        synchronized (entries) {
+            Entry existing = entries.get(url);
+            if (existing != null) {
+                return existing;
+            }
+            String name = getCacheName(url);
+            entry = new Entry(url, new File(cacheDir, name + DOWNLOAD_SUFFIX), new File(cacheDir, name));
+            entries.put(url, entry);
+        }
+        // close()先锁this再锁entries，这里不能在entries的锁内再锁this
+        ThreadPoolExecutor executor;
+        Long tempSize;
+        synchronized (this) {
+            // 正在下载的临时文件不计入，也不会被淘汰，结束后转为缓存文件或删除
+            tempSize = cachedFiles.remove(entry.tempFile.getName());
+            if (tempSize != null) {
+                cachedBytes -= tempSize;
+            }
+            executor = downloadExecutor;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    download(entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 与close()交错时下载线程池已经关闭，不移除的话重启代理后这个url的请求会一直等待
+            synchronized (entries) {
+                if (entries.get(url) == entry) {
+                    entries.remove(url);
+                }
+            }
+            if (tempSize != null) {
+                synchronized (this) {
+                    cachedFiles.put(entry.tempFile.getName(), tempSize);
+                    cachedBytes += tempSize;
+                }
+            }
+            entry.fail();
+        }
+        return entry;
+    }
+
+    /**
+     * 下载线程调用，从上次中断的位置继续下载，完成后转为缓存文件
+     */
+    private void download(Entry entry) {
+        RandomAccessFile output = null;
+        HttpURLConnection connection = null;
+        long length = -1;
+        try {
+            long available = entry.tempFile.length();
+            connection = openConnection(entry.url, available > 0 ? available : -1, -1);
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                length = getTotalLength(connection, available + getContentLength(connection));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // 源地址不支持Range，重新下载
+                available = 0;
+                length = getContentLength(connection);
+            } else if (code == HTTP_RANGE_NOT_SATISFIABLE) {
+                // 上次已经下载完整，但在转为缓存文件之前被中断
+                length = getTotalLength(connection, -1);
+                if (available != length) {
+                    throw new IOException("range not satisfiable at " + available + " of " + length
+                            + " for " + entry.url);
+                }
+                entry.onHeaders(length, available, connection.getContentType());
+                if (!commit(entry, available)) {
+                    throw new IOException("failed to rename " + entry.tempFile);
+                }
+                notifyProgress(entry.url, 100);
+                return;
+            } else {
+                throw new IOException("unexpected response code " + code + " for " + entry.url);
+            }
+            output = new RandomAccessFile(entry.tempFile, "rw");
+            output.setLength(available);
+            entry.onHeaders(length, available, connection.getContentType());
+
+            InputStream input = connection.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int lastPercent = -1;
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.seek(available);
+                output.write(buffer, 0, read);
+                available += read;
+                bytesDownloaded.addAndGet(read);
+                entry.onProgress(available);
+                if (length > 0) {
+                    int percent = (int) (available * 100 / length);
+                    if (percent != lastPercent) {
+                        lastPercent = percent;
+                        notifyProgress(entry.url, percent);
+                    }
+                }
+            }
+            output.close();
+            output = null;
+            if (length > 0 && available < length) {
+                throw new IOException("connection closed at " + available + " of " + length);
+            }
+            if (!commit(entry, available)) {
+                throw new IOException("failed to rename " + entry.tempFile);
+            }
+            notifyProgress(entry.url, 100);
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+                output = null;
+            }
+            recoverTempFile(entry, length);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+            synchronized (entries) {
+                entries.remove(entry.url);
+            }
+        }
+    }
+
+    /**
+     * @return 临时文件没能重命名时返回false
+     */
+    private boolean commit(Entry entry, long length) {
+        if (!entry.onComplete(length)) {
+            return false;
+        }
+        synchronized (this) {
+            Long old = cachedFiles.put(entry.cacheFile.getName(), length);
+            cachedBytes += length - (old != null ? old : 0);
+            trimToSize();
+        }
+        return true;
+    }
+
+    /**
+     * 下载失败后处理临时文件：已经完整时转为缓存文件，否则删除，下次从头下载，
+     * 不会因为残留的临时文件一直请求一个无法满足的Range
+     *
+     * @param length 文件总长度，未知时为-1
+     */
+    private void recoverTempFile(Entry entry, long length) {
+        if (length > 0 && entry.tempFile.length() == length && commit(entry, length)) {
+            notifyProgress(entry.url, 100);
+            return;
+        }
+        entry.fail();
+        entry.tempFile.delete();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = cachedFiles.entrySet().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            cachedBytes -= eldest.getValue();
+            new File(cacheDir, eldest.getKey()).delete();
+        }
+    }
+
+    private void notifyProgress(String url, int percent) {
+        for (CacheListener listener : listeners) {
+            listener.onCacheProgress(url, percent);
+        }
+    }
+
+    private static HttpURLConnection openConnection(String url, long rangeStart, long rangeEnd) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        if (rangeStart >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + rangeStart + "-" + (rangeEnd >= 0 ? rangeEnd : ""));
+        }
+        return connection;
+    }
+
+    private static long getContentLength(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Content-Length");
+        try {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getTotalLength(HttpURLConnection connection, long defaultValue) {
+        String value = connection.getHeaderField("Content-Range");
+        if (value != null) {
+            Matcher matcher = CONTENT_RANGE_PATTERN.matcher(value);
+            if (matcher.matches()) {
+                return Long.parseLong(matcher.group(1));
+            }
+        }
+        return defaultValue;
+    }
+
+    static String getCacheName(String url) {
+        String name;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest(url.getBytes("UTF-8"))) {
+                builder.append(String.format("%02x", b));
+            }
+            name = builder.toString();
+        } catch (Exception e) {
+            name = Integer.toHexString(url.hashCode());
+        }
+        // 保留扩展名，方便播放器识别格式
+        String path = url;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf('/')) {
+            String extension = path.substring(dot + 1);
+            if (extension.length() > 0 && extension.length() <= 4 && extension.matches("[a-zA-Z0-9]+")) {
+                name += "." + extension;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return 直接从缓存文件播放的次数
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return 需要经过代理下载的次数
+     */
+    public int getMissCount() {
+        return missCount;
+    }
+
+    public float getHitRate() {
+        int total = hitCount + missCount;
+        return total > 0 ? hitCount / (float) total : 0;
+    }
+
+    /**
+     * @return 从缓存读取、不需要经过网络的字节数
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * 一个url的下载状态，下载线程写入，播放器的请求线程等待读取
+     */
+    private static class Entry {
+        final String url;
+        final File tempFile;
+        final File cacheFile;
+
+        volatile long length = -1;
+        volatile String contentType;
+        volatile boolean failed;
+        private boolean headersReady;
+        private boolean complete;
+        private long available;
+
+        Entry(String url, File tempFile, File cacheFile) {
+            this.url = url;
+            this.tempFile = tempFile;
+            this.cacheFile = cacheFile;
+        }
+
+        synchronized void onHeaders(long length, long available, String contentType) {
+            this.length = length;
+            this.available = available;
+            this.contentType = contentType;
+            headersReady = true;
+            notifyAll();
+        }
+
+        synchronized void onProgress(long available) {
+            this.available = available;
+            notifyAll();
+        }
+
+        /**
+         * 在锁内重命名，读取方拿到的文件总是存在的
+         */
+        synchronized boolean onComplete(long length) {
+            if (!tempFile.renameTo(cacheFile)) {
+                return false;
+            }
+            this.length = length;
+            this.available = length;
+            complete = true;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void fail() {
+            failed = true;
+            headersReady = true;
+            notifyAll();
+        }
+
+        synchronized void awaitHeaders() throws InterruptedException {
+            while (!headersReady) {
+                wait();
+            }
+        }
+
+        synchronized long available() {
+            return available;
+        }
+
+        /**
+         * 完成后临时文件已被重命名
+         */
+        synchronized File file() {
+            return complete ? cacheFile : tempFile;
+        }
+
+        /**
+         * 等待position之后有数据可读
+         *
+         * @return 当前已下载的位置，下载结束或失败后不再等待
+         */
+        synchronized long awaitAvailable(long position) throws InterruptedException {
+            while (available <= position && !complete && !failed) {
+                wait();
+            }
+            return available;
+        }
+    }
+}
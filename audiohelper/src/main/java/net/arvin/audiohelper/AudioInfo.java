@@ -0,0 +1,116 @@
+package net.arvin.audiohelper;
+
+/**
+ * {@link AudioProbe}解析出的音频信息
+ */
+public class AudioInfo {
+    public static final String FORMAT_MP3 = "mp3";
+    public static final String FORMAT_AAC = "aac";
+    public static final String FORMAT_WAV = "wav";
+    public static final String FORMAT_M4A = "m4a";
+    /**
+     * wav的整数PCM格式标签
+     */
+    public static final int WAVE_FORMAT_PCM = 1;
+
+    public final String format;
+    public final long durationMs;
+    /**
+     * 平均码率，单位kbps
+     */
+    public final int bitrate;
+    public final int sampleRate;
+    public final int channelCount;
+    /**
+     * 是否为可变码率，只对mp3有意义
+     */
+    public final boolean vbr;
+    /**
+     * 第一个音频帧或音频数据在文件中的位置
+     */
+    public final long dataOffset;
+    /**
+     * 音频数据的字节数
+     */
+    public final long dataSize;
+    /**
+     * wav的格式标签，WAVE_FORMAT_EXTENSIBLE时为其中子格式的标签，其他格式为0
+     */
+    public final int formatTag;
+    /**
+     * wav每个采样的位数，其他格式为0
+     */
+    public final int bitsPerSample;
+
+    final long fileSize;
+    final long lastModified;
+
+    /**
+     * mp3的Xing/Info标签中的TOC，第i项为播放到i%时的位置占tocBytes的比例 * 256
+     */
+    byte[] toc;
+    /**
+     * 标签帧的位置，TOC中的位置相对于它
+     */
+    long tocOffset;
+    long tocBytes;
+
+    AudioInfo(String format, long durationMs, int bitrate, int sampleRate, int channelCount, boolean vbr,
+              long dataOffset, long dataSize, int formatTag, int bitsPerSample, long fileSize, long lastModified) {
+        this.format = format;
+        this.durationMs = durationMs;
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.vbr = vbr;
+        this.dataOffset = dataOffset;
+        this.dataSize = dataSize;
+        this.formatTag = formatTag;
+        this.bitsPerSample = bitsPerSample;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * 计算播放到timeMs时对应的文件位置，有TOC时按TOC插值，否则按平均码率估算
+     *
+     * @return 只支持mp3，其他格式返回-1
+     */
+    public long getSeekPosition(long timeMs) {
+        if (!FORMAT_MP3.equals(format) || durationMs <= 0) {
+            return -1;
+        }
+        double percent = Math.max(0, Math.min(100, timeMs * 100.0 / durationMs));
+        if (toc != null) {
+            int index = Math.min(XingHeader.TOC_SIZE - 1, (int) percent);
+            double start = toc[index] & 0xFF;
+            double end = index + 1 < XingHeader.TOC_SIZE ? toc[index + 1] & 0xFF : 256;
+            double position = start + (end - start) * (percent - index);
+            return tocOffset + (long) (position / 256 * tocBytes);
+        }
+        return dataOffset + (long) (percent / 100 * dataSize);
+    }
+
+    /**
+     * @return 是否为16位整数PCM的wav，Transcoder和PcmPlayer只支持这种wav
+     */
+    public boolean isPcm16Wav() {
+        return FORMAT_WAV.equals(format) && formatTag == WAVE_FORMAT_PCM && bitsPerSample == 16;
+    }
+
+    public boolean hasToc() {
+        return toc != null;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioInfo{" +
+                "format='" + format + '\'' +
+                ", durationMs=" + durationMs +
+                ", bitrate=" + bitrate +
+                ", sampleRate=" + sampleRate +
+                ", channelCount=" + channelCount +
+                ", vbr=" + vbr +
+                '}';
+    }
+}
@@ -0,0 +1,277 @@
+package net.arvin.audiohelper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 录音和播放的各阶段耗时与计数，通过{@link AudioRecorder#setMetrics(AudioMetrics)}、
+ * {@link AudioPlayer#setMetrics(AudioMetrics)}开启，同一个实例可以同时给录音和播放使用
+ * <p>
+ * 耗时按微秒记入固定的对数桶，第0个桶为不足1us，第i个桶为[2^(i-1), 2^i)us，最后一个桶包含所有更长的耗时。
+ * 记录时只做数组下标计算和原子累加，不分配对象、不加锁，可以在录音线程和编码线程中调用；
+ * {@link #snapshot()}拷贝一份当前的值，可以在任意线程调用，适合定时上报。
+ */
+public class AudioMetrics {
+
+    /**
+     * 录音线程中AudioRecord.read的耗时，创建或开始采集失败的错误也记在这一阶段
+     */
+    public static final int STAGE_READ = 0;
+    /**
+     * 编码线程中一次native编码的耗时
+     */
+    public static final int STAGE_ENCODE = 1;
+    /**
+     * 编码结果写入输出的耗时
+     */
+    public static final int STAGE_WRITE = 2;
+    /**
+     * 音量从录音线程发出到主线程回调完VolumeCallback的耗时
+     */
+    public static final int STAGE_CALLBACK = 3;
+    /**
+     * 播放器prepareAsync到onPrepared的耗时
+     */
+    public static final int STAGE_PREPARE = 4;
+    /**
+     * 调用play到播放位置开始前进的耗时
+     */
+    public static final int STAGE_FIRST_AUDIO = 5;
+    /**
+     * {@link AudioPlayQueue}自动切换到下一条时的空白时间
+     */
+    public static final int STAGE_GAP = 6;
+    public static final int STAGE_COUNT = 7;
+
+    public static final int COUNTER_FRAMES_CAPTURED = 0;
+    public static final int COUNTER_FRAMES_ENCODED = 1;
+    public static final int COUNTER_BYTES_WRITTEN = 2;
+    /**
+     * 写入编码队列时队列已满的次数，包括阻塞、丢弃和写入临时文件
+     */
+    public static final int COUNTER_OVERRUNS = 3;
+    public static final int COUNTER_JNI_CALLS = 4;
+    public static final int COUNTER_ERRORS = 5;
+    /**
+     * 已编码音频的时长，单位微秒，用于计算实时倍率
+     */
+    public static final int COUNTER_ENCODED_MICROS = 6;
+    public static final int COUNTER_COUNT = 7;
+
+    public static final int BUCKET_COUNT = 24;
+
+    private static final String[] STAGE_NAMES = {"read", "encode", "write", "callback", "prepare", "first_audio", "gap"};
+    private static final String[] COUNTER_NAMES = {"frames_captured", "frames_encoded", "bytes_written",
+            "overruns", "jni_calls", "errors", "encoded_us"};
+
+    public interface Listener {
+        /**
+         * 在出错的线程中回调，不要做耗时操作
+         *
+         * @param stage 出错的阶段，如{@link #STAGE_WRITE}
+         */
+        void onError(int stage, Throwable e);
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(STAGE_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray maxNanos = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    private volatile long startNanos = System.nanoTime();
+    private volatile Listener listener;
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 记录一次耗时
+     */
+    public void record(int stage, long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        buckets.incrementAndGet(stage * BUCKET_COUNT + bucketOf(nanos));
+        totalNanos.addAndGet(stage, nanos);
+        long max;
+        while (nanos > (max = maxNanos.get(stage))) {
+            if (maxNanos.compareAndSet(stage, max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    public void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    /**
+     * 记录一次错误，原有的printStackTrace保持不变
+     */
+    public void error(int stage, Throwable e) {
+        counters.incrementAndGet(COUNTER_ERRORS);
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onError(stage, e);
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] bucketValues = new long[STAGE_COUNT * BUCKET_COUNT];
+        for (int i = 0; i < bucketValues.length; i++) {
+            bucketValues[i] = buckets.get(i);
+        }
+        long[] totals = new long[STAGE_COUNT];
+        long[] maxs = new long[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            totals[i] = totalNanos.get(i);
+            maxs[i] = maxNanos.get(i);
+        }
+        long[] counterValues = new long[COUNTER_COUNT];
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            counterValues[i] = counters.get(i);
+        }
+        return new Snapshot(System.nanoTime() - startNanos, bucketValues, totals, maxs, counterValues);
+    }
+
+    /**
+     * 清空所有统计，上报之后调用可以按时间段统计
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            totalNanos.set(i, 0);
+            maxNanos.set(i, 0);
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            counters.set(i, 0);
+        }
+        startNanos = System.nanoTime();
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public static String getCounterName(int counter) {
+        return COUNTER_NAMES[counter];
+    }
+
+    /**
+     * @return 第bucket个桶的上限，单位微秒，最后一个桶返回Long.MAX_VALUE
+     */
+    public static long getBucketUpperMicros(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * 某一时刻的统计，各项分别读取，不保证彼此严格一致
+     */
+    public static class Snapshot {
+        private final long elapsedNanos;
+        private final long[] buckets;
+        private final long[] totalNanos;
+        private final long[] maxNanos;
+        private final long[] counters;
+
+        Snapshot(long elapsedNanos, long[] buckets, long[] totalNanos, long[] maxNanos, long[] counters) {
+            this.elapsedNanos = elapsedNanos;
+            this.buckets = buckets;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.counters = counters;
+        }
+
+        /**
+         * @return 从创建或上次reset到现在的时长
+         */
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        public long getCount(int stage) {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += buckets[stage * BUCKET_COUNT + i];
+            }
+            return count;
+        }
+
+        public long getBucket(int stage, int bucket) {
+            return buckets[stage * BUCKET_COUNT + bucket];
+        }
+
+        public float getMeanMillis(int stage) {
+            long count = getCount(stage);
+            return count > 0 ? totalNanos[stage] / 1000000f / count : 0;
+        }
+
+        public float getMaxMillis(int stage) {
+            return maxNanos[stage] / 1000000f;
+        }
+
+        /**
+         * @param percentile 0~100
+         * @return 该分位所在桶的上限，精度为一个桶（2倍），最后一个桶返回最大值
+         */
+        public float getPercentileMillis(int stage, float percentile) {
+            long count = getCount(stage);
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[stage * BUCKET_COUNT + i];
+                if (seen >= Math.max(1, target)) {
+                    long upper = getBucketUpperMicros(i);
+                    return upper == Long.MAX_VALUE ? getMaxMillis(stage) : Math.min(upper / 1000f, getMaxMillis(stage));
+                }
+            }
+            return getMaxMillis(stage);
+        }
+
+        public long getCounter(int counter) {
+            return counters[counter];
+        }
+
+        /**
+         * @return 编码速度相对实时的倍数，即已编码音频的时长除以编码和写入的总耗时，还没有编码时返回0
+         */
+        public float getRealtimeFactor() {
+            long nanos = totalNanos[STAGE_ENCODE] + totalNanos[STAGE_WRITE];
+            return nanos > 0 ? counters[COUNTER_ENCODED_MICROS] * 1000f / nanos : 0;
+        }
+
+        /**
+         * 每行一项，格式为"名称 值"，耗时项为"名称 次数 平均 p50 p95 p99 最大"（毫秒），方便直接上报或打印日志
+         */
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                long count = getCount(stage);
+                if (count == 0) {
+                    continue;
+                }
+                builder.append(STAGE_NAMES[stage]).append(' ').append(count)
+                        .append(' ').append(getMeanMillis(stage))
+                        .append(' ').append(getPercentileMillis(stage, 50))
+                        .append(' ').append(getPercentileMillis(stage, 95))
+                        .append(' ').append(getPercentileMillis(stage, 99))
+                        .append(' ').append(getMaxMillis(stage)).append('\n');
+            }
+            for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+                builder.append(COUNTER_NAMES[counter]).append(' ').append(counters[counter]).append('\n');
+            }
+            builder.append("realtime_factor ").append(getRealtimeFactor());
+            return builder.toString();
+        }
+    }
+}
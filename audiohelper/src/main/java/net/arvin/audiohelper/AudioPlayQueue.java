@@ -0,0 +1,443 @@
+package net.arvin.audiohelper;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+
+/**
+ * 连续播放多条语音的队列，当前这条播放时提前加载下一条，并通过
+ * {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}衔接，两条之间不需要reset、setDataSource和prepare
+ * <p>
+ * 同一时刻最多持有当前和下一条两个MediaPlayer，播完的MediaPlayer reset后用于加载再下一条。
+ * 自动切换时从上一条的onCompletion开始，到下一条播放位置开始前进为止记为一次间隔，
+ * 减去下一条已经播放的时长即为估算的空白时间，可以通过{@link #getLastGapMillis()}或
+ * {@link AudioMetrics#STAGE_GAP}查看。所有方法都需要在主线程调用。
+ */
+public class AudioPlayQueue implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
+        MediaPlayer.OnErrorListener {
+
+    private static final int GAP_POLL_MS = 5;
+    private static final long GAP_TIMEOUT_NANOS = 10000000000L;
+
+    public interface Callback {
+        void onItemStarted(String url);
+
+        void onItemCompleted(String url);
+
+        /**
+         * 队列中所有语音播放完成
+         */
+        default void onQueueCompleted() {
+        }
+
+        /**
+         * 加载或播放出错，出错的这条会被跳过
+         */
+        default void onItemError(String url, int what, int extra) {
+        }
+    }
+
+    private static class Item {
+        final MediaPlayer player;
+        final String url;
+        boolean prepared;
+
+        Item(MediaPlayer player, String url) {
+            this.player = player;
+            this.url = url;
+        }
+    }
+
+    private final AudioManager audioManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private Callback callback;
+    private AudioCache audioCache;
+    private AudioMetrics metrics;
+
+    private Item current;
+    private Item next;
+    /**
+     * 已reset的MediaPlayer，下次加载时复用
+     */
+    private MediaPlayer spare;
+    private boolean paused;
+
+    private long gapStartNanos;
+    private MediaPlayer gapPlayer;
+    private boolean gapChained;
+    private final Runnable gapCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkGap();
+        }
+    };
+
+    private int transitionCount;
+    private int gaplessCount;
+    private long lastGapMillis = -1;
+    private long maxGapMillis;
+
+    public AudioPlayQueue(Context context, Callback callback) {
+        this.audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        this.callback = callback;
+    }
+
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * 设置远程音频的缓存，对之后加载的语音生效
+     */
+    public void setAudioCache(AudioCache audioCache) {
+        this.audioCache = audioCache;
+    }
+
+    /**
+     * 设置耗时统计，每次自动切换的空白时间记入{@link AudioMetrics#STAGE_GAP}
+     */
+    public void setMetrics(AudioMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 加入队列末尾，队列空闲时立即开始播放
+     */
+    public void enqueue(String url) {
+        pending.add(url);
+        if (current == null) {
+            startNext();
+        } else {
+            prepareNext();
+        }
+    }
+
+    /**
+     * 跳过当前这条，直接播放下一条，没有下一条时停止
+     */
+    public void skip() {
+        if (current == null) {
+            return;
+        }
+        cancelGapCheck();
+        recycle(current);
+        current = null;
+        startNext();
+    }
+
+    /**
+     * 停止播放并清空队列
+     */
+    public void clear() {
+        cancelGapCheck();
+        pending.clear();
+        if (next != null) {
+            recycle(next);
+            next = null;
+        }
+        if (current != null) {
+            recycle(current);
+            current = null;
+        }
+        paused = false;
+    }
+
+    public void pause() {
+        paused = true;
+        if (current != null && current.prepared) {
+            current.player.pause();
+        }
+    }
+
+    public void resume() {
+        paused = false;
+        if (current != null && current.prepared && !current.player.isPlaying()) {
+            current.player.start();
+        }
+    }
+
+    /**
+     * 释放所有MediaPlayer，之后仍可继续使用
+     */
+    public void release() {
+        clear();
+        if (spare != null) {
+            spare.release();
+            spare = null;
+        }
+    }
+
+    /**
+     * 取下一条作为当前播放，已加载完成时立即开始，否则在onPrepared中开始
+     */
+    private void startNext() {
+        if (next != null) {
+            current = next;
+            next = null;
+        } else {
+            String url = pending.poll();
+            if (url == null) {
+                paused = false;
+                if (callback != null) {
+                    callback.onQueueCompleted();
+                }
+                return;
+            }
+            current = load(url);
+            if (current == null) {
+                startNext();
+                return;
+            }
+        }
+        if (current.prepared) {
+            startCurrent();
+        }
+        prepareNext();
+    }
+
+    private void startCurrent() {
+        if (!paused) {
+            audioManager.setMode(AudioManager.MODE_NORMAL);
+            current.player.start();
+        }
+        if (callback != null) {
+            callback.onItemStarted(current.url);
+        }
+    }
+
+    private void prepareNext() {
+        while (next == null && !pending.isEmpty()) {
+            next = load(pending.poll());
+        }
+    }
+
+    /**
+     * @return 设置数据源失败时返回null
+     */
+    private Item load(String url) {
+        MediaPlayer player = spare;
+        spare = null;
+        if (player == null) {
+            player = new MediaPlayer();
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            player.setOnPreparedListener(this);
+            player.setOnCompletionListener(this);
+            player.setOnErrorListener(this);
+        }
+        Item item = new Item(player, url);
+        try {
+            player.setDataSource(audioCache != null ? audioCache.getProxyUrl(url) : url);
+            player.prepareAsync();
+            return item;
+        } catch (Exception e) {
+            e.printStackTrace();
+            recycle(item);
+            if (callback != null) {
+                callback.onItemError(url, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * reset后留作下次加载使用，已经有一个备用时直接释放
+     */
+    private void recycle(Item item) {
+        try {
+            item.player.reset();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (spare == null) {
+            spare = item.player;
+        } else {
+            item.player.release();
+        }
+    }
+
+    /**
+     * 当前和下一条都加载完成时衔接起来，当前这条播完后由MediaPlayer直接开始下一条
+     */
+    private void chainNext() {
+        if (current != null && current.prepared && next != null && next.prepared) {
+            try {
+                current.player.setNextMediaPlayer(next.player);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void unchainNext() {
+        if (current != null && current.prepared) {
+            try {
+                current.player.setNextMediaPlayer(null);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        if (current != null && current.player == mp) {
+            current.prepared = true;
+            startCurrent();
+            chainNext();
+        } else if (next != null && next.player == mp) {
+            next.prepared = true;
+            chainNext();
+        }
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        if (current == null || current.player != mp) {
+            return;
+        }
+        Item finished = current;
+        // 已衔接时下一条此时已经由MediaPlayer开始播放
+        boolean chained = next != null && next.prepared;
+        current = next;
+        next = null;
+        recycle(finished);
+        if (callback != null) {
+            callback.onItemCompleted(finished.url);
+        }
+        if (current == null) {
+            startNext();
+            if (current != null) {
+                startGapCheck(false);
+            }
+            return;
+        }
+        startGapCheck(chained);
+        // 没有衔接上时下一条还在加载，在onPrepared中开始
+        if (chained && callback != null) {
+            callback.onItemStarted(current.url);
+        }
+        prepareNext();
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        if (current != null && current.player == mp) {
+            Item failed = current;
+            cancelGapCheck();
+            current = null;
+            recycle(failed);
+            if (callback != null) {
+                callback.onItemError(failed.url, what, extra);
+            }
+            startNext();
+        } else if (next != null && next.player == mp) {
+            Item failed = next;
+            unchainNext();
+            next = null;
+            recycle(failed);
+            if (callback != null) {
+                callback.onItemError(failed.url, what, extra);
+            }
+            prepareNext();
+        }
+        // 已经处理，不再回调onCompletion
+        return true;
+    }
+
+    private void startGapCheck(boolean chained) {
+        cancelGapCheck();
+        gapStartNanos = System.nanoTime();
+        gapPlayer = current.player;
+        gapChained = chained;
+        mainHandler.postDelayed(gapCheck, GAP_POLL_MS);
+    }
+
+    private void cancelGapCheck() {
+        mainHandler.removeCallbacks(gapCheck);
+        gapPlayer = null;
+    }
+
+    /**
+     * 下一条的播放位置开始前进时，从onCompletion到现在的时间减去已经播放的时长即为空白时间
+     */
+    private void checkGap() {
+        if (gapPlayer == null || current == null || current.player != gapPlayer) {
+            return;
+        }
+        long elapsedNanos = System.nanoTime() - gapStartNanos;
+        int position = 0;
+        if (current.prepared) {
+            try {
+                position = gapPlayer.getCurrentPosition();
+            } catch (Exception e) {
+                e.printStackTrace();
+                gapPlayer = null;
+                return;
+            }
+        }
+        if (position <= 0) {
+            if (elapsedNanos < GAP_TIMEOUT_NANOS && !paused) {
+                mainHandler.postDelayed(gapCheck, GAP_POLL_MS);
+            } else {
+                gapPlayer = null;
+            }
+            return;
+        }
+        long gapNanos = Math.max(0, elapsedNanos - position * 1000000L);
+        gapPlayer = null;
+        transitionCount++;
+        if (gapChained) {
+            gaplessCount++;
+        }
+        lastGapMillis = gapNanos / 1000000;
+        maxGapMillis = Math.max(maxGapMillis, lastGapMillis);
+        if (metrics != null) {
+            metrics.record(AudioMetrics.STAGE_GAP, gapNanos);
+        }
+    }
+
+    public String getCurrentUrl() {
+        return current != null ? current.url : null;
+    }
+
+    /**
+     * @return 还没有开始播放的条数，包括正在预加载的下一条
+     */
+    public int getPendingCount() {
+        return pending.size() + (next != null ? 1 : 0);
+    }
+
+    public boolean isPlaying() {
+        return current != null && !paused;
+    }
+
+    /**
+     * @return 测量过空白时间的自动切换次数
+     */
+    public int getTransitionCount() {
+        return transitionCount;
+    }
+
+    /**
+     * @return 其中通过setNextMediaPlayer衔接的次数
+     */
+    public int getGaplessCount() {
+        return gaplessCount;
+    }
+
+    /**
+     * @return 最近一次自动切换的空白时间，还没有切换过时返回-1
+     */
+    public long getLastGapMillis() {
+        return lastGapMillis;
+    }
+
+    public long getMaxGapMillis() {
+        return maxGapMillis;
+    }
+}
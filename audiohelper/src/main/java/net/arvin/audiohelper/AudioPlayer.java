@@ -4,6 +4,8 @@ import android.content.Context;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.io.File;
 
@@ -13,13 +15,36 @@ import java.io.File;
  * Desc：音频播放器
  */
 public class AudioPlayer implements MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnCompletionListener,
-        MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener {
+        MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, AudioCache.CacheListener {
 
     private AudioManager mAudioManager;
     private MediaPlayer mMediaPlayer;
     private PlayStateCallback playStateCallback;
     private String url;
     private boolean isPlaying;
+    private boolean isPreparing;
+    private boolean isPrepared;
+    /**
+     * prepare完成后是否自动播放，只预加载时为false
+     */
+    private boolean autoStart;
+    private AudioCache audioCache;
+    private Handler mainHandler;
+
+    /**
+     * 检查播放位置的间隔和最长检查时间，MediaPlayer没有开始出声的回调，只能通过位置是否前进判断
+     */
+    private static final int FIRST_AUDIO_POLL_MS = 10;
+    private static final long FIRST_AUDIO_TIMEOUT_NANOS = 5000000000L;
+    private AudioMetrics metrics;
+    private long prepareStartNanos;
+    private long playRequestNanos;
+    private final Runnable firstAudioCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkFirstAudio();
+        }
+    };
 
     public AudioPlayer(Context context, PlayStateCallback playStateCallback) {
         this.playStateCallback = playStateCallback;
@@ -40,28 +65,167 @@ public class AudioPlayer implements MediaPlayer.OnBufferingUpdateListener, Media
         this.playStateCallback = playStateCallback;
     }
 
+    /**
+     * 设置远程音频的缓存，之后play和prepare的url会经过缓存，再次播放时不需要重新下载
+     * <p>
+     * 设置后{@link PlayStateCallback#onBufferingUpdate(int)}回调的是缓存的下载进度
+     */
+    public void setAudioCache(AudioCache audioCache) {
+        if (this.audioCache != null) {
+            this.audioCache.removeCacheListener(this);
+        }
+        this.audioCache = audioCache;
+        if (audioCache != null) {
+            if (mainHandler == null) {
+                mainHandler = new Handler(Looper.getMainLooper());
+            }
+            audioCache.addCacheListener(this);
+        }
+    }
+
+    /**
+     * 设置耗时统计，默认null不统计，记录prepare耗时和从调用play到开始出声的耗时
+     */
+    public void setMetrics(AudioMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null && mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+    }
+
+    private void markPlayRequest() {
+        if (metrics != null) {
+            playRequestNanos = System.nanoTime();
+            mainHandler.removeCallbacks(firstAudioCheck);
+        }
+    }
+
+    /**
+     * start之后开始检查播放位置
+     */
+    private void startFirstAudioCheck() {
+        if (metrics != null && playRequestNanos > 0) {
+            mainHandler.removeCallbacks(firstAudioCheck);
+            mainHandler.postDelayed(firstAudioCheck, FIRST_AUDIO_POLL_MS);
+        }
+    }
+
+    private void checkFirstAudio() {
+        AudioMetrics metrics = this.metrics;
+        if (metrics == null || mMediaPlayer == null || !isPlaying || playRequestNanos <= 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - playRequestNanos;
+        try {
+            if (mMediaPlayer.getCurrentPosition() > 0) {
+                metrics.record(AudioMetrics.STAGE_FIRST_AUDIO, elapsed);
+                playRequestNanos = 0;
+                return;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+        if (elapsed < FIRST_AUDIO_TIMEOUT_NANOS) {
+            mainHandler.postDelayed(firstAudioCheck, FIRST_AUDIO_POLL_MS);
+        }
+    }
+
+    private String getDataSource(String url) {
+        if (audioCache == null) {
+            return url;
+        }
+        if (audioCache.isCached(url) && playStateCallback != null) {
+            playStateCallback.onBufferingUpdate(100);
+        }
+        return audioCache.getProxyUrl(url);
+    }
+
     /**
      * @param url url地址
      */
     public void play(String url) {
+        if (isSame(url) && (isPrepared || isPreparing)) {
+            // 已经预加载过，不需要重新prepare
+            playPrepared();
+            return;
+        }
         try {
             this.url = url;
             isPlaying = true;
+            autoStart = true;
+            isPrepared = false;
+            markPlayRequest();
             mAudioManager.setMode(AudioManager.MODE_NORMAL);
             mMediaPlayer.reset();
-            mMediaPlayer.setDataSource(url); // 设置数据源
+            mMediaPlayer.setDataSource(getDataSource(url)); // 设置数据源
+            isPreparing = true;
+            prepareStartNanos = System.nanoTime();
             mMediaPlayer.prepareAsync(); // prepare自动播放
-            playStateCallback.onStarted();
+            if (playStateCallback != null) {
+                playStateCallback.onStarted();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void playPrepared() {
+        try {
+            isPlaying = true;
+            autoStart = true;
+            markPlayRequest();
+            mAudioManager.setMode(AudioManager.MODE_NORMAL);
+            if (playStateCallback != null) {
+                playStateCallback.onStarted();
+            }
+            if (isPrepared) {
+                if (playStateCallback != null) {
+                    playStateCallback.onPrepared();
+                }
+                // 与重新prepare一样从头开始播放
+                if (mMediaPlayer.getCurrentPosition() > 0) {
+                    mMediaPlayer.seekTo(0);
+                }
+                mMediaPlayer.start();
+                startFirstAudioCheck();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 只加载不播放，之后调用play(url)时可以直接开始播放
+     *
+     * @param url url地址
+     */
+    public void prepare(String url) {
+        if (isSame(url) && (isPrepared || isPreparing)) {
+            return;
+        }
+        try {
+            this.url = url;
+            autoStart = false;
+            isPrepared = false;
+            mMediaPlayer.reset();
+            mMediaPlayer.setDataSource(getDataSource(url));
+            isPreparing = true;
+            prepareStartNanos = System.nanoTime();
+            mMediaPlayer.prepareAsync();
         } catch (Exception e) {
+            isPreparing = false;
             e.printStackTrace();
         }
     }
 
     public void play() {
         isPlaying = true;
+        markPlayRequest();
         mAudioManager.setMode(AudioManager.MODE_NORMAL);
         if (mMediaPlayer != null) {
             mMediaPlayer.start();
+            startFirstAudioCheck();
         }
     }
 
@@ -77,15 +241,25 @@ public class AudioPlayer implements MediaPlayer.OnBufferingUpdateListener, Media
         if (mMediaPlayer != null) {
             mMediaPlayer.stop();
             isPlaying = false;
+            // stop之后需要重新prepare
+            isPrepared = false;
+            isPreparing = false;
         }
     }
 
     //释放
     public void release() {
+        setAudioCache(null);
+        if (mainHandler != null) {
+            mainHandler.removeCallbacks(firstAudioCheck);
+        }
         if (mMediaPlayer != null) {
             mMediaPlayer.release();
             mMediaPlayer = null;
             url = null;
+            isPlaying = false;
+            isPrepared = false;
+            isPreparing = false;
         }
     }
 
@@ -99,16 +273,26 @@ public class AudioPlayer implements MediaPlayer.OnBufferingUpdateListener, Media
     //准备播放
     @Override
     public void onPrepared(MediaPlayer mp) {
+        isPreparing = false;
+        isPrepared = true;
+        if (metrics != null) {
+            metrics.record(AudioMetrics.STAGE_PREPARE, System.nanoTime() - prepareStartNanos);
+        }
+        if (!autoStart) {
+            return;
+        }
         if (playStateCallback != null) {
             playStateCallback.onPrepared();
         }
         mp.start();
+        startFirstAudioCheck();
     }
 
     //播放完成
     @Override
     public void onCompletion(MediaPlayer mp) {
-        stop();
+        // 播放完成的状态可以直接start，不调用stop，再次播放时不需要重新prepare
+        isPlaying = false;
 
         if (playStateCallback != null) {
             playStateCallback.onCompletion();
@@ -117,10 +301,32 @@ public class AudioPlayer implements MediaPlayer.OnBufferingUpdateListener, Media
 
     @Override
     public void onBufferingUpdate(MediaPlayer mp, int percent) {
+        // 使用缓存时播放器读的是本机代理，进度以缓存的下载进度为准
+        if (audioCache == null && playStateCallback != null) {
+            playStateCallback.onBufferingUpdate(percent);
+        }
+    }
+
+    @Override
+    public void onCacheProgress(final String url, final int percent) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isSame(url) && playStateCallback != null) {
+                    playStateCallback.onBufferingUpdate(percent);
+                }
+            }
+        });
     }
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
+        if (metrics != null) {
+            metrics.error(isPreparing ? AudioMetrics.STAGE_PREPARE : AudioMetrics.STAGE_FIRST_AUDIO,
+                    new IllegalStateException("MediaPlayer error " + what + ", " + extra));
+        }
+        isPrepared = false;
+        isPreparing = false;
         return false;
     }
 
@@ -130,13 +336,23 @@ public class AudioPlayer implements MediaPlayer.OnBufferingUpdateListener, Media
 
     /**
      * 获取当前播放时长
+     * <p>
+     * 优先通过{@link AudioProbe}解析文件头，无法解析的格式才创建MediaPlayer
      *
      * @return 本地播放时长
      */
     public static long getDurationLocation(Context context, String path) {
+        AudioInfo info = AudioProbe.probe(path);
+        if (info != null) {
+            return info.durationMs;
+        }
         MediaPlayer player = MediaPlayer.create(context, Uri.fromFile(new File(path)));
         if (player != null) {
-            return player.getDuration();
+            try {
+                return player.getDuration();
+            } finally {
+                player.release();
+            }
         } else {
             return 0;
         }
@@ -149,6 +365,20 @@ public class AudioPlayer implements MediaPlayer.OnBufferingUpdateListener, Media
         return this.url.equals(url);
     }
 
+    /**
+     * @return 是否已加载完成，可以直接播放
+     */
+    public boolean isPrepared() {
+        return isPrepared;
+    }
+
+    /**
+     * @return 是否已加载完成或正在加载
+     */
+    public boolean isPreparedOrPreparing() {
+        return isPrepared || isPreparing;
+    }
+
     public boolean isPlaying() {
         if (mMediaPlayer != null) {
             return isPlaying;
@@ -162,5 +392,11 @@ public class AudioPlayer implements MediaPlayer.OnBufferingUpdateListener, Media
         void onPrepared();
 
         void onCompletion();
+
+        /**
+         * @param percent 已缓冲的百分比，0~100
+         */
+        default void onBufferingUpdate(int percent) {
+        }
     }
 }
@@ -0,0 +1,197 @@
+package net.arvin.audiohelper;
+
+import android.content.Context;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 缓存已加载好的AudioPlayer，在多条语音之间切换时不需要每次重新prepare
+ * <p>
+ * 按url保存最近使用的maxSize个播放器，超出时释放最久没有使用的；可以通过{@link #prefetch(String)}
+ * 提前加载下一条可能播放的语音。所有方法都需要在主线程调用。
+ */
+public class AudioPlayerPool {
+    private static final int DEFAULT_MAX_SIZE = 3;
+
+    private final Context context;
+    private final int maxSize;
+    /**
+     * accessOrder为true，遍历顺序即从最久没有使用到最近使用
+     */
+    private final LinkedHashMap<String, AudioPlayer> players = new LinkedHashMap<>(8, 0.75f, true);
+    private AudioPlayer.PlayStateCallback playStateCallback;
+    private AudioPlayer current;
+    private AudioCache audioCache;
+
+    private int hitCount;
+    private int missCount;
+    private int prefetchCount;
+    private int evictionCount;
+
+    public AudioPlayerPool(Context context, AudioPlayer.PlayStateCallback playStateCallback) {
+        this(context, DEFAULT_MAX_SIZE, playStateCallback);
+    }
+
+    /**
+     * @param maxSize 最多同时保留的播放器数量，每个播放器都持有一个MediaPlayer，不宜过大
+     */
+    public AudioPlayerPool(Context context, int maxSize, AudioPlayer.PlayStateCallback playStateCallback) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.context = context.getApplicationContext();
+        this.maxSize = maxSize;
+        this.playStateCallback = playStateCallback;
+    }
+
+    public void setPlayStateCallback(AudioPlayer.PlayStateCallback playStateCallback) {
+        this.playStateCallback = playStateCallback;
+        if (current != null) {
+            current.setPlayStateCallback(playStateCallback);
+        }
+    }
+
+    /**
+     * 设置远程音频的缓存，对之后创建的播放器生效
+     */
+    public void setAudioCache(AudioCache audioCache) {
+        this.audioCache = audioCache;
+    }
+
+    private AudioPlayer createPlayer(String url) {
+        AudioPlayer player = new AudioPlayer(context, null);
+        player.setAudioCache(audioCache);
+        players.put(url, player);
+        return player;
+    }
+
+    /**
+     * 播放url，已经加载过时直接开始播放，正在播放的其他语音会被暂停
+     *
+     * @return 播放该url的播放器
+     */
+    public AudioPlayer play(String url) {
+        AudioPlayer player = players.get(url);
+        if (player != null && player.isPreparedOrPreparing()) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        if (player == null) {
+            player = createPlayer(url);
+        }
+        if (current != null && current != player) {
+            if (current.isPlaying()) {
+                current.pause();
+            }
+            current.setPlayStateCallback(null);
+        }
+        current = player;
+        player.setPlayStateCallback(playStateCallback);
+        player.play(url);
+        trimToSize();
+        return player;
+    }
+
+    /**
+     * 提前加载url，之后调用{@link #play(String)}时不需要再等待prepare
+     */
+    public void prefetch(String url) {
+        AudioPlayer player = players.get(url);
+        if (player != null && player.isPreparedOrPreparing()) {
+            return;
+        }
+        if (player == null) {
+            player = createPlayer(url);
+        }
+        prefetchCount++;
+        player.prepare(url);
+        trimToSize();
+    }
+
+    public void pause() {
+        if (current != null) {
+            current.pause();
+        }
+    }
+
+    /**
+     * 释放url对应的播放器，例如语音已被删除
+     */
+    public void remove(String url) {
+        AudioPlayer player = players.remove(url);
+        if (player != null) {
+            if (player == current) {
+                current = null;
+            }
+            player.release();
+        }
+    }
+
+    /**
+     * 释放所有播放器，之后仍可继续使用
+     */
+    public void release() {
+        for (AudioPlayer player : players.values()) {
+            player.release();
+        }
+        players.clear();
+        current = null;
+    }
+
+    /**
+     * 从最久没有使用的开始释放，正在播放的播放器不会被释放
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, AudioPlayer>> iterator = players.entrySet().iterator();
+        while (players.size() > maxSize && iterator.hasNext()) {
+            AudioPlayer player = iterator.next().getValue();
+            if (player == current) {
+                continue;
+            }
+            iterator.remove();
+            player.release();
+            evictionCount++;
+        }
+    }
+
+    public AudioPlayer getCurrent() {
+        return current;
+    }
+
+    public int size() {
+        return players.size();
+    }
+
+    /**
+     * @return play时播放器已加载完成或正在加载的次数
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return play时需要重新加载的次数
+     */
+    public int getMissCount() {
+        return missCount;
+    }
+
+    public float getHitRate() {
+        int total = hitCount + missCount;
+        return total > 0 ? hitCount / (float) total : 0;
+    }
+
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * @return 因超出maxSize被释放的播放器数量
+     */
+    public int getEvictionCount() {
+        return evictionCount;
+    }
+}
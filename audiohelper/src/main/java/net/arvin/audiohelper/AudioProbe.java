@@ -0,0 +1,403 @@
+package net.arvin.audiohelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 直接解析文件头获取时长、码率、采样率和声道数，不需要创建MediaPlayer
+ * <p>
+ * 支持mp3（Xing/Info/VBRI标签，没有标签时按CBR估算）、ADTS格式的aac、wav和m4a。
+ * 文件通过mmap读取，只会访问到文件头和帧头所在的页。结果按路径缓存，文件修改时间或大小变化后重新解析。
+ */
+public class AudioProbe {
+    private static final int MAX_CACHE_SIZE = 512;
+    /**
+     * 跳过ID3之后最多在这么多字节内查找第一个mp3帧
+     */
+    private static final int MAX_SYNC_SEARCH = 64 * 1024;
+    private static final int ID3V1_SIZE = 128;
+
+    private static final int TAG_ID3 = 0x494433;
+    private static final int TAG_XING = 0x58696E67;
+    private static final int TAG_INFO = 0x496E666F;
+    private static final int TAG_VBRI = 0x56425249;
+    private static final int TAG_LAME = 0x4C414D45;
+    private static final int TAG_RIFF = 0x52494646;
+    private static final int TAG_WAVE = 0x57415645;
+    private static final int TAG_FMT = 0x666D7420;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+    private static final int TAG_DATA = 0x64617461;
+    private static final int TAG_FTYP = 0x66747970;
+    private static final int TAG_MOOV = 0x6D6F6F76;
+    private static final int TAG_MVHD = 0x6D766864;
+    private static final int TAG_TRAK = 0x7472616B;
+    private static final int TAG_MDIA = 0x6D646961;
+    private static final int TAG_MINF = 0x6D696E66;
+    private static final int TAG_STBL = 0x7374626C;
+    private static final int TAG_STSD = 0x73747364;
+    private static final int TAG_MP4A = 0x6D703461;
+
+    private static final int XING_FLAG_FRAMES = 1;
+    private static final int XING_FLAG_BYTES = 2;
+    private static final int XING_FLAG_TOC = 4;
+    private static final int XING_FLAG_QUALITY = 8;
+    private static final int XING_TOC_SIZE = 100;
+
+    private static final int[] ADTS_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000,
+            22050, 16000, 12000, 11025, 8000, 7350};
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private static final Map<String, AudioInfo> CACHE = new LinkedHashMap<String, AudioInfo>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AudioInfo> eldest) {
+            return size() > MAX_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * 获取本地音频的时长
+     *
+     * @return 单位毫秒，无法解析时返回0
+     */
+    public static long getDuration(String path) {
+        AudioInfo info = probe(path);
+        return info != null ? info.durationMs : 0;
+    }
+
+    /**
+     * @return 无法识别的格式或读取失败时返回null
+     */
+    public static AudioInfo probe(String path) {
+        File file = new File(path);
+        long lastModified = file.lastModified();
+        long fileSize = file.length();
+        synchronized (CACHE) {
+            AudioInfo info = CACHE.get(path);
+            if (info != null && info.lastModified == lastModified && info.fileSize == fileSize) {
+                return info;
+            }
+        }
+        AudioInfo info = null;
+        try {
+            info = probe(file, fileSize, lastModified);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (info != null) {
+            synchronized (CACHE) {
+                CACHE.put(path, info);
+            }
+        }
+        return info;
+    }
+
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    private static AudioInfo probe(File file, long fileSize, long lastModified) throws IOException {
+        if (fileSize < 12 || fileSize > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer buffer;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // 映射后关闭文件不影响访问
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        } finally {
+            randomAccessFile.close();
+        }
+        int size = (int) fileSize;
+        if (buffer.getInt(0) == TAG_RIFF && buffer.getInt(8) == TAG_WAVE) {
+            return probeWav(buffer, size, lastModified);
+        }
+        if (buffer.getInt(4) == TAG_FTYP) {
+            return probeM4a(buffer, size, lastModified);
+        }
+        int offset = skipId3(buffer, size);
+        if (offset + 7 <= size && isAdts(buffer, offset)) {
+            return probeAdts(buffer, offset, size, lastModified);
+        }
+        return probeMp3(buffer, offset, size, lastModified);
+    }
+
+    /**
+     * @return 跳过文件开头ID3v2标签之后的位置
+     */
+    private static int skipId3(ByteBuffer buffer, int size) {
+        int offset = 0;
+        while (offset + 10 <= size && (buffer.getInt(offset) >>> 8) == TAG_ID3) {
+            // 标签长度为4个7位的syncsafe整数
+            int tagSize = ((buffer.get(offset + 6) & 0x7F) << 21) | ((buffer.get(offset + 7) & 0x7F) << 14)
+                    | ((buffer.get(offset + 8) & 0x7F) << 7) | (buffer.get(offset + 9) & 0x7F);
+            boolean footer = (buffer.get(offset + 5) & 0x10) != 0;
+            offset += 10 + tagSize + (footer ? 10 : 0);
+        }
+        return offset;
+    }
+
+    private static AudioInfo probeMp3(ByteBuffer buffer, int offset, int size, long lastModified) {
+        Mp3FrameHeader header = new Mp3FrameHeader();
+        Mp3FrameHeader next = new Mp3FrameHeader();
+        int frameStart = -1;
+        int searchEnd = (int) Math.min(size - Mp3FrameHeader.HEADER_SIZE, (long) offset + MAX_SYNC_SEARCH);
+        for (int i = offset; i <= searchEnd; i++) {
+            if ((buffer.get(i) & 0xFF) != 0xFF || !header.parse(buffer.getInt(i))) {
+                continue;
+            }
+            // 再校验下一帧，避免把数据中的0xFF误认为帧头
+            int nextStart = i + header.frameLength;
+            if (nextStart + Mp3FrameHeader.HEADER_SIZE <= size && (!next.parse(buffer.getInt(nextStart))
+                    || next.version != header.version || next.sampleRate != header.sampleRate)) {
+                continue;
+            }
+            frameStart = i;
+            break;
+        }
+        if (frameStart < 0) {
+            return null;
+        }
+
+        int audioEnd = size;
+        if (size >= ID3V1_SIZE && (buffer.getInt(size - ID3V1_SIZE) >>> 8) == 0x544147) {
+            audioEnd -= ID3V1_SIZE;
+        }
+        int dataOffset = frameStart;
+        long frames = -1;
+        long bytes = -1;
+        long delayAndPadding = 0;
+        boolean vbr = false;
+        byte[] toc = null;
+
+        int xing = frameStart + Mp3FrameHeader.HEADER_SIZE + header.getSideInfoSize();
+        int vbri = frameStart + Mp3FrameHeader.HEADER_SIZE + 32;
+        int tag = xing + 8 <= size ? buffer.getInt(xing) : 0;
+        if (tag == TAG_XING || tag == TAG_INFO) {
+            // Info为CBR时写入的同格式标签，标签帧本身不包含音频
+            vbr = tag == TAG_XING;
+            dataOffset = frameStart + header.frameLength;
+            int flags = buffer.getInt(xing + 4);
+            int position = xing + 8;
+            if ((flags & XING_FLAG_FRAMES) != 0) {
+                frames = buffer.getInt(position) & 0xFFFFFFFFL;
+                position += 4;
+            }
+            if ((flags & XING_FLAG_BYTES) != 0) {
+                bytes = buffer.getInt(position) & 0xFFFFFFFFL;
+                position += 4;
+            }
+            if ((flags & XING_FLAG_TOC) != 0 && position + XING_TOC_SIZE <= size) {
+                toc = new byte[XING_TOC_SIZE];
+                for (int i = 0; i < XING_TOC_SIZE; i++) {
+                    toc[i] = buffer.get(position + i);
+                }
+                position += XING_TOC_SIZE;
+            }
+            if ((flags & XING_FLAG_QUALITY) != 0) {
+                position += 4;
+            }
+            // LAME标签中记录了编码器延迟和末尾补齐的采样数，去掉后才是准确的时长
+            if (position + 24 <= size && buffer.getInt(position) == TAG_LAME) {
+                int delay = ((buffer.get(position + 21) & 0xFF) << 4) | ((buffer.get(position + 22) & 0xFF) >>> 4);
+                int padding = ((buffer.get(position + 22) & 0x0F) << 8) | (buffer.get(position + 23) & 0xFF);
+                delayAndPadding = delay + padding;
+            }
+        } else if (vbri + 18 <= size && buffer.getInt(vbri) == TAG_VBRI) {
+            vbr = true;
+            dataOffset = frameStart + header.frameLength;
+            bytes = buffer.getInt(vbri + 10) & 0xFFFFFFFFL;
+            frames = buffer.getInt(vbri + 14) & 0xFFFFFFFFL;
+        }
+
+        long dataSize = bytes > 0 ? Math.min(bytes, audioEnd - frameStart) : audioEnd - dataOffset;
+        long durationMs;
+        int bitrate;
+        if (frames > 0) {
+            long samples = Math.max(0, frames * header.samplesPerFrame - delayAndPadding);
+            durationMs = samples * 1000 / header.sampleRate;
+            bitrate = durationMs > 0 ? (int) (dataSize * 8 / durationMs) : header.bitrate;
+        } else {
+            // 没有标签时按第一帧的码率估算，kbps即每毫秒的比特数
+            bitrate = header.bitrate;
+            durationMs = dataSize * 8 / bitrate;
+        }
+        AudioInfo info = new AudioInfo(AudioInfo.FORMAT_MP3, durationMs, bitrate, header.sampleRate,
+                header.channelCount, vbr, dataOffset, dataSize, 0, 0, size, lastModified);
+        if (toc != null) {
+            info.toc = toc;
+            info.tocOffset = frameStart;
+            info.tocBytes = bytes > 0 ? Math.min(bytes, audioEnd - frameStart) : audioEnd - frameStart;
+        }
+        return info;
+    }
+
+    private static boolean isAdts(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) == 0xFF && (buffer.get(offset + 1) & 0xF6) == 0xF0;
+    }
+
+    /**
+     * ADTS没有全局的时长信息，依次跳过每一帧统计帧数，只访问帧头
+     */
+    private static AudioInfo probeAdts(ByteBuffer buffer, int offset, int size, long lastModified) {
+        int sampleRateIndex = (buffer.get(offset + 2) >>> 2) & 0xF;
+        if (sampleRateIndex >= ADTS_SAMPLE_RATES.length) {
+            return null;
+        }
+        int sampleRate = ADTS_SAMPLE_RATES[sampleRateIndex];
+        int channelCount = ((buffer.get(offset + 2) & 1) << 2) | ((buffer.get(offset + 3) >>> 6) & 3);
+        long samples = 0;
+        int position = offset;
+        while (position + 7 <= size && isAdts(buffer, position)) {
+            int frameLength = ((buffer.get(position + 3) & 3) << 11) | ((buffer.get(position + 4) & 0xFF) << 3)
+                    | ((buffer.get(position + 5) & 0xFF) >>> 5);
+            if (frameLength <= 7) {
+                break;
+            }
+            samples += ((buffer.get(position + 6) & 3) + 1) * AAC_SAMPLES_PER_FRAME;
+            position += frameLength;
+        }
+        long durationMs = samples * 1000 / sampleRate;
+        long dataSize = Math.min(position, size) - offset;
+        int bitrate = durationMs > 0 ? (int) (dataSize * 8 / durationMs) : 0;
+        return new AudioInfo(AudioInfo.FORMAT_AAC, durationMs, bitrate, sampleRate, channelCount,
+                false, offset, dataSize, 0, 0, size, lastModified);
+    }
+
+    private static AudioInfo probeWav(ByteBuffer buffer, int size, long lastModified) {
+        int sampleRate = 0;
+        int channelCount = 0;
+        int byteRate = 0;
+        int formatTag = 0;
+        int bitsPerSample = 0;
+        int position = 12;
+        while (position + 8 <= size) {
+            int id = buffer.getInt(position);
+            long chunkSize = getIntLE(buffer, position + 4) & 0xFFFFFFFFL;
+            if (id == TAG_FMT && position + 24 <= size) {
+                formatTag = getShortLE(buffer, position + 8);
+                channelCount = getShortLE(buffer, position + 10);
+                sampleRate = getIntLE(buffer, position + 12);
+                byteRate = getIntLE(buffer, position + 16);
+                bitsPerSample = getShortLE(buffer, position + 22);
+                if (formatTag == WAVE_FORMAT_EXTENSIBLE && chunkSize >= 40 && position + 34 <= size) {
+                    // 子格式GUID的前两个字节即实际的格式标签
+                    formatTag = getShortLE(buffer, position + 32);
+                }
+            } else if (id == TAG_DATA) {
+                int dataOffset = position + 8;
+                // 录音中断时文件头里的长度可能没有回写
+                long dataSize = chunkSize == 0 || dataOffset + chunkSize > size ? size - dataOffset : chunkSize;
+                if (byteRate <= 0) {
+                    return null;
+                }
+                long durationMs = dataSize * 1000 / byteRate;
+                return new AudioInfo(AudioInfo.FORMAT_WAV, durationMs, byteRate * 8 / 1000, sampleRate,
+                        channelCount, false, dataOffset, dataSize, formatTag, bitsPerSample, size, lastModified);
+            }
+            position += 8 + chunkSize + (chunkSize & 1);
+        }
+        return null;
+    }
+
+    private static AudioInfo probeM4a(ByteBuffer buffer, int size, long lastModified) {
+        int moov = findBox(buffer, 0, size, TAG_MOOV);
+        if (moov < 0) {
+            return null;
+        }
+        int moovEnd = boxEnd(buffer, moov, size);
+        int mvhd = findBox(buffer, payload(buffer, moov), moovEnd, TAG_MVHD);
+        if (mvhd < 0) {
+            return null;
+        }
+        int position = payload(buffer, mvhd);
+        long timescale;
+        long duration;
+        if (buffer.get(position) == 1) {
+            timescale = buffer.getInt(position + 20) & 0xFFFFFFFFL;
+            duration = buffer.getLong(position + 24);
+        } else {
+            timescale = buffer.getInt(position + 12) & 0xFFFFFFFFL;
+            duration = buffer.getInt(position + 16) & 0xFFFFFFFFL;
+        }
+        if (timescale <= 0) {
+            return null;
+        }
+        long durationMs = duration * 1000 / timescale;
+
+        int sampleRate = 0;
+        int channelCount = 0;
+        int trak = findBox(buffer, payload(buffer, moov), moovEnd, TAG_TRAK);
+        while (trak >= 0 && sampleRate == 0) {
+            int trakEnd = boxEnd(buffer, trak, moovEnd);
+            int box = trak;
+            int boxEnd = trakEnd;
+            for (int type : new int[]{TAG_MDIA, TAG_MINF, TAG_STBL, TAG_STSD}) {
+                box = findBox(buffer, payload(buffer, box), boxEnd, type);
+                if (box < 0) {
+                    break;
+                }
+                boxEnd = boxEnd(buffer, box, boxEnd);
+            }
+            // stsd：4字节version/flags，4字节条目数，之后是第一个sample entry
+            int entry = box >= 0 ? payload(buffer, box) + 8 : -1;
+            if (entry >= 0 && entry + 36 <= boxEnd && buffer.getInt(entry + 4) == TAG_MP4A) {
+                channelCount = buffer.getShort(entry + 24) & 0xFFFF;
+                sampleRate = (buffer.getInt(entry + 32) >>> 16) & 0xFFFF;
+            }
+            trak = findBox(buffer, trakEnd, moovEnd, TAG_TRAK);
+        }
+        int bitrate = durationMs > 0 ? (int) ((long) size * 8 / durationMs) : 0;
+        return new AudioInfo(AudioInfo.FORMAT_M4A, durationMs, bitrate, sampleRate, channelCount,
+                false, 0, size, 0, 0, size, lastModified);
+    }
+
+    /**
+     * 在[start, end)范围内的同级box中查找type
+     *
+     * @return box的起始位置，找不到时返回-1
+     */
+    private static int findBox(ByteBuffer buffer, int start, int end, int type) {
+        int position = start;
+        while (position + 8 <= end) {
+            if (buffer.getInt(position + 4) == type) {
+                return position;
+            }
+            int next = boxEnd(buffer, position, end);
+            if (next <= position) {
+                return -1;
+            }
+            position = next;
+        }
+        return -1;
+    }
+
+    private static int boxEnd(ByteBuffer buffer, int box, int parentEnd) {
+        long size = buffer.getInt(box) & 0xFFFFFFFFL;
+        if (size == 1 && box + 16 <= parentEnd) {
+            size = buffer.getLong(box + 8);
+        } else if (size == 0) {
+            return parentEnd;
+        }
+        return (int) Math.min(parentEnd, box + size);
+    }
+
+    private static int payload(ByteBuffer buffer, int box) {
+        return box + ((buffer.getInt(box) == 1) ? 16 : 8);
+    }
+
+    private static int getIntLE(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) | ((buffer.get(offset + 1) & 0xFF) << 8)
+                | ((buffer.get(offset + 2) & 0xFF) << 16) | ((buffer.get(offset + 3) & 0xFF) << 24);
+    }
+
+    private static int getShortLE(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) | ((buffer.get(offset + 1) & 0xFF) << 8);
+    }
+}
@@ -4,42 +4,73 @@ import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.Debug;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * Created by arvinljw on 2019-11-13 17:47
  * Function：
- * Desc：mp3录音
+ * Desc：录音，默认编码为mp3，可通过{@link #setEncoder(Encoder.Factory)}切换
  */
 public class AudioRecorder {
 
-    static {
-        System.loadLibrary("lame_util");
-    }
+    /**
+     * 兼容旧版本的全局编码器，新代码请直接使用{@link LameEncoder}实例
+     */
+    private static LameEncoder globalEncoder;
 
-    public static native void init(int inSamplerate, int inChannel,
-                                   int outSamplerate, int outBitrate, int quality);
+    /**
+     * @deprecated 全局只有一个lame上下文，多个录音同时使用会互相干扰，请使用{@link LameEncoder}
+     */
+    @Deprecated
+    public static synchronized void init(int inSamplerate, int inChannel,
+                                         int outSamplerate, int outBitrate, int quality) {
+        if (globalEncoder == null) {
+            globalEncoder = new LameEncoder();
+            // 旧接口由调用方写文件，也不会回写文件头
+            globalEncoder.setWriteInfoTag(false);
+        }
+        globalEncoder.init(inSamplerate, inChannel, outSamplerate, outBitrate, quality);
+    }
 
-    public static native int encode(short[] bufferLeft, short[] bufferRight,
-                                    int samples, byte[] mp3buf);
+    /**
+     * @deprecated 请使用{@link LameEncoder#encode(short[], short[], int, byte[])}
+     */
+    @Deprecated
+    public static synchronized int encode(short[] bufferLeft, short[] bufferRight,
+                                          int samples, byte[] mp3buf) {
+        return globalEncoder != null ? globalEncoder.encode(bufferLeft, bufferRight, samples, mp3buf) : -1;
+    }
 
-    public static native int flush(byte[] mp3buf);
+    /**
+     * @deprecated 请使用{@link LameEncoder#flush(byte[])}
+     */
+    @Deprecated
+    public static synchronized int flush(byte[] mp3buf) {
+        return globalEncoder != null ? globalEncoder.flush(mp3buf) : 0;
+    }
 
-    public static native void close();
+    /**
+     * @deprecated 请使用{@link LameEncoder#close()}
+     */
+    @Deprecated
+    public static synchronized void close() {
+        if (globalEncoder != null) {
+            globalEncoder.close();
+        }
+    }
 
     private static final String RECORD_DIR = "/audioHelper/records/";
 
@@ -55,39 +86,116 @@ public class AudioRecorder {
      */
     private static final int FRAME_COUNT = 160;
 
+    /**
+     * 编码队列的槽位数，每个槽位可容纳一次read的数据
+     */
+    private static final int DEFAULT_QUEUE_SLOT_COUNT = 32;
+    /**
+     * 批量编码时一次最多合并的槽位数
+     */
+    private static final int MAX_BATCH_SLOTS = 8;
+
     private static final int DEFAULT_LAME_MP3_QUALITY = 7;
     /**
      * 与DEFAULT_CHANNEL_CONFIG相关，因为是mono单声，所以是1
      */
     private static final int DEFAULT_LAME_IN_CHANNEL = 1;
+    private static final int MAX_CHANNEL_COUNT = 2;
     /**
      * Encoded bit rate. MP3 file will be encoded with bit rate 32kbps
      */
     private static final int DEFAULT_LAME_MP3_BIT_RATE = 32;
 
     private static final int MSG_VOLUME = 0x1001;
+    private static final int MSG_RECORD_FINISH = 0x1003;
+    /**
+     * 默认每秒回调30次音量
+     */
+    private static final int DEFAULT_VOLUME_UPDATE_RATE = 30;
 
     public static final int MAX_VOLUME = 2000;
 
+    /**
+     * 以下为{@link RecordCallback#onRecordFinish}中的停止原因
+     */
+    public static final int STOP_REASON_USER = 0;
+    public static final int STOP_REASON_MAX_DURATION = 1;
+    public static final int STOP_REASON_MAX_SIZE = 2;
+    public static final int STOP_REASON_SILENCE = 3;
+
+    /**
+     * 没有设置静音检测时，低于该电平的块视为静音
+     */
+    private static final float DEFAULT_SILENCE_DBFS = -50f;
+
     private String recordFileDir;
     private File recordFile;
 
-    private AudioRecord audioRecord;
-    private boolean isRecording;
-    private int bufferSize;
-    private short[] pcmBuffer;
+    /**
+     * 当前这次录音，每次prepare创建新的实例，停止后保留到下一次prepare
+     */
+    private volatile CaptureSession session;
+    /**
+     * 只在主线程中使用，最近一次开始采集的录音
+     */
+    private CaptureSession lastStartedSession;
 
     private Handler handler;
-    private ExecutorService executorService;
+    private AudioThreads audioThreads;
+    private volatile boolean destroyed;
+    private boolean threadsReleased;
+    /**
+     * 已经启动还没结束的编码器数，销毁后要等它们全部结束才能释放编码线程，否则排队的数据和结束消息会被丢掉
+     */
+    private int liveEncoders;
     private AudioEncoder recordEncoder;
+    private int queueSlotCount = DEFAULT_QUEUE_SLOT_COUNT;
+    private PcmRingBuffer.OverrunPolicy overrunPolicy = PcmRingBuffer.OverrunPolicy.BLOCK;
+    private boolean batchEncode;
+    private int minBatchFrames;
+    private Encoder.Factory encoderFactory = LameEncoder.FACTORY;
+    /**
+     * 本次录音的编码器，每次prepare时重新创建，交给AudioEncoder后由它负责释放
+     */
+    private Encoder encoder;
+    private boolean directBuffer;
+    private OutputSink.Factory outputSinkFactory = FileSink.FACTORY;
+    private StreamingSink.Listener streamListener;
+    private int sampleRate = DEFAULT_SAMPLING_RATE;
+    private int channelCount = DEFAULT_LAME_IN_CHANNEL;
 
     private VolumeCallback volumeCallback;
+    private int volumeUpdateRate = DEFAULT_VOLUME_UPDATE_RATE;
+    private final AtomicBoolean volumePending = new AtomicBoolean();
+
+    private volatile boolean prepared;
+    private int preRollMillis;
+
+    private VoiceActivityDetector voiceActivityDetector;
+
+    private boolean waveformIndex;
+    private int retainPcmMillis;
+    private volatile PcmClip lastPcm;
+    private AudioMetrics metrics;
+    /**
+     * 最近一次发出音量消息的时间，音量消息合并发送，同一时刻最多一条
+     */
+    private volatile long volumePostNanos;
+
+    private RecordCallback recordCallback;
+    private long segmentMillis;
+    private long segmentBytes;
+    private SegmentedSink.Listener segmentListener;
+    private long maxDurationMillis;
+    private long maxFileBytes;
+    private int silenceTimeoutMillis;
+    private float silenceDbfs = DEFAULT_SILENCE_DBFS;
 
     public AudioRecorder(Context context) {
         recordFileDir = getDiskCachePath(context) + RECORD_DIR;
 
         initHandler();
-        executorService = Executors.newCachedThreadPool();
+        audioThreads = AudioThreads.acquire();
     }
 
     @SuppressWarnings("HandlerLeak")
@@ -105,12 +213,306 @@ public class AudioRecorder {
         this.volumeCallback = volumeCallback;
     }
 
+    /**
+     * 设置每秒回调几次音量，默认30，下次startRecord时生效
+     */
+    public void setVolumeUpdateRate(int volumeUpdateRate) {
+        this.volumeUpdateRate = volumeUpdateRate;
+    }
+
+    /**
+     * 设置编码队列的槽位数，下次startRecord时生效
+     */
+    public void setQueueSlotCount(int queueSlotCount) {
+        this.queueSlotCount = queueSlotCount;
+    }
+
+    /**
+     * 设置编码跟不上录音时的处理策略，下次startRecord时生效
+     */
+    public void setOverrunPolicy(PcmRingBuffer.OverrunPolicy overrunPolicy) {
+        this.overrunPolicy = overrunPolicy;
+    }
+
+    /**
+     * 设置采样率，默认44100，下次startRecord时生效
+     * <p>
+     * 只有44100Hz能保证所有设备都支持
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * 设置声道数，1为单声道（默认），2为立体声，下次startRecord时生效
+     */
+    public void setChannelCount(int channelCount) {
+        if (channelCount < 1 || channelCount > MAX_CHANNEL_COUNT) {
+            throw new IllegalArgumentException("unsupported channel count: " + channelCount);
+        }
+        this.channelCount = channelCount;
+    }
+
+    /**
+     * 设置编码器，默认为{@link LameEncoder#FACTORY}，下次startRecord时生效
+     * <p>
+     * 可选{@link LameEncoder#FACTORY}（mp3）、{@link AacEncoder#FACTORY}（硬件AAC）或{@link WavEncoder#FACTORY}（不压缩），
+     * 录音文件的扩展名由编码器决定。每次录音都会创建新的编码器，上一次录音还在编码线程中收尾时不会互相影响。
+     */
+    public void setEncoder(Encoder.Factory encoderFactory) {
+        this.encoderFactory = encoderFactory;
+    }
+
+    /**
+     * 设置是否使用direct ByteBuffer通路，下次startRecord时生效
+     * <p>
+     * 开启后AudioRecord直接读到direct内存，native编码通过地址访问输入输出，结果以ByteBuffer写入输出，
+     * 整条通路不再有Java堆数组的拷贝和JNI数组的pin操作。
+     */
+    public void setDirectBuffer(boolean directBuffer) {
+        this.directBuffer = directBuffer;
+    }
+
+    /**
+     * 设置编码结果的输出，默认为带64KB写缓冲、至少每秒写盘一次的{@link FileSink}，下次startRecord时生效
+     * <p>
+     * 可通过自定义Factory调整FileSink的缓冲大小、写盘间隔和fsync策略
+     */
+    public void setOutputSinkFactory(OutputSink.Factory outputSinkFactory) {
+        this.outputSinkFactory = outputSinkFactory;
+    }
+
+    /**
+     * 设置流式输出，下次startRecord时生效，传null关闭
+     * <p>
+     * 开启后编码结果在写文件的同时按帧边界切块，带上序号和时间戳实时回调，可以边录边上传。
+     * 回调在所有录音共用的编码线程中执行，不能阻塞，网络写入会拖慢所有录音的编码，BLOCK策略下还会卡住采集；
+     * 需要写入OutputStream或socket时使用{@link StreamingSink.ChannelListener}，它在单独的上传线程中写入。
+     */
+    public void setStreamListener(StreamingSink.Listener streamListener) {
+        this.streamListener = streamListener;
+    }
+
+    /**
+     * 设置预录时长，默认0不预录，下次prepare时生效
+     * <p>
+     * 大于0时{@link #prepare()}之后就开始采集，只在内存中保留最近preRollMillis毫秒的数据，
+     * startRecord时这段数据会写在录音的开头，按下按钮之前说的话不会被截掉。
+     */
+    public void setPreRollMillis(int preRollMillis) {
+        this.preRollMillis = preRollMillis;
+    }
+
+    public void setRecordCallback(RecordCallback recordCallback) {
+        this.recordCallback = recordCallback;
+    }
+
+    /**
+     * 设置最长录音时长，默认0不限制，下次prepare时生效
+     * <p>
+     * 按采集到的采样数计算，达到时在录音线程中截断最后一块并自动停止，误差不超过一个采样
+     */
+    public void setMaxDurationMillis(long maxDurationMillis) {
+        this.maxDurationMillis = maxDurationMillis;
+    }
+
+    /**
+     * 设置录音文件的最大字节数，默认0不限制，下次prepare时生效
+     * <p>
+     * 录音线程每读一块检查一次已写入的字节数加上队列中未编码数据的估算大小，超过时自动停止
+     */
+    public void setMaxFileBytes(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * 设置连续静音多久后自动停止，默认0不停止，下次prepare时生效
+     * <p>
+     * 设置了{@link VoiceActivityDetector}时按它的判断，否则按单块电平是否低于silenceDbfs判断
+     *
+     * @param silenceDbfs 没有设置VoiceActivityDetector时的静音电平，默认-50dBFS
+     */
+    public void setSilenceTimeout(int silenceTimeoutMillis, float silenceDbfs) {
+        this.silenceTimeoutMillis = silenceTimeoutMillis;
+        this.silenceDbfs = silenceDbfs;
+    }
+
+    /**
+     * 设置分段录音，下次prepare时生效，两个参数都为0时关闭（默认）
+     * <p>
+     * 开启后按时长或大小切换到新的分段文件，每个分段写完立即回调listener，可以边录边上传；
+     * 录音中断时最多丢失正在写的一个分段中未落盘的部分。getRecordFile返回的文件不会被写入，
+     * 分段的清单为{@link SegmentedSink#getManifestFile(File)}，
+     * 需要完整文件时调用{@link SegmentedSink#concat(File, File)}拼接。
+     *
+     * @param segmentMillis 每个分段的最长时长，0表示不按时长切换
+     * @param segmentBytes  每个分段的最大字节数，0表示不按大小切换
+     */
+    public void setSegmented(long segmentMillis, long segmentBytes, SegmentedSink.Listener listener) {
+        this.segmentMillis = segmentMillis;
+        this.segmentBytes = segmentBytes;
+        this.segmentListener = listener;
+    }
+
+    /**
+     * 设置各阶段耗时和计数的统计，默认null不统计，下次prepare时生效
+     * <p>
+     * 统计AudioRecord.read、native编码、写文件和音量回调的耗时分布，以及采集帧数、写入字节数、队列溢出次数等，
+     * 通过{@link AudioMetrics#snapshot()}读取。
+     */
+    public void setMetrics(AudioMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 设置在内存中保留录音的PCM，最长maxMillis毫秒，默认0不保留，下次prepare时生效
+     * <p>
+     * 保留的是实际编码的数据，录音结束后通过{@link #getLastPcm()}取得，交给{@link PcmPlayer}可以立即回放，
+     * 不需要解码刚写好的文件。录音超过maxMillis时不保留，内存按实际录音长度逐步扩大。
+     */
+    public void setRetainPcm(int maxMillis) {
+        this.retainPcmMillis = maxMillis;
+    }
+
+    /**
+     * @return 最近一次录音结束后保留的PCM，没有开启{@link #setRetainPcm(int)}、录音超出时长或还没有结束时返回null
+     */
+    public PcmClip getLastPcm() {
+        return lastPcm;
+    }
+
+    /**
+     * 设置是否在录音时生成波形索引，默认false，下次prepare时生效
+     * <p>
+     * 编码线程在编码前顺便统计，只统计实际写入文件的数据，静音检测跳过的部分不计入。
+     * 录音正常结束后索引写入{@link #getWaveformFile()}，用{@link WaveformIndex#read(File)}读取，
+     * 画波形时不需要解码录音文件。
+     */
+    public void setWaveformIndex(boolean waveformIndex) {
+        this.waveformIndex = waveformIndex;
+    }
+
+    /**
+     * 设置静音检测，默认null不检测，下次prepare时生效
+     * <p>
+     * {@link VoiceActivityDetector.Mode#TRIM}和{@link VoiceActivityDetector.Mode#COMPRESS}时静音部分不进入编码队列，
+     * 既不编码也不写盘；跳过的帧数可以从detector中读取。
+     */
+    public void setVoiceActivityDetector(VoiceActivityDetector voiceActivityDetector) {
+        this.voiceActivityDetector = voiceActivityDetector;
+    }
+
+    /**
+     * @return 本次录音的输出，可以从{@link FileSink}中读取写入字节数、系统调用次数和写盘耗时；
+     * 开启流式输出时为{@link TeeSink}
+     */
+    public OutputSink getOutputSink() {
+        return recordEncoder != null ? recordEncoder.sink : null;
+    }
+
+    /**
+     * 设置批量编码模式，下次startRecord时生效
+     * <p>
+     * 开启后每次唤醒会取出队列中所有可用的数据，合并成一次native编码和一次文件写入，
+     * 减少JNI调用和系统调用的次数；关闭时每次周期通知只编码一个槽位。
+     *
+     * @param minBatchFrames 排队数据不足该帧数时本次唤醒不编码，停止录音时不受此限制
+     */
+    public void setBatchEncode(boolean batchEncode, int minBatchFrames) {
+        this.batchEncode = batchEncode;
+        this.minBatchFrames = minBatchFrames;
+    }
+
+    /**
+     * @return 本次录音调用native编码的次数
+     */
+    public int getEncodeCallCount() {
+        return recordEncoder != null ? recordEncoder.encodeCallCount : 0;
+    }
+
+    /**
+     * @return 本次录音向输出写入编码结果的次数，写缓冲合并后的系统调用次数见{@link FileSink#getSyscallCount()}
+     */
+    public int getEncodeWriteCount() {
+        return recordEncoder != null ? recordEncoder.writeCount : 0;
+    }
+
+    /**
+     * @return 每编码1秒音频所消耗的编码线程CPU时间，单位毫秒；只有设置了{@link #setMetrics(AudioMetrics)}时才统计，否则为0
+     */
+    public float getEncodeCpuMillisPerSecond() {
+        if (recordEncoder == null || recordEncoder.encodedSamples <= 0) {
+            return 0;
+        }
+        float seconds = recordEncoder.encodedSamples
+                / (float) (recordEncoder.sampleRate * recordEncoder.channelCount);
+        return recordEncoder.encodeCpuNanos / 1000000f / seconds;
+    }
+
+    /**
+     * @return 当前排队等待编码的槽位数
+     */
+    public int getQueueDepth() {
+        return recordEncoder != null ? recordEncoder.ringBuffer.size() : 0;
+    }
+
+    /**
+     * @return 本次录音出现过的最大队列深度
+     */
+    public int getQueueHighWaterMark() {
+        return recordEncoder != null ? recordEncoder.ringBuffer.getHighWaterMark() : 0;
+    }
+
+    /**
+     * @return 本次录音因队列溢出而丢弃的帧数
+     */
+    public long getDroppedFrames() {
+        return recordEncoder != null
+                ? recordEncoder.ringBuffer.getDroppedSamples() / recordEncoder.channelCount : 0;
+    }
+
+    /**
+     * @return 本次录音中录音线程因队列已满被阻塞的次数
+     */
+    public int getStallCount() {
+        return recordEncoder != null ? recordEncoder.ringBuffer.getStallCount() : 0;
+    }
+
+    /**
+     * @return 编码落后于录音的时长，即排队中的数据对应的毫秒数
+     */
+    public long getEncoderLagMillis() {
+        if (recordEncoder == null) {
+            return 0;
+        }
+        long pendingFrames = recordEncoder.ringBuffer.getPendingSamples() / recordEncoder.channelCount;
+        return pendingFrames * 1000 / recordEncoder.sampleRate;
+    }
+
+    /**
+     * @return 本次录音从调用startRecord到第一块PCM进入编码队列的耗时，单位毫秒，还没有数据时返回-1；
+     * 提前{@link #prepare()}可以省掉创建AudioRecord、编码器和文件的时间，开启预录时接近0
+     */
+    public float getStartLatencyMillis() {
+        CaptureSession session = this.session;
+        long latency = session != null ? session.startLatencyNanos : -1;
+        return latency < 0 ? -1 : latency / 1000000f;
+    }
+
     public File getRecordFile() {
         return recordFile;
     }
 
+    /**
+     * @return 录音文件对应的波形索引文件，只有开启{@link #setWaveformIndex(boolean)}时才会生成
+     */
+    public File getWaveformFile() {
+        return recordFile != null ? WaveformIndex.getIndexFile(recordFile) : null;
+    }
+
     public boolean isRecording() {
-        return isRecording;
+        CaptureSession session = this.session;
+        return session != null && session.isRecording();
     }
 
     private static String getDiskCachePath(Context context) {
@@ -122,20 +524,120 @@ public class AudioRecorder {
         }
     }
 
-    public void startRecord() {
+    /**
+     * 提前创建好录音文件、AudioRecord和编码器，之后的startRecord只需要开始采集
+     * <p>
+     * 可在进入录音页面或手指按下时调用，不调用时startRecord会自动调用；
+     * 准备好但不需要录音时调用stopRecord释放，不会留下录音文件。
+     */
+    public void prepare() {
+        if (destroyed || prepared || isRecording()) {
+            return;
+        }
+        encoder = encoderFactory.create();
         initRecordFile();
 
+        CaptureSession session = new CaptureSession();
         try {
-            initAudioRecord();
+            initAudioRecord(session);
+            initPreRoll(session);
+
+            initEncoder(session);
+            this.session = session;
+            prepared = true;
+            if (session.preRollBuffer != null) {
+                session.start();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            releaseFailed(session, e);
+        }
+    }
 
-            record();
+    public void startRecord() {
+        if (destroyed || isRecording()) {
+            return;
+        }
+        long requestNanos = System.nanoTime();
+        prepare();
+        if (!prepared) {
+            return;
+        }
+        prepared = false;
+        CaptureSession session = this.session;
+        session.startRequestNanos = requestNanos;
+        // 录音线程看到recordRequested之后才会读取startRequestNanos
+        session.recordRequested = true;
+
+        try {
+            if (!session.started) {
+                session.start();
+            }
         } catch (Exception e) {
             e.printStackTrace();
+            releaseFailed(session, e);
         }
     }
 
     public void stopRecord() {
-        isRecording = false;
+        CaptureSession session = this.session;
+        if (session == null) {
+            return;
+        }
+        if (prepared) {
+            prepared = false;
+            if (!session.started) {
+                releasePrepared(session);
+                return;
+            }
+        }
+        // 由录音线程停止采集，只预录没有开始录音时丢弃
+        session.stopped = true;
+    }
+
+    /**
+     * 释放prepare之后没有开始录音的AudioRecord和编码器，并删除录音文件
+     */
+    private void releasePrepared(CaptureSession session) {
+        session.stopped = true;
+        try {
+            session.audioRecord.release();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        session.recordEncoder.stopEncode(true);
+    }
+
+    /**
+     * prepare或开始采集失败时回滚，此时录音循环没有运行：恢复状态，释放AudioRecord和编码器并删除录音文件，
+     * 错误通过{@link AudioMetrics#error(int, Throwable)}报告
+     */
+    private void releaseFailed(CaptureSession session, Exception e) {
+        prepared = false;
+        session.recordRequested = false;
+        session.stopped = true;
+        if (this.session == session) {
+            this.session = null;
+        }
+        if (session.audioRecord != null) {
+            try {
+                session.audioRecord.release();
+            } catch (Exception releaseError) {
+                releaseError.printStackTrace();
+            }
+        }
+        if (session.recordEncoder != null) {
+            // 丢弃时由编码线程关闭输出和编码器并删除文件
+            session.recordEncoder.stopEncode(true);
+        } else {
+            encoder.close();
+            if (recordFile != null) {
+                recordFile.delete();
+            }
+        }
+        if (metrics != null) {
+            metrics.error(AudioMetrics.STAGE_READ, e);
+        }
     }
 
     private void initRecordFile() {
@@ -155,15 +657,15 @@ public class AudioRecorder {
 
     private String generateRecordFilePath() {
         // 这里最好再根据用户id再细分一下目录
-        return recordFileDir + System.currentTimeMillis() + ".mp3";
+        return recordFileDir + System.currentTimeMillis() + "." + encoder.getFileExtension();
     }
 
-    private void initAudioRecord() {
-        bufferSize = AudioRecord.getMinBufferSize(DEFAULT_SAMPLING_RATE,
-                DEFAULT_CHANNEL_CONFIG, DEFAULT_AUDIO_FORMAT);
+    private void initAudioRecord(CaptureSession session) {
+        int channelConfig = channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : DEFAULT_CHANNEL_CONFIG;
+        int bufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, DEFAULT_AUDIO_FORMAT);
 
-        //与DEFAULT_AUDIO_FORMAT对应
-        int bytesPerFrame = 2;
+        //与DEFAULT_AUDIO_FORMAT对应，立体声时左右声道交错存放
+        int bytesPerFrame = 2 * channelCount;
 
         //使能被整除，方便下面的周期性通知
         int frameSize = bufferSize / bytesPerFrame;
@@ -172,90 +674,446 @@ public class AudioRecorder {
             bufferSize = frameSize * bytesPerFrame;
         }
 
-        pcmBuffer = new short[bufferSize];
+        session.bufferSize = bufferSize;
+        session.channelCount = channelCount;
+        session.directBuffer = directBuffer;
+        if (directBuffer) {
+            session.directPcmBuffer = ByteBuffer.allocateDirect(bufferSize * 2).order(ByteOrder.nativeOrder());
+        } else {
+            session.pcmBuffer = new short[bufferSize];
+        }
+
+        session.audioRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, sampleRate,
+                channelConfig, DEFAULT_AUDIO_FORMAT, bufferSize);
 
-        audioRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, DEFAULT_SAMPLING_RATE,
-                DEFAULT_CHANNEL_CONFIG, DEFAULT_AUDIO_FORMAT, bufferSize);
+        encoder.init(sampleRate, channelCount, DEFAULT_LAME_MP3_BIT_RATE, DEFAULT_LAME_MP3_QUALITY);
 
-        init(DEFAULT_SAMPLING_RATE, DEFAULT_LAME_IN_CHANNEL, DEFAULT_SAMPLING_RATE,
-                DEFAULT_LAME_MP3_BIT_RATE, DEFAULT_LAME_MP3_QUALITY);
+        session.volumeMeter = new VolumeMeter(sampleRate, channelCount, volumeUpdateRate);
+        session.metrics = metrics;
+        session.maxDurationFrames = maxDurationMillis * sampleRate / 1000;
+        session.maxFileBytes = maxFileBytes;
+        session.silenceTimeoutFrames = (long) silenceTimeoutMillis * sampleRate / 1000;
+        session.silenceDbfs = silenceDbfs;
+        session.sampleRate = sampleRate;
+        session.detector = voiceActivityDetector;
+        session.detectorSpillFile = new File(recordFile.getPath() + ".vad");
     }
 
-    private void record() {
-        recordEncoder = new AudioEncoder(recordFile, bufferSize);
-        recordEncoder.start();
+    private boolean isSegmented() {
+        return segmentMillis > 0 || segmentBytes > 0;
+    }
 
-        audioRecord.setRecordPositionUpdateListener(recordEncoder, recordEncoder.getHandler());
-        audioRecord.setPositionNotificationPeriod(FRAME_COUNT);
+    private OutputSink.Factory createOutputSinkFactory() {
+        final OutputSink.Factory fileSinkFactory = isSegmented()
+                ? SegmentedSink.factory(encoder.getFileExtension(), sampleRate, channelCount,
+                segmentMillis, segmentBytes, segmentListener)
+                : outputSinkFactory;
+        if (streamListener == null) {
+            return fileSinkFactory;
+        }
+        final StreamingSink streamingSink = new StreamingSink(encoder.getFileExtension(),
+                sampleRate, channelCount, streamListener);
+        return new OutputSink.Factory() {
+            @Override
+            public OutputSink create(File file) throws IOException {
+                return new TeeSink(fileSinkFactory.create(file), streamingSink);
+            }
+        };
+    }
 
-        isRecording = true;
-        audioRecord.startRecording();
+    private void initPreRoll(CaptureSession session) {
+        if (preRollMillis <= 0) {
+            return;
+        }
+        int bufferSize = session.bufferSize;
+        long preRollSamples = (long) sampleRate * channelCount * preRollMillis / 1000;
+        session.preRollSlots = (int) ((preRollSamples + bufferSize - 1) / bufferSize);
+        // 满了以后丢掉最旧的一块，总是保留最近的数据
+        session.preRollBuffer = new PcmRingBuffer(session.preRollSlots, bufferSize,
+                PcmRingBuffer.OverrunPolicy.DROP_OLDEST, null);
+    }
 
-        executorService.execute(new Runnable() {
+    private void initEncoder(CaptureSession session) {
+        recordEncoder = new AudioEncoder(audioThreads.getEncodeLooper(), recordFile, createOutputSinkFactory(),
+                encoder, sampleRate, channelCount, session.bufferSize, queueSlotCount, overrunPolicy);
+        if (batchEncode) {
+            recordEncoder.setBatchEncode(MAX_BATCH_SLOTS, minBatchFrames * channelCount);
+        }
+        recordEncoder.setDirectBuffer(directBuffer);
+        recordEncoder.setMetrics(metrics);
+        lastPcm = null;
+        if (retainPcmMillis > 0) {
+            recordEncoder.setRetainPcm((int) Math.min(Integer.MAX_VALUE,
+                    (long) sampleRate * channelCount * retainPcmMillis / 1000));
+        }
+        if (waveformIndex) {
+            recordEncoder.setWaveformBuilder(new WaveformIndex.Builder(sampleRate, channelCount));
+        }
+        final AudioEncoder finishEncoder = recordEncoder;
+        final boolean segmented = isSegmented();
+        recordEncoder.setFinishCallback(new Runnable() {
             @Override
             public void run() {
-                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-                while (isRecording) {
-                    int readSize = audioRecord.read(pcmBuffer, 0, bufferSize);
-                    if (readSize > 0) {
-                        recordEncoder.addTask(pcmBuffer, readSize);
+                if (!finishEncoder.isDiscarded()) {
+                    lastPcm = finishEncoder.getRetainedPcm();
+                    postRecordFinish(finishEncoder);
+                } else if (segmented) {
+                    SegmentedSink.delete(SegmentedSink.getManifestFile(finishEncoder.file));
+                }
+                onEncoderFinished();
+            }
+        });
+        recordEncoder.start();
+        onEncoderStarted();
+        session.recordEncoder = recordEncoder;
 
-                        if (handler != null) {
-                            int volume = calculateRealVolume(pcmBuffer, readSize);
-                            Message msg = handler.obtainMessage(MSG_VOLUME);
-                            msg.arg1 = volume;
-                            handler.sendMessage(msg);
-                        }
-                    }
+        session.audioRecord.setRecordPositionUpdateListener(recordEncoder, recordEncoder.getHandler());
+        session.audioRecord.setPositionNotificationPeriod(FRAME_COUNT);
+    }
+
+    /**
+     * 一次录音在录音线程中用到的全部状态，每次prepare创建一个新的实例
+     * <p>
+     * stopRecord之后马上startRecord时，上一次的录音循环可能还在读最后一块，
+     * 两次录音各自使用自己的停止标记、AudioRecord、缓冲和计数，互不影响。
+     */
+    private class CaptureSession implements Runnable {
+        AudioRecord audioRecord;
+        AudioEncoder recordEncoder;
+        int bufferSize;
+        int sampleRate;
+        int channelCount;
+        boolean directBuffer;
+        short[] pcmBuffer;
+        ByteBuffer directPcmBuffer;
+        VolumeMeter volumeMeter;
+        PcmRingBuffer preRollBuffer;
+        int preRollSlots;
+        /**
+         * 本次录音使用的detector，录音中调用setVoiceActivityDetector不影响本次录音
+         * <p>
+         * detector在前后两次录音间共用，start会重置它的状态，所以在录音线程中等上一次录音循环退出后才调用。
+         */
+        VoiceActivityDetector detector;
+        File detectorSpillFile;
+        /**
+         * 上一次开始采集的录音，录音线程等待它退出后置为null
+         */
+        volatile CaptureSession previous;
+        /**
+         * 录音循环退出，或者没能开始采集时计数
+         */
+        final CountDownLatch exited = new CountDownLatch(1);
+        AudioMetrics metrics;
+        long maxDurationFrames;
+        long maxFileBytes;
+        long silenceTimeoutFrames;
+        float silenceDbfs;
+        /**
+         * 只在主线程中使用，录音循环是否已经提交
+         */
+        boolean started;
+        long startRequestNanos;
+
+        // 以下字段只在录音线程中使用
+        private long recordedFrames;
+        private long silentFrames;
+
+        volatile long startLatencyNanos = -1;
+        volatile int autoStopReason = STOP_REASON_USER;
+        /**
+         * 调用了startRecord，在这之前只预录
+         */
+        volatile boolean recordRequested;
+        /**
+         * 录音循环在下一次检查时退出
+         */
+        volatile boolean stopped;
+
+        boolean isRecording() {
+            return recordRequested && !stopped;
+        }
+
+        /**
+         * 开始采集，预录时数据先进入preRollBuffer，recordRequested之后再进入编码队列
+         */
+        void start() {
+            started = true;
+            previous = lastStartedSession;
+            lastStartedSession = this;
+            try {
+                audioRecord.startRecording();
+                // 录音线程已经是URGENT_AUDIO优先级，见AudioThreads
+                audioThreads.getCaptureExecutor().execute(this);
+            } catch (RuntimeException e) {
+                exited.countDown();
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (detector != null) {
+                    startDetector();
                 }
+                capture();
+            } finally {
+                exited.countDown();
+            }
+        }
 
+        /**
+         * 上一次录音如果用的是同一个detector，等它的录音循环调用完finish再重置
+         */
+        private void startDetector() {
+            CaptureSession previous = this.previous;
+            this.previous = null;
+            if (previous != null && previous.detector == detector) {
                 try {
-                    audioRecord.stop();
-                    audioRecord.release();
-                    audioRecord = null;
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    previous.exited.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            detector.start(sampleRate, channelCount, bufferSize, detectorSpillFile);
+        }
+
+        private void capture() {
+            boolean recording = false;
+            while (true) {
+                // 先检查recordRequested，startRecord之后马上stopRecord时也保留已经开始的录音
+                if (!recording && recordRequested) {
+                    recording = true;
+                    if (preRollBuffer != null) {
+                        drainPreRoll();
+                    }
+                }
+                if (stopped) {
+                    break;
+                }
+                long readStart = metrics != null ? System.nanoTime() : 0;
+                int readSize = readPcm();
+                if (metrics != null) {
+                    metrics.record(AudioMetrics.STAGE_READ, System.nanoTime() - readStart);
+                    if (readSize > 0) {
+                        metrics.add(AudioMetrics.COUNTER_FRAMES_CAPTURED, readSize / channelCount);
+                    } else if (readSize < 0) {
+                        metrics.add(AudioMetrics.COUNTER_ERRORS, 1);
+                    }
+                }
+                if (readSize <= 0) {
+                    continue;
                 }
+                if (recording) {
+                    handlePcm(readSize);
+                } else if (directBuffer) {
+                    preRollBuffer.write(directPcmBuffer, readSize);
+                } else {
+                    preRollBuffer.write(pcmBuffer, 0, readSize);
+                }
+            }
 
-                recordEncoder.stopEncode();
+            try {
+                audioRecord.stop();
+                audioRecord.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (metrics != null) {
+                    metrics.error(AudioMetrics.STAGE_READ, e);
+                }
             }
-        });
+
+            if (recording && detector != null) {
+                detector.finish(recordEncoder);
+            }
+            recordEncoder.setStopReason(autoStopReason);
+            // 只预录没有开始录音时丢弃
+            recordEncoder.stopEncode(!recording);
+        }
+
+        /**
+         * 把预录的数据按顺序放入编码队列，超出预录时长的部分丢掉
+         */
+        private void drainPreRoll() {
+            int skipSlots = preRollBuffer.size() - preRollSlots;
+            while (true) {
+                int readSize;
+                if (directBuffer) {
+                    directPcmBuffer.clear();
+                    readSize = preRollBuffer.read(directPcmBuffer);
+                    directPcmBuffer.position(0);
+                } else {
+                    readSize = preRollBuffer.read(pcmBuffer, 0);
+                }
+                if (readSize <= 0) {
+                    break;
+                }
+                if (skipSlots-- > 0) {
+                    continue;
+                }
+                if (autoStopReason == STOP_REASON_USER) {
+                    handlePcm(readSize);
+                }
+            }
+            preRollBuffer.close();
+        }
+
+        /**
+         * 读取一块PCM到pcmBuffer或directPcmBuffer
+         *
+         * @return 读到的采样数
+         */
+        private int readPcm() {
+            if (directBuffer) {
+                directPcmBuffer.clear();
+                int readBytes = audioRecord.read(directPcmBuffer, bufferSize * 2);
+                return readBytes > 0 ? readBytes / 2 : readBytes;
+            }
+            return audioRecord.read(pcmBuffer, 0, bufferSize);
+        }
+
+        /**
+         * 统计音量后把数据放入编码队列，设置了静音检测时由detector决定是否编码，
+         * 最后检查各项限制，达到时自动停止
+         */
+        private void handlePcm(int readSize) {
+            if (startLatencyNanos < 0) {
+                startLatencyNanos = System.nanoTime() - startRequestNanos;
+            }
+            if (maxDurationFrames > 0) {
+                readSize = (int) Math.min(readSize, (maxDurationFrames - recordedFrames) * channelCount);
+            }
+            boolean volumeUpdated;
+            if (directBuffer) {
+                volumeUpdated = volumeMeter.process(directPcmBuffer, readSize);
+                if (detector != null) {
+                    detector.process(directPcmBuffer, readSize, volumeMeter.getChunkSumSquares(),
+                            volumeMeter.getChunkZeroCrossings(), recordEncoder);
+                } else {
+                    recordEncoder.addTask(directPcmBuffer, readSize);
+                }
+            } else {
+                volumeUpdated = volumeMeter.process(pcmBuffer, 0, readSize);
+                if (detector != null) {
+                    detector.process(pcmBuffer, readSize, volumeMeter.getChunkSumSquares(),
+                            volumeMeter.getChunkZeroCrossings(), recordEncoder);
+                } else {
+                    recordEncoder.addTask(pcmBuffer, readSize);
+                }
+            }
+            if (volumeUpdated && session == this) {
+                postVolume();
+            }
+            recordedFrames += readSize / channelCount;
+            checkLimits(readSize);
+        }
+
+        private void checkLimits(int readSize) {
+            if (silenceTimeoutFrames > 0) {
+                boolean silent;
+                if (detector != null) {
+                    silent = !detector.isSpeech();
+                } else {
+                    long sumSquares = volumeMeter.getChunkSumSquares();
+                    silent = VolumeMeter.toDbfs((int) Math.sqrt((double) sumSquares / Math.max(1, readSize))) < silenceDbfs;
+                }
+                silentFrames = silent ? silentFrames + readSize / channelCount : 0;
+            }
+            if (maxDurationFrames > 0 && recordedFrames >= maxDurationFrames) {
+                autoStop(STOP_REASON_MAX_DURATION);
+            } else if (maxFileBytes > 0 && recordEncoder.estimateOutputBytes() >= maxFileBytes) {
+                autoStop(STOP_REASON_MAX_SIZE);
+            } else if (silenceTimeoutFrames > 0 && silentFrames >= silenceTimeoutFrames) {
+                autoStop(STOP_REASON_SILENCE);
+            }
+        }
+
+        /**
+         * 效果与stopRecord相同，录音循环在下一次检查时退出
+         */
+        private void autoStop(int reason) {
+            if (autoStopReason == STOP_REASON_USER) {
+                autoStopReason = reason;
+            }
+            stopped = true;
+        }
     }
 
     /**
-     * 此计算方法来自samsung开发范例
-     *
-     * @param buffer   buffer
-     * @param readSize readSize
+     * 编码线程调用，文件写完后在主线程回调
      */
-    private int calculateRealVolume(short[] buffer, int readSize) {
-        double sum = 0;
-        for (int i = 0; i < readSize; i++) {
-            // 这里没有做运算的优化，为了更加清晰的展示代码
-            sum += buffer[i] * buffer[i];
+    private void postRecordFinish(AudioEncoder recordEncoder) {
+        Handler handler = this.handler;
+        if (handler != null && recordCallback != null) {
+            handler.obtainMessage(MSG_RECORD_FINISH, recordEncoder.getStopReason(),
+                    (int) Math.min(Integer.MAX_VALUE, recordEncoder.getEncodedMillis()), recordEncoder.file)
+                    .sendToTarget();
         }
-        if (readSize > 0) {
-            double amplitude = sum / readSize;
-            return (int) Math.sqrt(amplitude);
+    }
+
+    /**
+     * 合并音量更新，主线程还没处理上一次时不再发送新消息，处理时总是读取最新的值
+     */
+    private void postVolume() {
+        Handler handler = this.handler;
+        if (handler != null && volumeCallback != null && volumePending.compareAndSet(false, true)) {
+            volumePostNanos = System.nanoTime();
+            handler.sendEmptyMessage(MSG_VOLUME);
         }
-        return 0;
     }
 
     public void handMessage(Message msg) {
         if (msg.what == MSG_VOLUME) {
-            int volume = Math.min(msg.arg1, MAX_VOLUME);
-            if (volumeCallback != null) {
-                volumeCallback.volume(volume, MAX_VOLUME);
+            volumePending.set(false);
+            CaptureSession session = this.session;
+            VolumeMeter meter = session != null ? session.volumeMeter : null;
+            if (volumeCallback != null && meter != null) {
+                int rms = meter.getRms();
+                volumeCallback.volume(Math.min(rms, MAX_VOLUME), MAX_VOLUME);
+                volumeCallback.level(rms, meter.getPeak(), meter.getDbfs());
+                AudioMetrics metrics = this.metrics;
+                if (metrics != null) {
+                    metrics.record(AudioMetrics.STAGE_CALLBACK, System.nanoTime() - volumePostNanos);
+                }
+            }
+        } else if (msg.what == MSG_RECORD_FINISH) {
+            if (recordCallback != null) {
+                recordCallback.onRecordFinish((File) msg.obj, msg.arg1, msg.arg2);
             }
         }
     }
 
     public void onDestroy() {
         stopRecord();
-        if (handler != null && handler.hasMessages(MSG_VOLUME)) {
-            handler.removeMessages(MSG_VOLUME);
+        if (handler != null) {
+            handler.removeCallbacksAndMessages(null);
             handler = null;
         }
+        volumeCallback = null;
+        recordCallback = null;
+        destroyed = true;
+        // 还有编码器没结束时由最后一个编码结束回调释放，保证文件写完之前编码线程不会退出
+        releaseThreadsIfIdle();
+    }
+
+    private synchronized void onEncoderStarted() {
+        liveEncoders++;
+    }
+
+    /**
+     * 在编码线程中调用
+     */
+    private synchronized void onEncoderFinished() {
+        liveEncoders--;
+        releaseThreadsIfIdle();
+    }
+
+    private synchronized void releaseThreadsIfIdle() {
+        if (destroyed && liveEncoders == 0 && !threadsReleased) {
+            threadsReleased = true;
+            AudioThreads.release();
+        }
     }
 
     public static int getPercentVolume(int volume, int maxVolume) {
@@ -263,32 +1121,234 @@ public class AudioRecorder {
     }
 
     public interface VolumeCallback {
+        /**
+         * @param volume    RMS音量，超过maxVolume时取maxVolume
+         * @param maxVolume 即{@link #MAX_VOLUME}
+         */
         void volume(int volume, int maxVolume);
+
+        /**
+         * 与volume同时回调的完整电平
+         *
+         * @param rms  RMS，范围0~32768
+         * @param peak 峰值，范围0~32768
+         * @param dbfs RMS对应的dBFS，范围-96~0
+         */
+        default void level(int rms, int peak, float dbfs) {
+        }
+    }
+
+    public interface RecordCallback {
+        /**
+         * 录音文件写完并关闭后在主线程回调，prepare之后没有开始录音而取消时不回调
+         *
+         * @param stopReason 停止原因，如{@link #STOP_REASON_USER}、{@link #STOP_REASON_MAX_DURATION}
+         * @param durationMs 编码进文件的时长，开启静音检测时不含被跳过的部分
+         */
+        void onRecordFinish(File file, int stopReason, long durationMs);
     }
 
-    public static class AudioEncoder extends HandlerThread implements AudioRecord.OnRecordPositionUpdateListener {
+    /**
+     * 编码一次录音，运行在共享的编码线程上，多个录音的编码任务按消息顺序交替执行
+     */
+    public static class AudioEncoder implements AudioRecord.OnRecordPositionUpdateListener {
         private static final int MSG_STOP_ENCODE = 0x1002;
 
-        private List<RecordTask> tasks;
-        private FileOutputStream fileOutputStream;
-        private byte[] mp3Buffer;
+        private File file;
+        private PcmRingBuffer ringBuffer;
+        private short[] encodeBuffer;
+        private Encoder encoder;
+        private int sampleRate;
+        private int channelCount;
+        private OutputSink sink;
+        private byte[] outBuffer;
+        private Looper looper;
         private Handler handler;
-
-        public AudioEncoder(File file, int bufferSize) {
-            super("AudioEncoder");
-            tasks = Collections.synchronizedList(new ArrayList<RecordTask>());
-            mp3Buffer = new byte[(int) (7200 + (bufferSize * 2 * 1.25))];
+        private Runnable finishCallback;
+        private volatile boolean finished;
+        private volatile boolean discarded;
+        private volatile int stopReason;
+
+        private boolean batchEncode;
+        private int batchSlots = 1;
+        private int minBatchSamples;
+
+        private boolean directBuffer;
+        private ByteBuffer directEncodeBuffer;
+        private ByteBuffer directOutBuffer;
+
+        private WaveformIndex.Builder waveformBuilder;
+        private AudioMetrics metrics;
+        private int maxRetainSamples;
+        private short[] retainedPcm;
+        private int retainedLength;
+        private ShortBuffer directEncodeShorts;
+
+        // 以下统计字段只在编码线程写入
+        private volatile int encodeCallCount;
+        private volatile int writeCount;
+        private volatile long encodedSamples;
+        private volatile long encodeCpuNanos;
+        private volatile long outputBytes;
+
+        /**
+         * @param bufferSize 一次read的最大采样数，立体声时为左右声道交错后的总数
+         */
+        public AudioEncoder(Looper looper, File file, OutputSink.Factory sinkFactory, Encoder encoder, int sampleRate,
+                            int channelCount, int bufferSize, int slotCount, PcmRingBuffer.OverrunPolicy policy) {
+            this.looper = looper;
+            this.file = file;
+            this.encoder = encoder;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            ringBuffer = new PcmRingBuffer(slotCount, bufferSize, policy, new File(file.getPath() + ".spill"));
             try {
-                fileOutputStream = new FileOutputStream(file);
-            } catch (FileNotFoundException e) {
+                sink = sinkFactory.create(file);
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
-        @Override
-        public synchronized void start() {
-            super.start();
-            handler = new Handler(getLooper()) {
+        /**
+         * 开启批量编码，需在start之前调用
+         *
+         * @param maxBatchSlots   一次最多合并的槽位数
+         * @param minBatchSamples 排队数据不足该采样数时不编码
+         */
+        public void setBatchEncode(int maxBatchSlots, int minBatchSamples) {
+            this.batchSlots = Math.max(1, Math.min(maxBatchSlots, ringBuffer.getCapacity()));
+            this.batchEncode = true;
+            this.minBatchSamples = Math.min(minBatchSamples, batchSlots * ringBuffer.getSlotSize());
+        }
+
+        /**
+         * 使用direct ByteBuffer编码，PCM和编码结果都不经过Java堆，需在start之前调用
+         */
+        public void setDirectBuffer(boolean directBuffer) {
+            this.directBuffer = directBuffer;
+        }
+
+        /**
+         * 统计编码和写入的耗时、队列溢出次数，需在start之前调用
+         */
+        public void setMetrics(AudioMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * 在内存中保留编码过的PCM，超过maxSamples时不再保留，需在start之前调用
+         */
+        public void setRetainPcm(int maxSamples) {
+            this.maxRetainSamples = maxSamples;
+        }
+
+        /**
+         * @return 编码结束后保留的PCM，没有开启或超出上限时返回null
+         */
+        public PcmClip getRetainedPcm() {
+            if (!finished || retainedPcm == null) {
+                return null;
+            }
+            return new PcmClip(retainedPcm, retainedLength, sampleRate, channelCount);
+        }
+
+        /**
+         * 编码线程调用，按需扩容，超出上限时丢掉已保留的数据
+         */
+        private void retainPcm(int samples) {
+            if (retainedPcm == null) {
+                return;
+            }
+            if (retainedLength + samples > retainedPcm.length) {
+                if (retainedLength + samples > maxRetainSamples) {
+                    retainedPcm = null;
+                    return;
+                }
+                int capacity = (int) Math.min(maxRetainSamples,
+                        Math.max((long) retainedLength + samples, retainedPcm.length * 2L));
+                short[] grown = new short[capacity];
+                System.arraycopy(retainedPcm, 0, grown, 0, retainedLength);
+                retainedPcm = grown;
+            }
+            if (directBuffer) {
+                directEncodeShorts.position(0);
+                directEncodeShorts.get(retainedPcm, retainedLength, samples);
+            } else {
+                System.arraycopy(encodeBuffer, 0, retainedPcm, retainedLength, samples);
+            }
+            retainedLength += samples;
+        }
+
+        /**
+         * 编码时同时生成波形索引，结束时写入{@link WaveformIndex#getIndexFile(File)}，需在start之前调用
+         */
+        public void setWaveformBuilder(WaveformIndex.Builder waveformBuilder) {
+            this.waveformBuilder = waveformBuilder;
+        }
+
+        /**
+         * 编码结束、文件关闭后在编码线程中回调，需在start之前调用
+         */
+        public void setFinishCallback(Runnable finishCallback) {
+            this.finishCallback = finishCallback;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return 是否为prepare之后没有开始录音而丢弃，丢弃时文件已被删除
+         */
+        public boolean isDiscarded() {
+            return discarded;
+        }
+
+        void setStopReason(int stopReason) {
+            this.stopReason = stopReason;
+        }
+
+        public int getStopReason() {
+            return stopReason;
+        }
+
+        /**
+         * @return 已编码的时长
+         */
+        public long getEncodedMillis() {
+            return encodedSamples / channelCount * 1000 / sampleRate;
+        }
+
+        /**
+         * 录音线程调用，估算全部编码完成后的文件大小：已输出的字节数加上队列中的采样按目前的压缩比换算的字节数
+         */
+        long estimateOutputBytes() {
+            long bytes = outputBytes;
+            long samples = encodedSamples;
+            long pending = ringBuffer.getPendingSamples();
+            if (samples > 0) {
+                bytes += pending * bytes / samples;
+            }
+            return bytes;
+        }
+
+        public void start() {
+            int batchSize = batchSlots * ringBuffer.getSlotSize();
+            // flush和回写文件头仍使用堆上的缓冲，只在结束时用一次
+            outBuffer = new byte[encoder.getOutputBufferSize(batchSize / channelCount)];
+            if (directBuffer) {
+                directEncodeBuffer = ByteBuffer.allocateDirect(batchSize * 2).order(ByteOrder.nativeOrder());
+                directEncodeShorts = directEncodeBuffer.asShortBuffer();
+                directOutBuffer = ByteBuffer.allocateDirect(outBuffer.length);
+            } else {
+                encodeBuffer = new short[batchSize];
+            }
+            if (maxRetainSamples > 0) {
+                // 先按1秒分配，之后按需扩大
+                retainedPcm = new short[Math.min(maxRetainSamples, sampleRate * channelCount)];
+                retainedLength = 0;
+            }
+            handler = new Handler(looper) {
                 @Override
                 public void handleMessage(Message msg) {
                     super.handleMessage(msg);
@@ -303,46 +1363,201 @@ public class AudioRecorder {
 
         @Override
         public void onPeriodicNotification(AudioRecord recorder) {
-            encodePcm2Mp3();
+            if (batchEncode) {
+                encodeBatch(false);
+            } else {
+                encodePcm2Mp3();
+            }
         }
 
-        public void addTask(short[] pcmBuffer, int readSize) {
-            tasks.add(new RecordTask(pcmBuffer, readSize));
+        /**
+         * 录音线程调用，数据会被拷贝进队列中独立的槽位，队列已满时按{@link PcmRingBuffer.OverrunPolicy}处理
+         *
+         * @return 数据未能进入队列时返回false
+         */
+        public boolean addTask(short[] pcmBuffer, int readSize) {
+            if (metrics == null) {
+                return ringBuffer.write(pcmBuffer, 0, readSize);
+            }
+            long dropped = ringBuffer.getDroppedSamples();
+            int stalls = ringBuffer.getStallCount();
+            long spilled = ringBuffer.getSpilledSamples();
+            boolean added = ringBuffer.write(pcmBuffer, 0, readSize);
+            countOverrun(dropped, stalls, spilled);
+            return added;
+        }
+
+        /**
+         * 同{@link #addTask(short[], int)}，从pcmBuffer的position开始拷贝readSize个采样
+         */
+        public boolean addTask(ByteBuffer pcmBuffer, int readSize) {
+            if (metrics == null) {
+                return ringBuffer.write(pcmBuffer, readSize);
+            }
+            long dropped = ringBuffer.getDroppedSamples();
+            int stalls = ringBuffer.getStallCount();
+            long spilled = ringBuffer.getSpilledSamples();
+            boolean added = ringBuffer.write(pcmBuffer, readSize);
+            countOverrun(dropped, stalls, spilled);
+            return added;
+        }
+
+        private void countOverrun(long dropped, int stalls, long spilled) {
+            if (ringBuffer.getDroppedSamples() != dropped || ringBuffer.getStallCount() != stalls
+                    || ringBuffer.getSpilledSamples() != spilled) {
+                metrics.add(AudioMetrics.COUNTER_OVERRUNS, 1);
+            }
         }
 
         private int encodePcm2Mp3() {
-            if (tasks.size() <= 0) {
+            int readSize = readSlots(1);
+            if (readSize <= 0) {
+                return 0;
+            }
+            encodeAndWrite(readSize);
+            return readSize;
+        }
+
+        /**
+         * 从队列中最多取出maxSlots个槽位的数据，依次放入编码缓冲
+         *
+         * @return 取出的采样数
+         */
+        private int readSlots(int maxSlots) {
+            int slotSize = ringBuffer.getSlotSize();
+            int samples = 0;
+            if (directBuffer) {
+                directEncodeBuffer.clear();
+                for (int i = 0; i < maxSlots && directEncodeBuffer.remaining() / 2 >= slotSize; i++) {
+                    int readSize = ringBuffer.read(directEncodeBuffer);
+                    if (readSize <= 0) {
+                        break;
+                    }
+                    samples += readSize;
+                }
+            } else {
+                for (int i = 0; i < maxSlots && encodeBuffer.length - samples >= slotSize; i++) {
+                    int readSize = ringBuffer.read(encodeBuffer, samples);
+                    if (readSize <= 0) {
+                        break;
+                    }
+                    samples += readSize;
+                }
+            }
+            return samples;
+        }
+
+        /**
+         * 取出队列中所有可用的数据，按encodeBuffer的容量合并编码
+         *
+         * @param force 为true时忽略minBatchSamples，用于停止时清空队列
+         */
+        private int encodeBatch(boolean force) {
+            if (!force && ringBuffer.getPendingSamples() < minBatchSamples) {
                 return 0;
             }
-            RecordTask task = tasks.remove(0);
-            int encodeSize = AudioRecorder.encode(task.pcmBuffer, task.pcmBuffer, task.readSize, mp3Buffer);
+            int total = 0;
+            while (true) {
+                int batchSize = readSlots(batchSlots);
+                if (batchSize == 0) {
+                    break;
+                }
+                encodeAndWrite(batchSize);
+                total += batchSize;
+            }
+            return total;
+        }
+
+        private void encodeAndWrite(int samples) {
+            // 线程CPU时间每次都是一次系统调用，只在开启统计时读取
+            long cpuStart = metrics != null ? Debug.threadCpuTimeNanos() : -1;
+            long encodeStart = metrics != null ? System.nanoTime() : 0;
+            // 数据保持交错存放直接交给编码器，单声道时编码器不会访问右声道
+            int encodeSize;
+            if (directBuffer) {
+                directEncodeBuffer.position(0);
+                if (waveformBuilder != null) {
+                    waveformBuilder.process(directEncodeBuffer, samples);
+                }
+                directOutBuffer.clear();
+                encodeSize = encoder.encode(directEncodeBuffer, samples / channelCount, directOutBuffer);
+            } else {
+                if (waveformBuilder != null) {
+                    waveformBuilder.process(encodeBuffer, 0, samples);
+                }
+                encodeSize = encoder.encodeInterleaved(encodeBuffer, samples / channelCount, outBuffer);
+            }
+            retainPcm(samples);
+            encodeCallCount++;
+            encodedSamples += samples;
+            long writeStart = 0;
+            if (metrics != null) {
+                writeStart = System.nanoTime();
+                metrics.record(AudioMetrics.STAGE_ENCODE, writeStart - encodeStart);
+                metrics.add(AudioMetrics.COUNTER_JNI_CALLS, 1);
+                metrics.add(AudioMetrics.COUNTER_FRAMES_ENCODED, samples / channelCount);
+                metrics.add(AudioMetrics.COUNTER_ENCODED_MICROS, samples / channelCount * 1000000L / sampleRate);
+                if (encodeSize < 0) {
+                    metrics.add(AudioMetrics.COUNTER_ERRORS, 1);
+                }
+            }
             if (encodeSize > 0) {
+                outputBytes += encodeSize;
                 try {
-                    fileOutputStream.write(mp3Buffer, 0, encodeSize);
+                    if (directBuffer) {
+                        directOutBuffer.limit(encodeSize);
+                        sink.write(directOutBuffer);
+                    } else {
+                        sink.write(outBuffer, 0, encodeSize);
+                    }
+                    writeCount++;
+                    if (metrics != null) {
+                        metrics.record(AudioMetrics.STAGE_WRITE, System.nanoTime() - writeStart);
+                        metrics.add(AudioMetrics.COUNTER_BYTES_WRITTEN, encodeSize);
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
+                    if (metrics != null) {
+                        metrics.error(AudioMetrics.STAGE_WRITE, e);
+                    }
                 }
             }
-            return task.readSize;
+            if (cpuStart >= 0) {
+                encodeCpuNanos += Debug.threadCpuTimeNanos() - cpuStart;
+            }
         }
 
         private void flushAndRelease() {
-            int flushSize = AudioRecorder.flush(mp3Buffer);
-            if (flushSize > 0) {
-                try {
-                    fileOutputStream.write(mp3Buffer, 0, flushSize);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    if (fileOutputStream != null) {
-                        try {
-                            fileOutputStream.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
+            try {
+                int flushSize = encoder.flush(outBuffer);
+                if (flushSize > 0) {
+                    sink.write(outBuffer, 0, flushSize);
+                    if (metrics != null) {
+                        metrics.add(AudioMetrics.COUNTER_BYTES_WRITTEN, flushSize);
+                    }
+                }
+                // 部分格式需要在结束时回写文件头
+                int headerSize = encoder.getHeader(outBuffer);
+                if (headerSize > 0) {
+                    sink.patch(0, outBuffer, 0, headerSize);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (metrics != null) {
+                    metrics.error(AudioMetrics.STAGE_WRITE, e);
+                }
+            } finally {
+                if (sink != null) {
+                    try {
+                        sink.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        if (metrics != null) {
+                            metrics.error(AudioMetrics.STAGE_WRITE, e);
                         }
                     }
-                    AudioRecorder.close();
                 }
+                encoder.close();
             }
         }
 
@@ -350,32 +1565,47 @@ public class AudioRecorder {
             return handler;
         }
 
-        void stopEncode() {
+        /**
+         * @param discard 为true时不再编码排队的数据，结束后删除文件
+         */
+        void stopEncode(boolean discard) {
             if (handler == null) {
                 return;
             }
-            handler.sendEmptyMessage(MSG_STOP_ENCODE);
+            handler.obtainMessage(MSG_STOP_ENCODE, discard ? 1 : 0, 0).sendToTarget();
         }
 
         public void handMessage(Message msg) {
             if (msg.what == MSG_STOP_ENCODE) {
-                while (encodePcm2Mp3() > 0) ;
+                boolean discard = msg.arg1 != 0;
+                if (!discard) {
+                    if (batchEncode) {
+                        encodeBatch(true);
+                    } else {
+                        while (encodePcm2Mp3() > 0) ;
+                    }
+                }
+                ringBuffer.close();
 
                 if (handler != null) {
                     handler.removeCallbacksAndMessages(null);
                 }
                 flushAndRelease();
-                getLooper().quit();
-            }
-        }
-
-        static class RecordTask {
-            short[] pcmBuffer;
-            int readSize;
-
-            RecordTask(short[] pcmBuffer, int readSize) {
-                this.pcmBuffer = pcmBuffer;
-                this.readSize = readSize;
+                if (discard) {
+                    discarded = true;
+                    file.delete();
+                } else if (waveformBuilder != null) {
+                    try {
+                        waveformBuilder.build().write(WaveformIndex.getIndexFile(file));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                waveformBuilder = null;
+                finished = true;
+                if (finishCallback != null) {
+                    finishCallback.run();
+                }
             }
         }
     }
@@ -0,0 +1,95 @@
+package net.arvin.audiohelper;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 所有AudioRecorder共享的录音和编码线程
+ * <p>
+ * 录音线程以URGENT_AUDIO优先级运行，常驻{@link #CORE_CAPTURE_THREADS}个，同时录音更多时按需创建，
+ * 最多{@link #MAX_CAPTURE_THREADS}个，空闲{@link #IDLE_CAPTURE_THREAD_SECONDS}秒后退出；录音任务不会排队等待，
+ * 超过上限时startRecord失败。编码使用一个常驻的HandlerThread。
+ * 线程在第一个使用者{@link #acquire()}时创建，最后一个使用者{@link #release()}后退出，
+ * 之后的startRecord不再需要创建线程。
+ */
+final class AudioThreads {
+
+    /**
+     * 常驻的录音线程数，一般同时只有一个录音，另一个留给上一次录音还没退出时的新录音
+     */
+    private static final int CORE_CAPTURE_THREADS = 2;
+    /**
+     * 录音线程上限，设备能同时打开的AudioRecord本来就很少，超过时execute抛出RejectedExecutionException
+     */
+    private static final int MAX_CAPTURE_THREADS = 4;
+    private static final long IDLE_CAPTURE_THREAD_SECONDS = 30;
+
+    private static AudioThreads instance;
+    private static int refCount;
+
+    private final ThreadPoolExecutor captureExecutor;
+    private final HandlerThread encodeThread;
+
+    private AudioThreads() {
+        final AtomicInteger index = new AtomicInteger();
+        // 不排队，没有空闲线程时直接创建新线程，否则录音循环会一直等不到线程；达到上限时拒绝
+        captureExecutor = new ThreadPoolExecutor(CORE_CAPTURE_THREADS, MAX_CAPTURE_THREADS,
+                IDLE_CAPTURE_THREAD_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                        r.run();
+                    }
+                }, "AudioCapture-" + index.incrementAndGet());
+            }
+        });
+        // 线程数少于核心数时execute总是新建线程，即使已有空闲线程，所以要把核心线程全部提前创建，
+        // 第一次录音才不需要等待线程启动
+        captureExecutor.prestartAllCoreThreads();
+
+        encodeThread = new HandlerThread("AudioEncoder", Process.THREAD_PRIORITY_AUDIO);
+        encodeThread.start();
+    }
+
+    static synchronized AudioThreads acquire() {
+        if (instance == null) {
+            instance = new AudioThreads();
+        }
+        refCount++;
+        return instance;
+    }
+
+    /**
+     * 最后一个使用者释放后关闭所有线程，正在执行的任务会执行完
+     */
+    static synchronized void release() {
+        if (refCount <= 0) {
+            return;
+        }
+        refCount--;
+        if (refCount == 0 && instance != null) {
+            instance.captureExecutor.shutdown();
+            instance.encodeThread.quit();
+            instance = null;
+        }
+    }
+
+    ExecutorService getCaptureExecutor() {
+        return captureExecutor;
+    }
+
+    Looper getEncodeLooper() {
+        return encodeThread.getLooper();
+    }
+}
@@ -0,0 +1,90 @@
+package net.arvin.audiohelper;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * 音频编码器
+ * <p>
+ * AudioRecorder通过它把PCM编码成目标格式，每次录音都会依次调用
+ * {@link #init}、若干次{@link #encode}、{@link #flush}、{@link #getHeader}和{@link #close}。
+ * 所有方法都在编码线程中调用。
+ */
+public interface Encoder extends Closeable {
+
+    /**
+     * @param sampleRate   输入采样率
+     * @param channelCount 输入声道数
+     * @param bitRate      输出码率，单位kbps，无损格式可忽略
+     * @param quality      编码质量，含义由具体实现决定
+     * @throws IllegalArgumentException 不支持这组参数，例如格式无法表示的采样率
+     * @throws IllegalStateException    无法初始化，例如设备上没有对应的编码器；AudioRecorder的prepare和startRecord会因此失败
+     */
+    void init(int sampleRate, int channelCount, int bitRate, int quality);
+
+    /**
+     * @param bufferRight 单声道时不会被访问，可以为null
+     * @param samples     每个声道的采样数
+     * @param out         输出缓冲，长度不小于{@link #getOutputBufferSize(int)}
+     * @return 写入out的字节数，出错时返回负数
+     */
+    int encode(short[] bufferLeft, short[] bufferRight, int samples, byte[] out);
+
+    /**
+     * 编码交错存放的PCM，单声道时等同于只传左声道的{@link #encode}
+     *
+     * @param pcm    左右声道交错存放的数据
+     * @param frames 帧数，即每个声道的采样数
+     * @return 写入out的字节数，出错时返回负数
+     */
+    int encodeInterleaved(short[] pcm, int frames, byte[] out);
+
+    /**
+     * 同{@link #encodeInterleaved(short[], int, byte[])}，输入输出都使用direct ByteBuffer，
+     * 避免Java堆数组的拷贝
+     *
+     * @param pcm 从position开始读取，字节序为{@link java.nio.ByteOrder#nativeOrder()}
+     * @param out 从position开始写入，剩余空间不小于{@link #getOutputBufferSize(int)}
+     * @return 写入out的字节数，出错时返回负数。pcm和out的position都不会改变
+     */
+    int encode(ByteBuffer pcm, int frames, ByteBuffer out);
+
+    /**
+     * 输出编码器内部剩余的数据
+     *
+     * @return 写入out的字节数
+     */
+    int flush(byte[] out);
+
+    /**
+     * 在flush之后调用，获取需要回写到输出开头的数据，例如WAV头
+     *
+     * @return 写入out的字节数，不需要回写时返回0
+     */
+    int getHeader(byte[] out);
+
+    /**
+     * 释放编码器资源，可以重复调用，释放后可以再次{@link #init}
+     */
+    @Override
+    void close();
+
+    /**
+     * @param samples 一次编码的每个声道最大采样数
+     * @return 一次encode或flush需要的输出缓冲大小
+     */
+    int getOutputBufferSize(int samples);
+
+    /**
+     * @return 输出文件的扩展名，不含"."
+     */
+    String getFileExtension();
+
+    /**
+     * 编码器内部持有native句柄和写文件头用的统计，不能在两次录音或两个任务之间共用，
+     * 每次录音或每个转码任务调用一次create创建独立的实例
+     */
+    interface Factory {
+        Encoder create();
+    }
+}
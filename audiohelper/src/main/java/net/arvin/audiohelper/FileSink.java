@@ -0,0 +1,247 @@
+package net.arvin.audiohelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 带写缓冲的文件输出
+ * <p>
+ * 编码结果先合并到一块复用的缓冲中，缓冲写满、距上次写盘超过指定时间或关闭时才真正写入文件，
+ * 避免每个编码块都产生一次write系统调用。可选在关闭时或周期性地fsync，保证崩溃后数据落盘。
+ * <p>
+ * 同时统计写入字节数、系统调用次数和写盘耗时，廉价设备上的闪存卡顿会直接表现为编码延迟。
+ */
+public class FileSink implements OutputSink {
+
+    public enum SyncPolicy {
+        /**
+         * 不主动fsync，由系统决定何时落盘
+         */
+        NONE,
+        /**
+         * 关闭时fsync一次
+         */
+        ON_CLOSE,
+        /**
+         * 每隔syncIntervalMillis在写盘后fsync一次，关闭时也会fsync
+         */
+        PERIODIC
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /**
+     * 录音时的写盘间隔，只按缓冲大小写盘时低码率下64KB要攒十几秒，进程被杀时这些都会丢掉
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    /**
+     * 用于录音，每{@link #DEFAULT_FLUSH_INTERVAL_MILLIS}毫秒至少写盘一次
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public OutputSink create(File file) throws IOException {
+            FileSink sink = new FileSink(file);
+            sink.setFlushInterval(DEFAULT_FLUSH_INTERVAL_MILLIS);
+            return sink;
+        }
+    };
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    private long flushIntervalNanos;
+    private SyncPolicy syncPolicy = SyncPolicy.NONE;
+    private long syncIntervalNanos;
+    private long lastFlushTime;
+    private long lastSyncTime;
+    /**
+     * 上次fsync之后有数据写入文件
+     */
+    private boolean unsynced;
+    private volatile long position;
+
+    // 统计字段只在编码线程写入
+    private volatile long bytesWritten;
+    private volatile int syscallCount;
+    private volatile int flushCount;
+    private volatile long totalFlushNanos;
+    private volatile long maxFlushNanos;
+
+    public FileSink(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize 写缓冲大小，缓冲写满时写盘
+     */
+    public FileSink(File file, int bufferSize) throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        channel = randomAccessFile.getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        lastFlushTime = lastSyncTime = System.nanoTime();
+    }
+
+    /**
+     * @param flushIntervalMillis 距上次写盘超过该时间时，下一次写入会触发写盘，0表示只按缓冲大小写盘；
+     *                            直接创建时默认为0，{@link #FACTORY}创建的为{@link #DEFAULT_FLUSH_INTERVAL_MILLIS}
+     */
+    public void setFlushInterval(long flushIntervalMillis) {
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    }
+
+    /**
+     * @param syncIntervalMillis 仅{@link SyncPolicy#PERIODIC}时有效，到时间后的下一次写入会写盘并fsync，
+     *                           即使写盘间隔还没到
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy, long syncIntervalMillis) {
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (length >= buffer.capacity()) {
+            // 比缓冲还大的数据直接写
+            writeFully(ByteBuffer.wrap(src, offset, length));
+        } else {
+            buffer.put(src, offset, length);
+        }
+        position += length;
+        checkInterval();
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (length > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (length >= buffer.capacity()) {
+            writeFully(src);
+        } else {
+            buffer.put(src);
+        }
+        position += length;
+        checkInterval();
+    }
+
+    @Override
+    public boolean patch(long patchPosition, byte[] src, int offset, int length) throws IOException {
+        flushBuffer();
+        ByteBuffer wrap = ByteBuffer.wrap(src, offset, length);
+        long filePosition = patchPosition;
+        while (wrap.hasRemaining()) {
+            filePosition += channel.write(wrap, filePosition);
+            syscallCount++;
+        }
+        unsynced = true;
+        return true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+            if (syncPolicy != SyncPolicy.NONE) {
+                sync();
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void checkInterval() throws IOException {
+        long now = System.nanoTime();
+        if ((flushIntervalNanos > 0 && now - lastFlushTime >= flushIntervalNanos) || isSyncDue(now)) {
+            flushBuffer();
+        }
+    }
+
+    private boolean isSyncDue(long now) {
+        return syncPolicy == SyncPolicy.PERIODIC && now - lastSyncTime >= syncIntervalNanos;
+    }
+
+    private void flushBuffer() throws IOException {
+        long start = System.nanoTime();
+        lastFlushTime = start;
+        if (buffer.position() == 0 && !(unsynced && isSyncDue(start))) {
+            return;
+        }
+        if (buffer.position() > 0) {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+        if (unsynced && isSyncDue(start)) {
+            sync();
+        }
+        long cost = System.nanoTime() - start;
+        flushCount++;
+        totalFlushNanos += cost;
+        if (cost > maxFlushNanos) {
+            maxFlushNanos = cost;
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            bytesWritten += channel.write(src);
+            syscallCount++;
+            unsynced = true;
+        }
+    }
+
+    private void sync() throws IOException {
+        channel.force(false);
+        syscallCount++;
+        unsynced = false;
+        lastSyncTime = System.nanoTime();
+    }
+
+    /**
+     * @return 已写入的总字节数，包含还在缓冲中的部分
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return 已真正写到文件的字节数
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return write和fsync系统调用的次数
+     */
+    public int getSyscallCount() {
+        return syscallCount;
+    }
+
+    public int getFlushCount() {
+        return flushCount;
+    }
+
+    public float getAverageFlushMillis() {
+        return flushCount > 0 ? totalFlushNanos / 1000000f / flushCount : 0;
+    }
+
+    public float getMaxFlushMillis() {
+        return maxFlushNanos / 1000000f;
+    }
+}
@@ -0,0 +1,175 @@
+package net.arvin.audiohelper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 基于lame的mp3编码器
+ * <p>
+ * 每个实例持有独立的native编码上下文，多个实例可以在不同线程中同时编码，
+ * 但同一个实例同一时间只能在一个线程中使用。用完需调用{@link #close()}释放native资源。
+ * <p>
+ * 默认在输出的最前面预留一个Info/Xing标签帧，结束时通过{@link #getHeader(byte[])}取得最终内容回写到文件开头，
+ * 见{@link XingHeader}。
+ */
+public class LameEncoder implements Encoder {
+
+    static {
+        System.loadLibrary("lame_util");
+    }
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public Encoder create() {
+            return new LameEncoder();
+        }
+    };
+
+    private static native long nativeInit(int inSamplerate, int inChannel,
+                                          int outSamplerate, int outBitrate, int quality);
+
+    private static native int nativeEncode(long handle, short[] bufferLeft, short[] bufferRight,
+                                           int samples, byte[] mp3buf);
+
+    private static native int nativeEncodeInterleaved(long handle, short[] pcm, int frames, byte[] mp3buf);
+
+    private static native int nativeEncodeDirect(long handle, ByteBuffer pcm, int pcmOffset, int frames,
+                                                 ByteBuffer mp3buf, int mp3bufOffset, int mp3bufSize);
+
+    private static native int nativeFlush(long handle, byte[] mp3buf);
+
+    private static native int nativeGetEncoderDelay(long handle);
+
+    private static native int nativeGetEncoderPadding(long handle);
+
+    private static native void nativeClose(long handle);
+
+    /**
+     * native层lame_global_flags的指针，0表示未初始化或已释放
+     */
+    private long nativeHandle;
+    private int channelCount;
+
+    private boolean writeInfoTag = true;
+    private final XingHeader xingHeader = new XingHeader();
+
+    /**
+     * 设置是否写入Info/Xing标签帧，默认开启，下次init时生效
+     * <p>
+     * 关闭后输出中只有音频帧，适合不能回写文件开头的场景
+     */
+    public void setWriteInfoTag(boolean writeInfoTag) {
+        this.writeInfoTag = writeInfoTag;
+    }
+
+    @Override
+    public void init(int sampleRate, int channelCount, int bitRate, int quality) {
+        init(sampleRate, channelCount, sampleRate, bitRate, quality);
+    }
+
+    /**
+     * @param outSampleRate 输出采样率，与输入不同时由lame重采样
+     * @throws IllegalStateException lame不接受这组参数，例如mp3无法输出的采样率，或native上下文创建失败
+     */
+    public void init(int inSampleRate, int channelCount, int outSampleRate, int bitRate, int quality) {
+        close();
+        long handle = nativeInit(inSampleRate, channelCount, outSampleRate, bitRate, quality);
+        if (handle == 0) {
+            // 不能只保存0，否则之后每次encode都返回-1，得到一个空文件
+            throw new IllegalStateException("failed to init lame: " + inSampleRate + "Hz, " + channelCount
+                    + " channels -> " + outSampleRate + "Hz, " + bitRate + "kbps");
+        }
+        nativeHandle = handle;
+        this.channelCount = channelCount;
+        xingHeader.reset();
+    }
+
+    private int processOutput(byte[] out, int size) {
+        return writeInfoTag ? xingHeader.process(out, size) : size;
+    }
+
+    @Override
+    public int encode(short[] bufferLeft, short[] bufferRight, int samples, byte[] out) {
+        if (nativeHandle == 0) {
+            return -1;
+        }
+        return processOutput(out, nativeEncode(nativeHandle, bufferLeft, bufferRight, samples, out));
+    }
+
+    @Override
+    public int encodeInterleaved(short[] pcm, int frames, byte[] out) {
+        if (nativeHandle == 0) {
+            return -1;
+        }
+        return processOutput(out, nativeEncodeInterleaved(nativeHandle, pcm, frames, out));
+    }
+
+    /**
+     * @throws IllegalArgumentException pcm或out不是direct buffer，pcm剩余不足frames帧，
+     *                                  或out剩余空间小于{@link #getOutputBufferSize(int)}。native层按地址直接读写，不会再检查
+     */
+    @Override
+    public int encode(ByteBuffer pcm, int frames, ByteBuffer out) {
+        if (nativeHandle == 0) {
+            return -1;
+        }
+        if (!pcm.isDirect() || !out.isDirect()) {
+            throw new IllegalArgumentException("pcm and out must be direct buffers");
+        }
+        if (frames < 0) {
+            throw new IllegalArgumentException("frames must not be negative: " + frames);
+        }
+        if (pcm.remaining() < (long) frames * channelCount * 2) {
+            throw new IllegalArgumentException("pcm has " + pcm.remaining() + " bytes, "
+                    + frames + " frames of " + channelCount + " channels need " + (long) frames * channelCount * 2);
+        }
+        int outSize = getOutputBufferSize(frames);
+        if (out.remaining() < outSize) {
+            throw new IllegalArgumentException("out has " + out.remaining() + " bytes, need " + outSize);
+        }
+        int size = nativeEncodeDirect(nativeHandle, pcm, pcm.position(), frames,
+                out, out.position(), out.remaining() - (writeInfoTag ? XingHeader.MAX_FRAME_SIZE : 0));
+        return writeInfoTag ? xingHeader.process(out, out.position(), size) : size;
+    }
+
+    @Override
+    public int flush(byte[] out) {
+        if (nativeHandle == 0) {
+            return 0;
+        }
+        return processOutput(out, nativeFlush(nativeHandle, out));
+    }
+
+    /**
+     * flush之后调用，返回的Info/Xing标签帧需要写到文件开头
+     */
+    @Override
+    public int getHeader(byte[] out) {
+        if (nativeHandle == 0 || !writeInfoTag) {
+            return 0;
+        }
+        return xingHeader.write(out, nativeGetEncoderDelay(nativeHandle), nativeGetEncoderPadding(nativeHandle));
+    }
+
+    @Override
+    public void close() {
+        if (nativeHandle != 0) {
+            nativeClose(nativeHandle);
+            nativeHandle = 0;
+        }
+    }
+
+    public boolean isInitialized() {
+        return nativeHandle != 0;
+    }
+
+    @Override
+    public int getOutputBufferSize(int samples) {
+        // lame文档给出的最坏情况：1.25 * samples + 7200
+        return (int) (7200 + (samples * 2 * 1.25)) + XingHeader.MAX_FRAME_SIZE;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "mp3";
+    }
+}
@@ -0,0 +1,87 @@
+package net.arvin.audiohelper;
+
+/**
+ * MPEG音频（mp3）帧头解析
+ * <p>
+ * 实例可以复用，每次{@link #parse}都会覆盖上一次的结果，解析过程不产生对象分配。
+ */
+public class Mp3FrameHeader {
+
+    public static final int HEADER_SIZE = 4;
+
+    public static final int VERSION_2_5 = 0;
+    public static final int VERSION_2 = 2;
+    public static final int VERSION_1 = 3;
+
+    private static final int[] SAMPLE_RATES_V1 = {44100, 48000, 32000};
+
+    /**
+     * 单位kbps，下标为[是否MPEG1 ? 0 : 1][bitrate index]，仅Layer III
+     */
+    private static final int[][] BITRATES = {
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, -1},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, -1}
+    };
+
+    public int version;
+    public int bitrate;
+    public int sampleRate;
+    public int channelCount;
+    public int frameLength;
+    public int samplesPerFrame;
+    /**
+     * 0立体声，1联合立体声，2双声道，3单声道
+     */
+    public int channelMode;
+
+    /**
+     * @return 是Layer III的合法帧头时返回true
+     */
+    public boolean parse(byte[] data, int offset) {
+        int header = ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+        return parse(header);
+    }
+
+    public boolean parse(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000) {
+            return false;
+        }
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        int bitrateIndex = (header >>> 12) & 0xF;
+        int sampleRateIndex = (header >>> 10) & 3;
+        // 只支持Layer III
+        if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return false;
+        }
+        int padding = (header >>> 9) & 1;
+        int sampleRate = SAMPLE_RATES_V1[sampleRateIndex];
+        if (version == VERSION_2) {
+            sampleRate /= 2;
+        } else if (version == VERSION_2_5) {
+            sampleRate /= 4;
+        }
+        int bitrate = BITRATES[version == VERSION_1 ? 0 : 1][bitrateIndex];
+        int samplesPerFrame = version == VERSION_1 ? 1152 : 576;
+
+        this.version = version;
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.samplesPerFrame = samplesPerFrame;
+        this.channelMode = (header >>> 6) & 3;
+        this.channelCount = channelMode == 3 ? 1 : 2;
+        this.frameLength = samplesPerFrame / 8 * bitrate * 1000 / sampleRate + padding;
+        return true;
+    }
+
+    /**
+     * @return 帧头之后side information的长度，Xing/Info标签紧跟其后
+     */
+    public int getSideInfoSize() {
+        if (version == VERSION_1) {
+            return channelCount == 1 ? 17 : 32;
+        }
+        return channelCount == 1 ? 9 : 17;
+    }
+}
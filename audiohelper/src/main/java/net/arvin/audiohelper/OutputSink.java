@@ -0,0 +1,38 @@
+package net.arvin.audiohelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 编码结果的输出目标
+ * <p>
+ * 所有方法都在编码线程中调用。
+ */
+public interface OutputSink extends Closeable {
+
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * 写入buffer中position到limit之间的数据，完成后position等于limit
+     */
+    void write(ByteBuffer buffer) throws IOException;
+
+    /**
+     * 覆盖已经写出的数据，例如在结束时回写文件头
+     *
+     * @param position 相对输出开头的位置
+     * @return 不支持随机写入时返回false
+     */
+    boolean patch(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    void flush() throws IOException;
+
+    /**
+     * 每次录音创建一个输出
+     */
+    interface Factory {
+        OutputSink create(File file) throws IOException;
+    }
+}
@@ -0,0 +1,29 @@
+package net.arvin.audiohelper;
+
+/**
+ * 内存中的一段16位PCM，多声道时交错存放，见{@link AudioRecorder#getLastPcm()}和{@link PcmPlayer#play(PcmClip)}
+ */
+public class PcmClip {
+    public final short[] data;
+    /**
+     * data中有效的采样数，不是帧数
+     */
+    public final int length;
+    public final int sampleRate;
+    public final int channelCount;
+
+    public PcmClip(short[] data, int length, int sampleRate, int channelCount) {
+        this.data = data;
+        this.length = length;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+    }
+
+    public long getFrames() {
+        return length / channelCount;
+    }
+
+    public long getDurationMs() {
+        return getFrames() * 1000 / sampleRate;
+    }
+}
@@ -0,0 +1,505 @@
+package net.arvin.audiohelper;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于AudioTrack的PCM播放器，直接播放内存中的PCM或wav/pcm文件，不经过MediaPlayer的解码和prepare
+ * <p>
+ * 内存中的{@link PcmClip}直接包装成ShortBuffer，文件通过mmap映射，两者走同一条通路：
+ * 播放线程把数据分块拷贝进预先分配的缓冲写入流模式的AudioTrack，先写入第一块再play，开始播放时缓冲中已经有数据。
+ * 位置按AudioTrack的播放头计算，seek和位置都精确到采样帧。
+ * <p>
+ * 回调沿用{@link AudioPlayer.PlayStateCallback}，可以和AudioPlayer互相替换；控制方法都需要在主线程调用。
+ */
+public class PcmPlayer {
+
+    private static final int DRAIN_POLL_MS = 5;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor playExecutor;
+    private AudioPlayer.PlayStateCallback playStateCallback;
+    private AudioMetrics metrics;
+
+    private ShortBuffer source;
+    private int sampleRate;
+    private int channelCount;
+    private long totalFrames;
+    /**
+     * 没有在播放时seek的位置，下次play时从这里开始
+     */
+    private long startFrame;
+    private Session session;
+    private boolean isPlaying;
+
+    public PcmPlayer(AudioPlayer.PlayStateCallback playStateCallback) {
+        this.playStateCallback = playStateCallback;
+        playExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                        r.run();
+                    }
+                }, "PcmPlayer");
+            }
+        });
+        // 提前创建好播放线程，第一次播放也不需要等待线程启动
+        playExecutor.prestartCoreThread();
+    }
+
+    public void setPlayStateCallback(AudioPlayer.PlayStateCallback playStateCallback) {
+        this.playStateCallback = playStateCallback;
+    }
+
+    /**
+     * 设置耗时统计，记录准备耗时和从调用play到开始出声的耗时
+     */
+    public void setMetrics(AudioMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 播放内存中的PCM，例如{@link AudioRecorder#getLastPcm()}
+     */
+    public void play(PcmClip clip) {
+        long start = System.nanoTime();
+        setSource(ShortBuffer.wrap(clip.data, 0, clip.length).slice(), clip.sampleRate, clip.channelCount);
+        recordPrepare(start);
+        startSession();
+    }
+
+    /**
+     * 播放wav文件，只支持16位PCM
+     */
+    public void play(File wavFile) {
+        long start = System.nanoTime();
+        AudioInfo info = AudioProbe.probe(wavFile.getPath());
+        if (info == null || !info.isPcm16Wav()) {
+            onError(new IllegalArgumentException("unsupported wav: " + wavFile));
+            return;
+        }
+        if (!mapSource(wavFile, info.dataOffset, info.dataSize, info.sampleRate, info.channelCount)) {
+            return;
+        }
+        recordPrepare(start);
+        startSession();
+    }
+
+    /**
+     * 播放没有文件头的pcm文件，数据为16位小端、多声道交错存放
+     */
+    public void play(File pcmFile, int sampleRate, int channelCount) {
+        long start = System.nanoTime();
+        if (!mapSource(pcmFile, 0, pcmFile.length(), sampleRate, channelCount)) {
+            return;
+        }
+        recordPrepare(start);
+        startSession();
+    }
+
+    /**
+     * 暂停后继续播放，播放完成后从头开始
+     */
+    public void play() {
+        if (source == null || isPlaying && session != null && !session.paused) {
+            return;
+        }
+        if (session != null && !session.finished) {
+            isPlaying = true;
+            session.resume();
+        } else {
+            startSession();
+        }
+    }
+
+    private boolean mapSource(File file, long offset, long size, int sampleRate, int channelCount) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            size = Math.min(size, channel.size() - offset) / 2 * 2;
+            // 映射后关闭文件不影响已映射的内存
+            ShortBuffer shorts = channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                    .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            setSource(shorts, sampleRate, channelCount);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            onError(e);
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void setSource(ShortBuffer source, int sampleRate, int channelCount) {
+        stopSession();
+        this.source = source;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        totalFrames = source.remaining() / channelCount;
+        startFrame = 0;
+    }
+
+    private void recordPrepare(long start) {
+        if (metrics != null) {
+            metrics.record(AudioMetrics.STAGE_PREPARE, System.nanoTime() - start);
+        }
+    }
+
+    private void onError(Exception e) {
+        if (metrics != null) {
+            metrics.error(AudioMetrics.STAGE_PREPARE, e);
+        }
+    }
+
+    private void startSession() {
+        stopSession();
+        if (startFrame >= totalFrames) {
+            startFrame = 0;
+        }
+        isPlaying = true;
+        session = new Session(source.duplicate(), startFrame);
+        startFrame = 0;
+        if (playStateCallback != null) {
+            playStateCallback.onStarted();
+        }
+        playExecutor.execute(session);
+    }
+
+    private void stopSession() {
+        if (session != null) {
+            session.stop();
+            session = null;
+        }
+        isPlaying = false;
+    }
+
+    public void pause() {
+        isPlaying = false;
+        if (session != null) {
+            session.pause();
+        }
+    }
+
+    public void stop() {
+        stopSession();
+        startFrame = 0;
+    }
+
+    /**
+     * 释放播放线程，之后不能再使用
+     */
+    public void release() {
+        stopSession();
+        source = null;
+        mainHandler.removeCallbacksAndMessages(null);
+        playExecutor.shutdown();
+    }
+
+    public void seekTo(int timeMs) {
+        seekToFrame((long) timeMs * sampleRate / 1000);
+    }
+
+    /**
+     * 跳到第frame帧，暂停时保持暂停，播放完成后跳转则下次play时从该位置开始
+     */
+    public void seekToFrame(long frame) {
+        frame = Math.max(0, Math.min(totalFrames, frame));
+        if (session != null && !session.finished) {
+            session.seek(frame);
+        } else {
+            startFrame = frame;
+        }
+    }
+
+    /**
+     * @return 当前播放到的帧数
+     */
+    public long getPositionFrames() {
+        Session session = this.session;
+        if (session != null && !session.finished) {
+            return session.getPositionFrames();
+        }
+        return startFrame;
+    }
+
+    public long getCurrentPosition() {
+        return sampleRate > 0 ? getPositionFrames() * 1000 / sampleRate : 0;
+    }
+
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    public long getDuration() {
+        return sampleRate > 0 ? totalFrames * 1000 / sampleRate : 0;
+    }
+
+    public boolean isPlaying() {
+        return isPlaying;
+    }
+
+    /**
+     * 一次播放，在播放线程中把数据写入AudioTrack，控制方法在主线程中调用，
+     * 涉及AudioTrack状态的操作都在同一个锁内完成
+     */
+    private class Session implements Runnable {
+        private final ShortBuffer data;
+        private final long playRequestNanos = System.nanoTime();
+        private AudioTrack track;
+        private volatile boolean stopped;
+        private volatile boolean paused;
+        private volatile boolean finished;
+        private boolean started;
+        private boolean draining;
+        private boolean firstAudio;
+        /**
+         * 播放头到达写入的全部数据，之后位置固定在结尾
+         */
+        private volatile boolean completed;
+        private volatile long seekFrame = -1;
+        // 位置 = baseFrame + 播放头 - headBase，seek后重新设置
+        private volatile long baseFrame;
+        private volatile long headBase;
+        /**
+         * seek之后写入的帧数，不含结尾补的静音
+         */
+        private long writtenFrames;
+
+        Session(ShortBuffer data, long startFrame) {
+            this.data = data;
+            seekFrame = startFrame;
+        }
+
+        @Override
+        public void run() {
+            int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            int bufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+            try {
+                synchronized (this) {
+                    if (stopped) {
+                        return;
+                    }
+                    track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
+                            AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+                }
+                // 每次写半个缓冲，写完第一块之后开始播放
+                short[] chunk = new short[Math.max(channelCount, bufferSize / 4 / channelCount * channelCount)];
+                while (true) {
+                    synchronized (this) {
+                        if (stopped) {
+                            break;
+                        }
+                        if (seekFrame >= 0) {
+                            applySeek();
+                        }
+                    }
+                    int length = Math.min(chunk.length, data.remaining());
+                    if (length > 0) {
+                        data.get(chunk, 0, length);
+                        int written = track.write(chunk, 0, length);
+                        if (written > 0) {
+                            writtenFrames += written / channelCount;
+                        }
+                        startIfNeeded();
+                        checkFirstAudio();
+                        continue;
+                    }
+                    // 数据写完，stop会把播放头清零，所以保持播放，补一个缓冲的静音把剩下的数据推出去，
+                    // 播放头到达写入的帧数后再停止
+                    startIfNeeded();
+                    if (!draining) {
+                        draining = true;
+                        Arrays.fill(chunk, (short) 0);
+                        for (int padded = 0; padded < bufferSize / 2 && !stopped && seekFrame < 0;
+                             padded += chunk.length) {
+                            track.write(chunk, 0, chunk.length);
+                        }
+                        continue;
+                    }
+                    checkFirstAudio();
+                    if (isDrained()) {
+                        onComplete();
+                        break;
+                    }
+                    Thread.sleep(DRAIN_POLL_MS);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (metrics != null) {
+                    metrics.error(AudioMetrics.STAGE_FIRST_AUDIO, e);
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (session == Session.this) {
+                            isPlaying = false;
+                        }
+                    }
+                });
+            } finally {
+                synchronized (this) {
+                    finished = true;
+                    if (track != null) {
+                        track.release();
+                        track = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 在播放线程中调用，清空缓冲中的旧数据后从seekFrame继续写入
+         */
+        private void applySeek() {
+            track.pause();
+            track.flush();
+            long frame = seekFrame;
+            seekFrame = -1;
+            data.position((int) (frame * channelCount));
+            headBase = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            baseFrame = frame;
+            writtenFrames = 0;
+            draining = false;
+            if (started && !paused) {
+                track.play();
+            }
+        }
+
+        private synchronized void startIfNeeded() {
+            if (started || stopped) {
+                return;
+            }
+            started = true;
+            if (!paused) {
+                track.play();
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (session == Session.this && playStateCallback != null) {
+                        playStateCallback.onPrepared();
+                    }
+                }
+            });
+        }
+
+        private void checkFirstAudio() {
+            if (!firstAudio && metrics != null && track.getPlaybackHeadPosition() != 0) {
+                firstAudio = true;
+                metrics.record(AudioMetrics.STAGE_FIRST_AUDIO, System.nanoTime() - playRequestNanos);
+            }
+        }
+
+        /**
+         * 在播放线程中调用，播放头到达写入的全部数据后停止AudioTrack
+         */
+        private synchronized boolean isDrained() {
+            if (stopped || seekFrame >= 0) {
+                return false;
+            }
+            long head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            if (head - headBase < writtenFrames) {
+                return false;
+            }
+            completed = true;
+            track.stop();
+            return true;
+        }
+
+        private void onComplete() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (session != Session.this) {
+                        return;
+                    }
+                    isPlaying = false;
+                    // 停在结尾，再次play时从头开始
+                    startFrame = totalFrames;
+                    if (playStateCallback != null) {
+                        playStateCallback.onCompletion();
+                    }
+                }
+            });
+        }
+
+        long getPositionFrames() {
+            long seek = seekFrame;
+            if (seek >= 0) {
+                return seek;
+            }
+            if (completed) {
+                return totalFrames;
+            }
+            long head;
+            synchronized (this) {
+                if (track == null) {
+                    return baseFrame;
+                }
+                head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            }
+            return Math.max(0, Math.min(totalFrames, baseFrame + head - headBase));
+        }
+
+        synchronized void pause() {
+            paused = true;
+            if (track != null && started) {
+                track.pause();
+            }
+        }
+
+        synchronized void resume() {
+            paused = false;
+            if (track != null && started) {
+                track.play();
+            }
+        }
+
+        /**
+         * 播放线程阻塞在write中时，flush腾出空间让它返回，之后由播放线程重新flush并定位
+         */
+        synchronized void seek(long frame) {
+            seekFrame = frame;
+            if (track != null) {
+                track.pause();
+                track.flush();
+            }
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            if (track != null) {
+                track.pause();
+                track.flush();
+                track.stop();
+            }
+        }
+    }
+}
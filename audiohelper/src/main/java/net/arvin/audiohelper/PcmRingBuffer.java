@@ -0,0 +1,496 @@
+package net.arvin.audiohelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单生产者/单消费者的无锁PCM环形缓冲
+ * <p>
+ * 槽位在构造时一次性分配在一块direct内存上，录音线程通过write把每次读到的数据拷贝进自己的槽位，
+ * 编码线程通过read取出数据后回收槽位，稳态下不会产生任何对象分配。
+ * 读写都同时支持short[]和direct ByteBuffer，拷贝均为批量内存拷贝。
+ * <p>
+ * 缓冲写满时的行为由{@link OverrunPolicy}决定，同时统计队列深度、最高水位、丢弃和阻塞次数，
+ * 便于根据线上数据调整缓冲大小。
+ * <p>
+ * 只允许一个线程调用write，一个线程调用read；close可以在任意线程调用，不需要先停止生产者。
+ */
+public class PcmRingBuffer {
+
+    public enum OverrunPolicy {
+        /**
+         * 阻塞录音线程直到编码线程回收出空闲槽位，数据不丢失，但AudioRecord自身可能溢出
+         */
+        BLOCK,
+        /**
+         * 丢弃最早的一个槽位，保证录音线程永不阻塞
+         */
+        DROP_OLDEST,
+        /**
+         * 溢出的数据写入临时PCM文件，编码线程追上后再从文件中读回，数据不丢失且不阻塞
+         */
+        SPILL
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 同一块内存的两组视图，生产者和消费者各用一组，互不影响position
+     */
+    private final ByteBuffer[] writeSlots;
+    private final ShortBuffer[] writeShorts;
+    private final ByteBuffer[] readSlots;
+    private final ShortBuffer[] readShorts;
+    private final int[] sizes;
+    private final int slotSize;
+    private final int capacity;
+    private final int mask;
+    private final OverrunPolicy policy;
+
+    /**
+     * 只由生产者推进
+     */
+    private final AtomicLong writeIndex = new AtomicLong();
+    /**
+     * 由消费者推进，DROP_OLDEST时生产者也会通过CAS推进
+     */
+    private final AtomicLong readIndex = new AtomicLong();
+
+    private volatile boolean closed;
+
+    // 以下统计字段均只有一个写线程
+    private volatile long writtenSamples;
+    private volatile long readSamples;
+    private volatile long droppedSamples;
+    private volatile long evictedSamples;
+    private volatile long spilledSamples;
+    private volatile int highWaterMark;
+    private volatile int stallCount;
+    private volatile long stallNanos;
+
+    private File spillFile;
+    /**
+     * 生产者写溢出文件和close关闭、删除溢出文件互斥，close之后生产者不会再创建文件
+     */
+    private final Object spillLock = new Object();
+    private volatile FileChannel spillChannel;
+    private int spillRecordSize;
+    private ByteBuffer spillWriteBuffer;
+    private ShortBuffer spillWriteShorts;
+    private ByteBuffer spillReadBuffer;
+    private ShortBuffer spillReadShorts;
+    private final AtomicLong spillWriteIndex = new AtomicLong();
+    private final AtomicLong spillReadIndex = new AtomicLong();
+    /**
+     * 溢出文件开头那条记录的序号，溢出的数据全部读完后文件清空，之后的记录重新从文件开头写起。
+     * 只在持有spillLock时修改
+     */
+    private long spillBaseIndex;
+
+    /**
+     * @param slotCount 槽位数，会向上取整为2的幂
+     * @param slotSize  每个槽位可容纳的采样数
+     */
+    public PcmRingBuffer(int slotCount, int slotSize) {
+        this(slotCount, slotSize, OverrunPolicy.BLOCK, null);
+    }
+
+    /**
+     * @param spillFile 仅{@link OverrunPolicy#SPILL}时使用的临时文件，{@link #close()}时删除
+     */
+    public PcmRingBuffer(int slotCount, int slotSize, OverrunPolicy policy, File spillFile) {
+        if (slotCount <= 0 || slotSize <= 0) {
+            throw new IllegalArgumentException("slotCount and slotSize must be positive");
+        }
+        if (policy == OverrunPolicy.SPILL && spillFile == null) {
+            throw new IllegalArgumentException("spillFile is required for SPILL policy");
+        }
+        int capacity = Integer.highestOneBit(slotCount);
+        if (capacity < slotCount) {
+            capacity <<= 1;
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slotSize = slotSize;
+        this.sizes = new int[capacity];
+        this.writeSlots = new ByteBuffer[capacity];
+        this.writeShorts = new ShortBuffer[capacity];
+        this.readSlots = new ByteBuffer[capacity];
+        this.readShorts = new ShortBuffer[capacity];
+        ByteBuffer storage = ByteBuffer.allocateDirect(capacity * slotSize * 2);
+        for (int i = 0; i < capacity; i++) {
+            storage.limit((i + 1) * slotSize * 2);
+            storage.position(i * slotSize * 2);
+            ByteBuffer slot = storage.slice().order(ByteOrder.nativeOrder());
+            writeSlots[i] = slot;
+            writeShorts[i] = slot.asShortBuffer();
+            readSlots[i] = slot.duplicate().order(ByteOrder.nativeOrder());
+            readShorts[i] = readSlots[i].asShortBuffer();
+        }
+        this.policy = policy;
+        if (policy == OverrunPolicy.SPILL) {
+            this.spillFile = spillFile;
+            // 每条记录：4字节长度 + 一个槽位的采样
+            spillRecordSize = 4 + slotSize * 2;
+            spillWriteBuffer = ByteBuffer.allocateDirect(spillRecordSize).order(ByteOrder.nativeOrder());
+            spillWriteShorts = spillWriteBuffer.asShortBuffer();
+            spillReadBuffer = ByteBuffer.allocateDirect(spillRecordSize).order(ByteOrder.nativeOrder());
+            spillReadShorts = spillReadBuffer.asShortBuffer();
+        }
+    }
+
+    /**
+     * 生产者调用，把数据拷贝到下一个空闲槽位，缓冲已满时按{@link OverrunPolicy}处理
+     *
+     * @return 数据未能写入时返回false，只会在DROP_OLDEST抢占失败、溢出文件出错或缓冲已关闭时发生
+     */
+    public boolean write(short[] src, int offset, int length) {
+        return write(src, null, offset, length);
+    }
+
+    /**
+     * 同{@link #write(short[], int, int)}，从src的position开始拷贝length个采样，写入成功后src的position会前移
+     *
+     * @param src 字节序需为{@link ByteOrder#nativeOrder()}
+     */
+    public boolean write(ByteBuffer src, int length) {
+        return write(null, src, 0, length);
+    }
+
+    private boolean write(short[] src, ByteBuffer srcBuffer, int offset, int length) {
+        if (length > slotSize) {
+            throw new IllegalArgumentException("length " + length + " exceeds slot size " + slotSize);
+        }
+        if (closed) {
+            return false;
+        }
+        boolean written;
+        switch (policy) {
+            case DROP_OLDEST:
+                written = writeDropOldest(src, srcBuffer, offset, length);
+                break;
+            case SPILL:
+                written = writeSpill(src, srcBuffer, offset, length);
+                break;
+            case BLOCK:
+            default:
+                written = writeBlocking(src, srcBuffer, offset, length);
+                break;
+        }
+        if (written) {
+            writtenSamples += length;
+            int depth = size();
+            if (depth > highWaterMark) {
+                highWaterMark = depth;
+            }
+        }
+        return written;
+    }
+
+    private boolean writeBlocking(short[] src, ByteBuffer srcBuffer, int offset, int length) {
+        if (tryWrite(src, srcBuffer, offset, length)) {
+            return true;
+        }
+        long start = System.nanoTime();
+        stallCount++;
+        boolean written = false;
+        while (!closed) {
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            if (tryWrite(src, srcBuffer, offset, length)) {
+                written = true;
+                break;
+            }
+        }
+        stallNanos += System.nanoTime() - start;
+        return written;
+    }
+
+    private boolean writeDropOldest(short[] src, ByteBuffer srcBuffer, int offset, int length) {
+        if (tryWrite(src, srcBuffer, offset, length)) {
+            return true;
+        }
+        long w = writeIndex.get();
+        long r = readIndex.get();
+        // 先抢占最早的槽位再写入；消费者拷贝完成后的CAS会失败，从而丢弃可能被覆盖的数据
+        if (w - r >= capacity && readIndex.compareAndSet(r, r + 1)) {
+            int evicted = sizes[(int) (r & mask)];
+            evictedSamples += evicted;
+            droppedSamples += evicted;
+        }
+        return tryWrite(src, srcBuffer, offset, length);
+    }
+
+    private boolean writeSpill(short[] src, ByteBuffer srcBuffer, int offset, int length) {
+        // 溢出文件中还有数据时必须继续写文件，保证顺序
+        if (spillWriteIndex.get() == spillReadIndex.get() && tryWrite(src, srcBuffer, offset, length)) {
+            return true;
+        }
+        synchronized (spillLock) {
+            if (closed) {
+                return false;
+            }
+            return writeSpillFile(src, srcBuffer, offset, length);
+        }
+    }
+
+    private boolean writeSpillFile(short[] src, ByteBuffer srcBuffer, int offset, int length) {
+        try {
+            if (spillChannel == null) {
+                spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+            }
+            spillWriteBuffer.clear();
+            spillWriteBuffer.putInt(0, length);
+            if (src != null) {
+                spillWriteShorts.clear();
+                spillWriteShorts.position(2);
+                spillWriteShorts.put(src, offset, length);
+            } else {
+                spillWriteBuffer.position(4);
+                copy(srcBuffer, spillWriteBuffer, length * 2);
+                spillWriteBuffer.clear();
+            }
+            long index = spillWriteIndex.get();
+            long position = (index - spillBaseIndex) * spillRecordSize;
+            while (spillWriteBuffer.hasRemaining()) {
+                spillChannel.write(spillWriteBuffer, position + spillWriteBuffer.position());
+            }
+            spilledSamples += length;
+            spillWriteIndex.lazySet(index + 1);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            droppedSamples += length;
+            return false;
+        }
+    }
+
+    private boolean tryWrite(short[] src, ByteBuffer srcBuffer, int offset, int length) {
+        long w = writeIndex.get();
+        if (w - readIndex.get() >= capacity) {
+            return false;
+        }
+        int index = (int) (w & mask);
+        if (src != null) {
+            ShortBuffer slot = writeShorts[index];
+            slot.clear();
+            slot.put(src, offset, length);
+        } else {
+            ByteBuffer slot = writeSlots[index];
+            slot.clear();
+            copy(srcBuffer, slot, length * 2);
+        }
+        sizes[index] = length;
+        writeIndex.lazySet(w + 1);
+        return true;
+    }
+
+    /**
+     * 消费者调用，取出最早的一个槽位的数据并回收该槽位
+     *
+     * @param dst 长度至少为offset+{@link #getSlotSize()}
+     * @return 读取的采样数，缓冲为空时返回0
+     */
+    public int read(short[] dst, int offset) {
+        return read(dst, null, offset);
+    }
+
+    /**
+     * 同{@link #read(short[], int)}，数据写入dst的position处，dst的position会前移
+     *
+     * @param dst 剩余空间至少为{@link #getSlotSize()}个采样
+     */
+    public int read(ByteBuffer dst) {
+        return read(null, dst, 0);
+    }
+
+    private int read(short[] dst, ByteBuffer dstBuffer, int offset) {
+        int start = dstBuffer != null ? dstBuffer.position() : 0;
+        while (true) {
+            long r = readIndex.get();
+            if (r == writeIndex.get()) {
+                return readSpill(dst, dstBuffer, offset);
+            }
+            int index = (int) (r & mask);
+            int size = sizes[index];
+            if (dst != null) {
+                ShortBuffer slot = readShorts[index];
+                slot.clear();
+                slot.get(dst, offset, size);
+            } else {
+                ByteBuffer slot = readSlots[index];
+                slot.clear();
+                slot.limit(size * 2);
+                dstBuffer.put(slot);
+            }
+            if (readIndex.compareAndSet(r, r + 1)) {
+                readSamples += size;
+                return size;
+            }
+            // 拷贝期间该槽位被生产者丢弃，数据可能已被覆盖，重新读取
+            if (dstBuffer != null) {
+                dstBuffer.position(start);
+            }
+        }
+    }
+
+    private int readSpill(short[] dst, ByteBuffer dstBuffer, int offset) {
+        FileChannel spillChannel = this.spillChannel;
+        if (spillChannel == null) {
+            return 0;
+        }
+        long index = spillReadIndex.get();
+        if (index == spillWriteIndex.get()) {
+            return 0;
+        }
+        try {
+            long position = (index - spillBaseIndex) * spillRecordSize;
+            spillReadBuffer.clear();
+            while (spillReadBuffer.hasRemaining()) {
+                if (spillChannel.read(spillReadBuffer, position + spillReadBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            int size = spillReadBuffer.getInt(0);
+            if (dst != null) {
+                spillReadShorts.clear();
+                spillReadShorts.position(2);
+                spillReadShorts.get(dst, offset, size);
+            } else {
+                spillReadBuffer.limit(4 + size * 2);
+                spillReadBuffer.position(4);
+                dstBuffer.put(spillReadBuffer);
+            }
+            spillReadIndex.lazySet(index + 1);
+            readSamples += size;
+            if (index + 1 == spillWriteIndex.get()) {
+                rewindSpill();
+            }
+            return size;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * 消费者读完溢出文件中的全部记录后调用，清空文件，否则文件只会越写越大
+     * <p>
+     * 生产者写文件时持有spillLock，清空前要再确认这期间没有写入新的记录
+     */
+    private void rewindSpill() {
+        synchronized (spillLock) {
+            if (closed || spillChannel == null || spillReadIndex.get() != spillWriteIndex.get()) {
+                return;
+            }
+            try {
+                spillChannel.truncate(0);
+                spillBaseIndex = spillWriteIndex.get();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 从src的position拷贝length个字节到dst，src的position随之前移
+     */
+    private static void copy(ByteBuffer src, ByteBuffer dst, int length) {
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        dst.put(src);
+        src.limit(limit);
+    }
+
+    /**
+     * 释放阻塞中的生产者并删除溢出文件，之后的写入都会失败
+     * <p>
+     * 生产者可能正在写溢出文件，关闭和删除要等这次写入结束
+     */
+    public void close() {
+        closed = true;
+        if (spillFile == null) {
+            return;
+        }
+        synchronized (spillLock) {
+            if (spillChannel != null) {
+                try {
+                    spillChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                spillChannel = null;
+            }
+            if (spillFile.exists()) {
+                spillFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return 当前已写入但还未被读取的槽位数，包含溢出文件中的部分
+     */
+    public int size() {
+        return (int) (writeIndex.get() - readIndex.get()
+                + spillWriteIndex.get() - spillReadIndex.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public OverrunPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return 出现过的最大队列深度（槽位数）
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return 还在排队等待编码的采样数
+     */
+    public long getPendingSamples() {
+        return writtenSamples - readSamples - evictedSamples;
+    }
+
+    /**
+     * @return 被丢弃的采样数，包括DROP_OLDEST淘汰的和写溢出文件失败的
+     */
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public long getSpilledSamples() {
+        return spilledSamples;
+    }
+
+    /**
+     * @return BLOCK策略下录音线程被阻塞的次数
+     */
+    public int getStallCount() {
+        return stallCount;
+    }
+
+    public long getStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanos);
+    }
+}
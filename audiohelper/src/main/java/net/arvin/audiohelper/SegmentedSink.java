@@ -0,0 +1,584 @@
+package net.arvin.audiohelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 分段输出，长时间录音按时长或大小切换到新的文件
+ * <p>
+ * 编码结果先经过{@link StreamingSink}按帧边界切块，每个分段都是可以单独播放的完整文件；
+ * 分段写完后立即fsync并回调{@link Listener}，可以马上上传，录音结束时只需要关闭最后一个分段。
+ * <p>
+ * 分段的文件名和时长记录在清单文件中（录音文件路径加".segments"），每次切换分段都会原子地重写清单。
+ * 进程被杀后用{@link #recover(File)}截掉最后一个分段末尾不完整的帧并补全清单；
+ * {@link #concat(File, File)}不重新编码，直接把所有分段拼成一个文件。
+ * <p>
+ * 录音文件本身不会被写入，支持mp3、带ADTS头的aac和wav。mp3开头占位的Info/Xing标签帧无法回写，
+ * 会被去掉，拼接时重新生成。除静态方法外都在编码线程中调用。
+ */
+public class SegmentedSink implements OutputSink {
+
+    public static final String MANIFEST_SUFFIX = ".segments";
+
+    private static final String MANIFEST_VERSION = "segments 1";
+    private static final String STATE_OPEN = "open";
+    private static final String STATE_CLOSED = "closed";
+    private static final String END = "end";
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    public interface Listener {
+        /**
+         * 编码线程回调，分段文件已关闭并落盘，可以上传
+         */
+        void onSegmentComplete(Segment segment);
+    }
+
+    public static class Segment {
+        public final int index;
+        public final File file;
+        public final long durationMs;
+        public final long bytes;
+        /**
+         * 为false时是录音中断时正在写的分段，需要{@link #recover(File)}后才能使用
+         */
+        public final boolean complete;
+
+        final long durationUs;
+
+        Segment(int index, File file, long durationUs, long bytes, boolean complete) {
+            this.index = index;
+            this.file = file;
+            this.durationUs = durationUs;
+            this.durationMs = durationUs / 1000;
+            this.bytes = bytes;
+            this.complete = complete;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "index=" + index +
+                    ", file=" + file.getName() +
+                    ", durationMs=" + durationMs +
+                    ", bytes=" + bytes +
+                    ", complete=" + complete +
+                    '}';
+        }
+    }
+
+    private final File recordFile;
+    private final File manifestFile;
+    private final String format;
+    private final int sampleRate;
+    private final int channelCount;
+    private final long maxSegmentUs;
+    private final long maxSegmentBytes;
+    private final Listener listener;
+    private final StreamingSink splitter;
+    private final List<Segment> segments = new ArrayList<>();
+
+    private FileSink current;
+    private File currentFile;
+    private long currentUs;
+    private long currentBytes;
+    private boolean headerChecked;
+    /**
+     * splitter回调中第一次打开或写入分段失败的异常，之后的数据不再写入，write、flush和close都会抛出
+     */
+    private IOException failure;
+
+    /**
+     * @param maxSegmentMillis 每个分段的最长时长，0表示不按时长切换
+     * @param maxSegmentBytes  每个分段的最大字节数，0表示不按大小切换
+     */
+    public static OutputSink.Factory factory(final String format, final int sampleRate, final int channelCount,
+                                             final long maxSegmentMillis, final long maxSegmentBytes,
+                                             final Listener listener) {
+        return new OutputSink.Factory() {
+            @Override
+            public OutputSink create(File file) throws IOException {
+                return new SegmentedSink(file, format, sampleRate, channelCount, maxSegmentMillis,
+                        maxSegmentBytes, listener);
+            }
+        };
+    }
+
+    /**
+     * @param recordFile 用来生成分段和清单的文件名，会被删除，拼接时可以作为输出
+     */
+    public SegmentedSink(File recordFile, String format, int sampleRate, int channelCount,
+                         long maxSegmentMillis, long maxSegmentBytes, Listener listener) throws IOException {
+        this.recordFile = recordFile;
+        this.manifestFile = getManifestFile(recordFile);
+        this.format = format;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.maxSegmentUs = maxSegmentMillis * 1000;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.listener = listener;
+        splitter = new StreamingSink(format, sampleRate, channelCount, new StreamingSink.Listener() {
+            @Override
+            public void onChunk(byte[] data, int offset, int length, long sequence, long timestampUs,
+                                long durationUs) {
+                if (failure != null) {
+                    return;
+                }
+                try {
+                    writeChunk(data, offset, length, durationUs);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failure = e;
+                }
+            }
+
+            @Override
+            public void onComplete(long chunkCount, long totalBytes) {
+            }
+        });
+        recordFile.delete();
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        throwIfFailed();
+        splitter.write(buffer, offset, length);
+        throwIfFailed();
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        throwIfFailed();
+        splitter.write(buffer);
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 分段写完就交出去了，不支持回写
+     */
+    @Override
+    public boolean patch(long position, byte[] buffer, int offset, int length) {
+        return false;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        throwIfFailed();
+        splitter.flush();
+        throwIfFailed();
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        splitter.close();
+        if (failure != null) {
+            // 分段中间丢了数据，不记为完成，清单中保留为未完成的分段
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                current = null;
+            }
+            throw failure;
+        }
+        closeSegment();
+        if (!segments.isEmpty()) {
+            writeManifest(manifestFile, format, sampleRate, channelCount, segments, true);
+        }
+    }
+
+    private void writeChunk(byte[] data, int offset, int length, long durationUs) throws IOException {
+        if (!headerChecked) {
+            headerChecked = true;
+            if (StreamingSink.FORMAT_WAV.equals(format)) {
+                // 第0块是splitter发出的流式WAV头，每个分段自己写头；mp3占位的标签帧已经被splitter去掉
+                return;
+            }
+        }
+        if (current != null && (maxSegmentUs > 0 && currentUs >= maxSegmentUs
+                || maxSegmentBytes > 0 && currentBytes + length > maxSegmentBytes)) {
+            closeSegment();
+        }
+        if (current == null) {
+            openSegment();
+        }
+        current.write(data, offset, length);
+        currentUs += durationUs;
+        currentBytes += length;
+    }
+
+    private void openSegment() throws IOException {
+        currentFile = getSegmentFile(recordFile, segments.size());
+        current = new FileSink(currentFile);
+        current.setFlushInterval(FileSink.DEFAULT_FLUSH_INTERVAL_MILLIS);
+        current.setSyncPolicy(FileSink.SyncPolicy.ON_CLOSE, 0);
+        currentUs = 0;
+        currentBytes = 0;
+        if (StreamingSink.FORMAT_WAV.equals(format)) {
+            byte[] header = new byte[WavEncoder.HEADER_SIZE];
+            WavEncoder.writeHeader(header, 0, sampleRate, channelCount, 0);
+            current.write(header, 0, header.length);
+            currentBytes = header.length;
+        }
+        // 先记下正在写的分段，中断后recover才知道要修复哪个文件
+        List<Segment> manifest = new ArrayList<>(segments);
+        manifest.add(new Segment(segments.size(), currentFile, 0, 0, false));
+        writeManifest(manifestFile, format, sampleRate, channelCount, manifest, false);
+    }
+
+    private void closeSegment() throws IOException {
+        if (current == null) {
+            return;
+        }
+        if (StreamingSink.FORMAT_WAV.equals(format)) {
+            byte[] header = new byte[WavEncoder.HEADER_SIZE];
+            WavEncoder.writeHeader(header, 0, sampleRate, channelCount, currentBytes - WavEncoder.HEADER_SIZE);
+            current.patch(0, header, 0, header.length);
+        }
+        current.close();
+        current = null;
+        Segment segment = new Segment(segments.size(), currentFile, currentUs, currentBytes, true);
+        segments.add(segment);
+        writeManifest(manifestFile, format, sampleRate, channelCount, segments, false);
+        if (listener != null) {
+            listener.onSegmentComplete(segment);
+        }
+    }
+
+    /**
+     * @return 已经写完的分段
+     */
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    public File getManifestFile() {
+        return manifestFile;
+    }
+
+    public static File getManifestFile(File recordFile) {
+        return new File(recordFile.getPath() + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * 例如1700000000000.mp3的第1个分段为1700000000000_001.mp3
+     */
+    static File getSegmentFile(File recordFile, int index) {
+        String name = recordFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(recordFile.getParentFile(), String.format("%s_%03d%s", base, index, extension));
+    }
+
+    private static void writeManifest(File manifestFile, String format, int sampleRate, int channelCount,
+                                      List<Segment> segments, boolean finished) throws IOException {
+        File temp = new File(manifestFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            Writer writer = new OutputStreamWriter(stream, "UTF-8");
+            writer.write(MANIFEST_VERSION + "\n");
+            writer.write(format + " " + sampleRate + " " + channelCount + "\n");
+            for (Segment segment : segments) {
+                writer.write(segment.index + " " + segment.file.getName() + " " + segment.durationUs + " "
+                        + segment.bytes + " " + (segment.complete ? STATE_CLOSED : STATE_OPEN) + "\n");
+            }
+            if (finished) {
+                writer.write(END + "\n");
+            }
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(manifestFile)) {
+            throw new IOException("rename manifest failed: " + manifestFile);
+        }
+    }
+
+    /**
+     * 读取清单中的分段，清单不存在或无法解析时返回null
+     */
+    public static List<Segment> readSegments(File manifestFile) {
+        Manifest manifest = readManifest(manifestFile);
+        return manifest != null ? manifest.segments : null;
+    }
+
+    /**
+     * @return 录音是否正常结束，为false时需要{@link #recover(File)}
+     */
+    public static boolean isFinished(File manifestFile) {
+        Manifest manifest = readManifest(manifestFile);
+        return manifest != null && manifest.finished;
+    }
+
+    private static class Manifest {
+        String format;
+        int sampleRate;
+        int channelCount;
+        boolean finished;
+        final List<Segment> segments = new ArrayList<>();
+    }
+
+    private static Manifest readManifest(File manifestFile) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(manifestFile));
+            if (!MANIFEST_VERSION.equals(reader.readLine())) {
+                return null;
+            }
+            Manifest manifest = new Manifest();
+            String[] info = reader.readLine().split(" ");
+            manifest.format = info[0];
+            manifest.sampleRate = Integer.parseInt(info[1]);
+            manifest.channelCount = Integer.parseInt(info[2]);
+            File dir = manifestFile.getParentFile();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (END.equals(line)) {
+                    manifest.finished = true;
+                    break;
+                }
+                String[] parts = line.split(" ");
+                manifest.segments.add(new Segment(Integer.parseInt(parts[0]), new File(dir, parts[1]),
+                        Long.parseLong(parts[2]), Long.parseLong(parts[3]), STATE_CLOSED.equals(parts[4])));
+            }
+            return manifest;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 修复中断的录音：截掉最后一个分段末尾不完整的帧，重新计算它的时长，并把清单标记为已结束。
+     * 只需要处理最后一个分段，之前的分段在切换时已经落盘。
+     *
+     * @return 修复后的分段，清单无法读取时返回null
+     */
+    public static List<Segment> recover(File manifestFile) {
+        Manifest manifest = readManifest(manifestFile);
+        if (manifest == null) {
+            return null;
+        }
+        if (manifest.finished) {
+            return manifest.segments;
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (Segment segment : manifest.segments) {
+            if (segment.complete) {
+                segments.add(segment);
+                continue;
+            }
+            try {
+                Segment recovered = recoverSegment(manifest, segment);
+                if (recovered != null) {
+                    segments.add(recovered);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            writeManifest(manifestFile, manifest.format, manifest.sampleRate, manifest.channelCount, segments, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return segments;
+    }
+
+    /**
+     * @return 没有一个完整帧时删除文件并返回null
+     */
+    private static Segment recoverSegment(Manifest manifest, Segment segment) throws IOException {
+        if (!segment.file.exists()) {
+            return null;
+        }
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        try {
+            long length = file.length();
+            long validBytes;
+            long samples;
+            if (StreamingSink.FORMAT_WAV.equals(manifest.format)) {
+                int frameBytes = manifest.channelCount * 2;
+                samples = Math.max(0, (length - WavEncoder.HEADER_SIZE) / frameBytes);
+                validBytes = WavEncoder.HEADER_SIZE + samples * frameBytes;
+                byte[] header = new byte[WavEncoder.HEADER_SIZE];
+                WavEncoder.writeHeader(header, 0, manifest.sampleRate, manifest.channelCount, samples * frameBytes);
+                file.seek(0);
+                file.write(header);
+            } else {
+                FileChannel channel = file.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                long[] result = scanFrames(buffer, (int) length, manifest.format);
+                validBytes = result[0];
+                samples = result[1];
+            }
+            if (samples == 0) {
+                file.close();
+                segment.file.delete();
+                return null;
+            }
+            file.setLength(validBytes);
+            file.getFD().sync();
+            return new Segment(segment.index, segment.file, samples * 1000000L / manifest.sampleRate,
+                    validBytes, true);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 从头逐帧扫描，遇到不完整或不合法的帧就停下
+     *
+     * @return {完整帧的总字节数, 总采样数}
+     */
+    private static long[] scanFrames(ByteBuffer buffer, int length, String format) {
+        Mp3FrameHeader header = new Mp3FrameHeader();
+        int position = 0;
+        long samples = 0;
+        while (true) {
+            int frameLength;
+            int frameSamples;
+            if (StreamingSink.FORMAT_AAC.equals(format)) {
+                if (position + ADTS_HEADER_SIZE > length || (buffer.get(position) & 0xFF) != 0xFF
+                        || (buffer.get(position + 1) & 0xF0) != 0xF0) {
+                    break;
+                }
+                frameLength = ((buffer.get(position + 3) & 0x03) << 11) | ((buffer.get(position + 4) & 0xFF) << 3)
+                        | ((buffer.get(position + 5) & 0xE0) >> 5);
+                frameSamples = AAC_SAMPLES_PER_FRAME;
+                if (frameLength <= ADTS_HEADER_SIZE) {
+                    break;
+                }
+            } else {
+                if (position + Mp3FrameHeader.HEADER_SIZE > length || !header.parse(buffer.getInt(position))) {
+                    break;
+                }
+                frameLength = header.frameLength;
+                frameSamples = header.samplesPerFrame;
+            }
+            if (position + frameLength > length) {
+                break;
+            }
+            position += frameLength;
+            samples += frameSamples;
+        }
+        return new long[]{position, samples};
+    }
+
+    /**
+     * 不重新编码，把所有分段按顺序拼成一个文件：wav只保留一个文件头，mp3在开头重新生成Info标签帧
+     *
+     * @return 清单中有未修复的分段或出错时返回false
+     */
+    public static boolean concat(File manifestFile, File output) {
+        Manifest manifest = readManifest(manifestFile);
+        if (manifest == null) {
+            return false;
+        }
+        boolean wav = StreamingSink.FORMAT_WAV.equals(manifest.format);
+        boolean mp3 = StreamingSink.FORMAT_MP3.equals(manifest.format);
+        long dataSize = 0;
+        for (Segment segment : manifest.segments) {
+            if (!segment.complete) {
+                return false;
+            }
+            dataSize += wav ? segment.bytes - WavEncoder.HEADER_SIZE : segment.bytes;
+        }
+        FileSink out = null;
+        try {
+            out = new FileSink(output);
+            out.setSyncPolicy(FileSink.SyncPolicy.ON_CLOSE, 0);
+            XingHeader xingHeader = mp3 ? new XingHeader() : null;
+            byte[] buffer = new byte[COPY_BUFFER_SIZE + XingHeader.MAX_FRAME_SIZE];
+            if (wav) {
+                WavEncoder.writeHeader(buffer, 0, manifest.sampleRate, manifest.channelCount, dataSize);
+                out.write(buffer, 0, WavEncoder.HEADER_SIZE);
+            }
+            for (Segment segment : manifest.segments) {
+                FileInputStream in = new FileInputStream(segment.file);
+                try {
+                    if (wav) {
+                        in.skip(WavEncoder.HEADER_SIZE);
+                    }
+                    int read;
+                    while ((read = in.read(buffer, 0, COPY_BUFFER_SIZE)) > 0) {
+                        // 第一次调用时在前面插入标签帧，并记录每一帧的位置
+                        int size = xingHeader != null ? xingHeader.process(buffer, read) : read;
+                        out.write(buffer, 0, size);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            if (xingHeader != null) {
+                // 分段中没有编码器延迟的信息
+                int tagSize = xingHeader.write(buffer, 0, 0);
+                if (tagSize > 0) {
+                    out.patch(0, buffer, 0, tagSize);
+                }
+            }
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+            output.delete();
+            return false;
+        }
+    }
+
+    /**
+     * 删除清单和所有分段
+     */
+    public static void delete(File manifestFile) {
+        Manifest manifest = readManifest(manifestFile);
+        if (manifest != null) {
+            for (Segment segment : manifest.segments) {
+                segment.file.delete();
+            }
+        }
+        manifestFile.delete();
+    }
+}
@@ -0,0 +1,389 @@
+package net.arvin.audiohelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 边录边输出的流式输出
+ * <p>
+ * 把编码结果按帧边界切分成块，连同序号和时间戳实时交给{@link Listener}，
+ * 上传可以和录音同时进行，停止录音后只需要再发送最后一块。
+ * <p>
+ * 支持mp3、带ADTS头的aac和wav，回调在编码线程中执行，不能阻塞，回调中的data只在回调期间有效。
+ * mp3开头占位的Info/Xing标签帧不会发出，它的内容要到录音结束才回写，而发出去的数据无法修改。
+ * wav同理不发出编码器占位的文件头，第0块换成RIFF和data长度都为0xFFFFFFFF的流式文件头，
+ * 接收方需要完整文件时按收到的总字节数自行改写这两个长度。
+ */
+public class StreamingSink implements OutputSink {
+
+    public static final String FORMAT_MP3 = "mp3";
+    public static final String FORMAT_AAC = "aac";
+    public static final String FORMAT_WAV = "wav";
+
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int TAG_XING = 0x58696E67;
+    private static final int TAG_INFO = 0x496E666F;
+
+    /**
+     * 回调抛出的IOException会从触发它的write、flush或close抛出，编码线程会把它报告给AudioMetrics
+     */
+    public interface Listener {
+        /**
+         * @param sequence    从0开始的块序号
+         * @param timestampUs 块中第一帧的时间戳
+         * @param durationUs  块中所有帧的总时长
+         */
+        void onChunk(byte[] data, int offset, int length, long sequence, long timestampUs, long durationUs)
+                throws IOException;
+
+        /**
+         * 输出结束，之后不会再有onChunk；close时发送最后一块失败也会回调，可以在这里释放资源
+         */
+        void onComplete(long chunkCount, long totalBytes) throws IOException;
+    }
+
+    private final String format;
+    private final int sampleRate;
+    private final int channelCount;
+    private final Listener listener;
+    private final Mp3FrameHeader mp3Header = new Mp3FrameHeader();
+
+    private byte[] pending = new byte[INITIAL_BUFFER_SIZE];
+    private int pendingSize;
+    private boolean wavHeaderSent;
+    private boolean firstFrameChecked;
+
+    private long sequence;
+    private long emittedSamples;
+    private long totalBytes;
+
+    /**
+     * @param format 与{@link Encoder#getFileExtension()}一致
+     */
+    public StreamingSink(String format, int sampleRate, int channelCount, Listener listener) {
+        this.format = format;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        ensureCapacity(pendingSize + length);
+        System.arraycopy(buffer, offset, pending, pendingSize, length);
+        pendingSize += length;
+        emitFrames();
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        ensureCapacity(pendingSize + length);
+        buffer.get(pending, pendingSize, length);
+        pendingSize += length;
+        emitFrames();
+    }
+
+    /**
+     * 已经发出去的数据无法修改
+     */
+    @Override
+    public boolean patch(long position, byte[] buffer, int offset, int length) {
+        return false;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        emitFrames();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            emitFrames();
+            if (pendingSize > 0) {
+                // 剩下的不完整数据也一并发出
+                emit(0, pendingSize, 0);
+                pendingSize = 0;
+            }
+        } finally {
+            listener.onComplete(sequence, totalBytes);
+        }
+    }
+
+    private void emitFrames() throws IOException {
+        int position = 0;
+        long samples = 0;
+        if (FORMAT_WAV.equals(format)) {
+            if (!wavHeaderSent) {
+                if (pendingSize < WavEncoder.HEADER_SIZE) {
+                    return;
+                }
+                // 占位头的长度为0且无法回写，原地换成流式头作为第0块单独发出
+                WavEncoder.writeStreamingHeader(pending, 0, sampleRate, channelCount);
+                emit(0, WavEncoder.HEADER_SIZE, 0);
+                wavHeaderSent = true;
+                position = WavEncoder.HEADER_SIZE;
+            }
+            int frameBytes = channelCount * 2;
+            int frames = (pendingSize - position) / frameBytes;
+            samples = frames;
+            if (frames > 0) {
+                emit(position, frames * frameBytes, samples);
+                position += frames * frameBytes;
+            }
+        } else {
+            int start = position;
+            while (true) {
+                int frameLength = nextFrameLength(position);
+                if (frameLength == 0) {
+                    break;
+                }
+                if (frameLength < 0) {
+                    // 不是帧头，先发出已切好的帧，再跳过一个字节重新同步
+                    if (position > start) {
+                        emit(start, position - start, samples);
+                        samples = 0;
+                    }
+                    position++;
+                    start = position;
+                    continue;
+                }
+                if (position + frameLength > pendingSize) {
+                    break;
+                }
+                if (!firstFrameChecked) {
+                    firstFrameChecked = true;
+                    if (FORMAT_MP3.equals(format) && isTagFrame(position)) {
+                        // 丢掉占位的标签帧，也不计入时长
+                        if (position > start) {
+                            emit(start, position - start, samples);
+                            samples = 0;
+                        }
+                        position += frameLength;
+                        start = position;
+                        continue;
+                    }
+                }
+                samples += FORMAT_AAC.equals(format) ? AAC_SAMPLES_PER_FRAME : mp3Header.samplesPerFrame;
+                position += frameLength;
+            }
+            if (position > start) {
+                emit(start, position - start, samples);
+            }
+        }
+        if (position > 0) {
+            System.arraycopy(pending, position, pending, 0, pendingSize - position);
+            pendingSize -= position;
+        }
+    }
+
+    /**
+     * @return position处帧的长度；数据不足以判断时返回0；不是合法帧头时返回-1
+     */
+    private int nextFrameLength(int position) {
+        int remaining = pendingSize - position;
+        if (FORMAT_AAC.equals(format)) {
+            if (remaining < ADTS_HEADER_SIZE) {
+                return 0;
+            }
+            if ((pending[position] & 0xFF) != 0xFF || (pending[position + 1] & 0xF0) != 0xF0) {
+                return -1;
+            }
+            int frameLength = ((pending[position + 3] & 0x03) << 11) | ((pending[position + 4] & 0xFF) << 3)
+                    | ((pending[position + 5] & 0xE0) >> 5);
+            return frameLength > ADTS_HEADER_SIZE ? frameLength : -1;
+        }
+        if (remaining < Mp3FrameHeader.HEADER_SIZE) {
+            return 0;
+        }
+        return mp3Header.parse(pending, position) ? mp3Header.frameLength : -1;
+    }
+
+    /**
+     * @return position处刚被{@link #nextFrameLength(int)}解析过的mp3帧是否为Info/Xing标签帧
+     */
+    private boolean isTagFrame(int position) {
+        int tag = position + Mp3FrameHeader.HEADER_SIZE + mp3Header.getSideInfoSize();
+        if (tag + 4 > position + mp3Header.frameLength) {
+            return false;
+        }
+        int id = ((pending[tag] & 0xFF) << 24) | ((pending[tag + 1] & 0xFF) << 16)
+                | ((pending[tag + 2] & 0xFF) << 8) | (pending[tag + 3] & 0xFF);
+        return id == TAG_XING || id == TAG_INFO;
+    }
+
+    private void emit(int offset, int length, long samples) throws IOException {
+        long timestampUs = emittedSamples * 1000000L / sampleRate;
+        emittedSamples += samples;
+        long durationUs = emittedSamples * 1000000L / sampleRate - timestampUs;
+        listener.onChunk(pending, offset, length, sequence++, timestampUs, durationUs);
+        totalBytes += length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > pending.length) {
+            byte[] newPending = new byte[Math.max(capacity, pending.length * 2)];
+            System.arraycopy(pending, 0, newPending, 0, pendingSize);
+            pending = newPending;
+        }
+    }
+
+    /**
+     * 把每一块写入WritableByteChannel的Listener，例如本地socket或
+     * {@link java.nio.channels.Channels#newChannel(java.io.OutputStream)}包装的OutputStream
+     * <p>
+     * channel的写入可能因为网络慢而阻塞，所以回调中只把这一块拷贝一份放进队列，由单独的上传线程写入，
+     * 不会卡住所有录音共用的编码线程。排队的块数达到上限时按{@link OverflowPolicy}处理。
+     * <p>
+     * 写入失败后不再写入后面的块，之后每次回调都抛出第一次的异常；上传线程中的失败在下一次回调时抛出。
+     * 上传线程空闲一段时间后退出，同一个实例可以用于多次录音。
+     */
+    public static class ChannelListener implements Listener {
+
+        public enum OverflowPolicy {
+            /**
+             * 丢掉放不下的块，mp3、aac和wav的块都在帧边界上，接收方仍然可以解码，只是少了这一段
+             */
+            DROP,
+            /**
+             * 停止上传并从回调中抛出异常，之后的块都不再上传，录音本身不受影响
+             */
+            FAIL
+        }
+
+        private static final int DEFAULT_MAX_QUEUED_CHUNKS = 256;
+        private static final long IDLE_UPLOAD_THREAD_SECONDS = 30;
+
+        private final WritableByteChannel channel;
+        private final boolean closeOnComplete;
+        private final int maxQueuedChunks;
+        private final OverflowPolicy overflowPolicy;
+        private final ThreadPoolExecutor uploadExecutor;
+        private final AtomicInteger queuedChunks = new AtomicInteger();
+        private volatile IOException failure;
+        private volatile long droppedChunks;
+
+        /**
+         * 最多排队{@value #DEFAULT_MAX_QUEUED_CHUNKS}块，超过时按{@link OverflowPolicy#FAIL}处理
+         */
+        public ChannelListener(WritableByteChannel channel, boolean closeOnComplete) {
+            this(channel, closeOnComplete, DEFAULT_MAX_QUEUED_CHUNKS, OverflowPolicy.FAIL);
+        }
+
+        /**
+         * @param maxQueuedChunks 等待上传的最大块数
+         */
+        public ChannelListener(WritableByteChannel channel, boolean closeOnComplete, int maxQueuedChunks,
+                               OverflowPolicy overflowPolicy) {
+            this.channel = channel;
+            this.closeOnComplete = closeOnComplete;
+            this.maxQueuedChunks = Math.max(1, maxQueuedChunks);
+            this.overflowPolicy = overflowPolicy;
+            uploadExecutor = new ThreadPoolExecutor(1, 1, IDLE_UPLOAD_THREAD_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "StreamUpload");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            uploadExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * 在编码线程中调用，不会阻塞
+         */
+        @Override
+        public void onChunk(byte[] data, int offset, int length, long sequence, long timestampUs, long durationUs)
+                throws IOException {
+            throwIfFailed();
+            if (queuedChunks.get() >= maxQueuedChunks) {
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    droppedChunks++;
+                    return;
+                }
+                fail(new IOException("upload queue full: " + maxQueuedChunks + " chunks waiting"));
+                throw failure;
+            }
+            // data只在回调期间有效
+            final ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOfRange(data, offset, offset + length));
+            queuedChunks.incrementAndGet();
+            uploadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queuedChunks.decrementAndGet();
+                    if (failure != null) {
+                        return;
+                    }
+                    try {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        fail(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * 排在已有的块之后关闭channel，这里只能抛出此时已经发生的失败
+         */
+        @Override
+        public void onComplete(long chunkCount, long totalBytes) throws IOException {
+            if (closeOnComplete) {
+                uploadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            fail(e);
+                        }
+                    }
+                });
+            }
+            throwIfFailed();
+        }
+
+        /**
+         * @return 第一次失败的异常，没有失败时返回null
+         */
+        public IOException getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return {@link OverflowPolicy#DROP}时因队列满丢掉的块数
+         */
+        public long getDroppedChunks() {
+            return droppedChunks;
+        }
+
+        private synchronized void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        private void throwIfFailed() throws IOException {
+            IOException failure = this.failure;
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
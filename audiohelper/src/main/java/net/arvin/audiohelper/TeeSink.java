@@ -0,0 +1,70 @@
+package net.arvin.audiohelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 把编码结果同时写入多个输出，例如本地文件加流式上传
+ */
+public class TeeSink implements OutputSink {
+
+    private final OutputSink[] sinks;
+
+    public TeeSink(OutputSink... sinks) {
+        this.sinks = sinks;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        for (OutputSink sink : sinks) {
+            sink.write(buffer, offset, length);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        for (OutputSink sink : sinks) {
+            buffer.position(position);
+            sink.write(buffer);
+        }
+    }
+
+    /**
+     * @return 至少有一个输出支持回写时返回true
+     */
+    @Override
+    public boolean patch(long position, byte[] buffer, int offset, int length) throws IOException {
+        boolean patched = false;
+        for (OutputSink sink : sinks) {
+            patched |= sink.patch(position, buffer, offset, length);
+        }
+        return patched;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (OutputSink sink : sinks) {
+            sink.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (OutputSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    public OutputSink[] getSinks() {
+        return sinks;
+    }
+}
@@ -0,0 +1,441 @@
+package net.arvin.audiohelper;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 离线转码，把已有的wav或pcm文件编码成mp3（或其他{@link Encoder}的格式）
+ * <p>
+ * 每个任务使用独立的编码器实例，按固定帧数分块读取、编码、写出，内存占用与文件长度无关；
+ * 多个任务在有上限的线程池中并行执行，线程为后台优先级，不影响录音和播放。
+ * <p>
+ * 转码参数在提交任务时确定，之后修改只对新提交的任务生效。
+ */
+public class Transcoder {
+
+    public interface Callback {
+        /**
+         * 主线程回调，每个任务最多回调100次
+         *
+         * @param progress 0~1
+         */
+        void onProgress(Task task, float progress);
+
+        /**
+         * 主线程回调，失败或取消时输出文件已被删除
+         */
+        void onFinish(Task task, boolean success);
+    }
+
+    private static final int DEFAULT_BIT_RATE = 32;
+    private static final int DEFAULT_QUALITY = 7;
+    /**
+     * 每次编码的帧数，约0.1秒
+     */
+    private static final int DEFAULT_CHUNK_FRAMES = 4096;
+    private static final int PROGRESS_STEPS = 100;
+
+    private final ThreadPoolExecutor executor;
+    private Handler mainHandler;
+
+    private Encoder.Factory encoderFactory = LameEncoder.FACTORY;
+    private int outSampleRate;
+    private int bitRate = DEFAULT_BIT_RATE;
+    private int quality = DEFAULT_QUALITY;
+    private int chunkFrames = DEFAULT_CHUNK_FRAMES;
+    private Callback callback;
+
+    public Transcoder() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param maxConcurrency 同时转码的最大任务数，超出的任务排队
+     */
+    public Transcoder(int maxConcurrency) {
+        final AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "AudioTranscoder-" + index.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 设置编码器，默认为{@link LameEncoder#FACTORY}，每个任务创建时调用一次create，编码器在工作线程中初始化和使用
+     */
+    public void setEncoderFactory(Encoder.Factory encoderFactory) {
+        this.encoderFactory = encoderFactory;
+    }
+
+    /**
+     * 设置输出采样率，默认0与输入相同，只有{@link LameEncoder}支持重采样
+     */
+    public void setOutSampleRate(int outSampleRate) {
+        this.outSampleRate = outSampleRate;
+    }
+
+    /**
+     * 设置输出码率，单位kbps，默认32，与录音相同
+     */
+    public void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    public void setQuality(int quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * 设置每次编码的帧数，默认4096
+     */
+    public void setChunkFrames(int chunkFrames) {
+        this.chunkFrames = Math.max(1, chunkFrames);
+    }
+
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * 转码wav文件，只支持16位PCM
+     */
+    public Task transcode(File input, File output) {
+        return submit(new Task(this, input, output, encoderFactory.create(), 0, 0));
+    }
+
+    /**
+     * 转码没有文件头的pcm文件，数据为16位小端、多声道交错存放
+     */
+    public Task transcodePcm(File input, int sampleRate, int channelCount, File output) {
+        return submit(new Task(this, input, output, encoderFactory.create(), sampleRate, channelCount));
+    }
+
+    /**
+     * 批量转码wav文件，输出到outputDir下同名的文件，扩展名由编码器决定
+     */
+    public List<Task> transcodeAll(List<File> inputs, File outputDir) {
+        if (!outputDir.exists()) {
+            outputDir.mkdirs();
+        }
+        List<Task> tasks = new ArrayList<>(inputs.size());
+        for (File input : inputs) {
+            String name = input.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                name = name.substring(0, dot);
+            }
+            // 扩展名取自任务实际使用的编码器
+            Encoder encoder = encoderFactory.create();
+            File output = new File(outputDir, name + "." + encoder.getFileExtension());
+            tasks.add(submit(new Task(this, input, output, encoder, 0, 0)));
+        }
+        return tasks;
+    }
+
+    private Task submit(Task task) {
+        try {
+            executor.execute(task);
+        } catch (Exception e) {
+            e.printStackTrace();
+            task.finish(false);
+        }
+        return task;
+    }
+
+    /**
+     * @return 排队中和正在执行的任务数
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size() + executor.getActiveCount();
+    }
+
+    /**
+     * 停止接受新任务并取消排队中的任务，正在执行的任务会被中断并删除输出
+     */
+    public void release() {
+        for (Runnable runnable : executor.shutdownNow()) {
+            ((Task) runnable).finish(false);
+        }
+        callback = null;
+    }
+
+    private void post(Runnable runnable) {
+        synchronized (this) {
+            if (mainHandler == null) {
+                mainHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+        mainHandler.post(runnable);
+    }
+
+    public static class Task implements Runnable {
+        private final File input;
+        private final File output;
+        private final Encoder encoder;
+        private final int outSampleRate;
+        private final int bitRate;
+        private final int quality;
+        private final int chunkFrames;
+        private final Transcoder transcoder;
+
+        private int sampleRate;
+        private int channelCount;
+
+        private volatile boolean cancelled;
+        private volatile boolean finished;
+        private volatile boolean success;
+        private volatile float progress;
+        private volatile long durationMs;
+        private volatile long elapsedNanos;
+        private volatile long outputBytes;
+
+        Task(Transcoder transcoder, File input, File output, Encoder encoder, int sampleRate, int channelCount) {
+            this.transcoder = transcoder;
+            this.input = input;
+            this.output = output;
+            this.encoder = encoder;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            outSampleRate = transcoder.outSampleRate;
+            bitRate = transcoder.bitRate;
+            quality = transcoder.quality;
+            chunkFrames = transcoder.chunkFrames;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                finish(false);
+                return;
+            }
+            long start = System.nanoTime();
+            boolean result = false;
+            try {
+                result = transcode(start);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            elapsedNanos = System.nanoTime() - start;
+            finish(result && !cancelled);
+        }
+
+        private boolean transcode(long start) throws IOException {
+            long dataOffset = 0;
+            long dataSize = input.length();
+            if (sampleRate <= 0) {
+                AudioInfo info = AudioProbe.probe(input.getPath());
+                if (info == null || !info.isPcm16Wav()) {
+                    return false;
+                }
+                sampleRate = info.sampleRate;
+                channelCount = info.channelCount;
+                dataOffset = info.dataOffset;
+                dataSize = info.dataSize;
+            }
+            if (channelCount < 1 || channelCount > 2) {
+                return false;
+            }
+            int frameBytes = 2 * channelCount;
+            long totalFrames = dataSize / frameBytes;
+            durationMs = totalFrames * 1000 / sampleRate;
+
+            RandomAccessFile inputFile = null;
+            FileSink sink = null;
+            try {
+                // init失败时编码器可能已经部分创建，也要在finally中关闭
+                if (outSampleRate > 0 && outSampleRate != sampleRate && encoder instanceof LameEncoder) {
+                    ((LameEncoder) encoder).init(sampleRate, channelCount, outSampleRate, bitRate, quality);
+                } else {
+                    encoder.init(sampleRate, channelCount, bitRate, quality);
+                }
+                ByteBuffer readBuffer = ByteBuffer.allocate(chunkFrames * frameBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                short[] pcm = new short[chunkFrames * channelCount];
+                byte[] out = new byte[encoder.getOutputBufferSize(chunkFrames)];
+
+                inputFile = new RandomAccessFile(input, "r");
+                FileChannel channel = inputFile.getChannel();
+                channel.position(dataOffset);
+                sink = new FileSink(output);
+                long framesDone = 0;
+                int reportedStep = 0;
+                while (framesDone < totalFrames) {
+                    if (cancelled) {
+                        return false;
+                    }
+                    readBuffer.clear();
+                    readBuffer.limit((int) Math.min(readBuffer.capacity(), (totalFrames - framesDone) * frameBytes));
+                    while (readBuffer.hasRemaining()) {
+                        if (channel.read(readBuffer) < 0) {
+                            break;
+                        }
+                    }
+                    readBuffer.flip();
+                    int frames = readBuffer.remaining() / frameBytes;
+                    if (frames == 0) {
+                        break;
+                    }
+                    readBuffer.asShortBuffer().get(pcm, 0, frames * channelCount);
+                    int size = encoder.encodeInterleaved(pcm, frames, out);
+                    if (size < 0) {
+                        return false;
+                    }
+                    sink.write(out, 0, size);
+                    framesDone += frames;
+
+                    int step = (int) (framesDone * PROGRESS_STEPS / totalFrames);
+                    if (step > reportedStep) {
+                        reportedStep = step;
+                        progress = (float) framesDone / totalFrames;
+                        elapsedNanos = System.nanoTime() - start;
+                        postProgress();
+                    }
+                }
+                int flushSize = encoder.flush(out);
+                if (flushSize > 0) {
+                    sink.write(out, 0, flushSize);
+                }
+                int headerSize = encoder.getHeader(out);
+                if (headerSize > 0) {
+                    sink.patch(0, out, 0, headerSize);
+                }
+                progress = 1;
+                return true;
+            } finally {
+                if (sink != null) {
+                    try {
+                        sink.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    outputBytes = sink.getBytesWritten();
+                }
+                if (inputFile != null) {
+                    try {
+                        inputFile.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                encoder.close();
+            }
+        }
+
+        private void postProgress() {
+            if (transcoder.callback == null) {
+                return;
+            }
+            final float progress = this.progress;
+            transcoder.post(new Runnable() {
+                @Override
+                public void run() {
+                    Callback callback = transcoder.callback;
+                    if (callback != null) {
+                        callback.onProgress(Task.this, progress);
+                    }
+                }
+            });
+        }
+
+        void finish(final boolean success) {
+            if (finished) {
+                return;
+            }
+            this.success = success;
+            if (!success) {
+                output.delete();
+            }
+            finished = true;
+            if (transcoder.callback == null) {
+                return;
+            }
+            transcoder.post(new Runnable() {
+                @Override
+                public void run() {
+                    Callback callback = transcoder.callback;
+                    if (callback != null) {
+                        callback.onFinish(Task.this, success);
+                    }
+                }
+            });
+        }
+
+        /**
+         * 取消任务，排队中的任务不再执行，正在执行的任务在下一块编码前停止
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public File getInput() {
+            return input;
+        }
+
+        public File getOutput() {
+            return output;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public float getProgress() {
+            return progress;
+        }
+
+        /**
+         * @return 输入音频的时长，开始执行后才有值
+         */
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * @return 转码速度，即已转码的音频时长除以耗时，例如20表示20倍实时
+         */
+        public float getRealtimeFactor() {
+            long elapsed = elapsedNanos;
+            if (elapsed <= 0) {
+                return 0;
+            }
+            return durationMs * progress * 1000000 / elapsed;
+        }
+
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package net.arvin.audiohelper;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * 静音检测，按能量和过零率判断每一块PCM是否为语音，并按{@link Mode}跳过静音
+ * <p>
+ * 能量和过零率直接使用{@link VolumeMeter}对同一块数据的统计，不再遍历采样。
+ * 判定阈值取固定阈值和噪声基底+margin中较大的一个，噪声基底跟随安静时的能量缓慢上升；
+ * 能量稍低但过零率高的块（清辅音）也算作语音。语音结束后保持hangoverMs才判定为静音，避免截断词尾。
+ * <p>
+ * 跳过的静音暂存在{@link PcmRingBuffer}中，语音开始时把需要保留的部分按顺序补进编码队列。
+ * 所有方法都在录音线程中调用，{@link Listener}也在录音线程中回调。
+ */
+public class VoiceActivityDetector {
+
+    public enum Mode {
+        /**
+         * 只检测，回调语音段和统计，所有数据照常编码
+         */
+        DETECT,
+        /**
+         * 去掉开头第一段语音之前和结尾最后一段语音之后的静音，各保留paddingMs
+         */
+        TRIM,
+        /**
+         * 在TRIM的基础上，中间超过maxSilenceMs的静音只保留maxSilenceMs
+         */
+        COMPRESS
+    }
+
+    public interface Listener {
+        /**
+         * @param timeMs 语音开始的位置，按录音的原始时间计算
+         */
+        void onSpeechStart(long timeMs);
+
+        /**
+         * @param timeMs     语音结束的位置（含hangover），按录音的原始时间计算
+         * @param durationMs 这一段语音的时长
+         */
+        void onSpeechEnd(long timeMs, long durationMs);
+    }
+
+    private static final float DEFAULT_SPEECH_DBFS = -45f;
+    private static final float DEFAULT_NOISE_MARGIN_DB = 10f;
+    /**
+     * 能量比阈值低这么多以内、过零率又高于zeroCrossingRate时也算作语音
+     */
+    private static final float UNVOICED_MARGIN_DB = 6f;
+    private static final int DEFAULT_ZERO_CROSSING_RATE = 3000;
+    /**
+     * 噪声基底每秒最多上升的dB数，下降则立即跟随
+     */
+    private static final float NOISE_FLOOR_RISE_DB_PER_SECOND = 3f;
+    private static final int DEFAULT_HANGOVER_MS = 300;
+    private static final int DEFAULT_PADDING_MS = 200;
+    private static final int DEFAULT_MAX_SILENCE_MS = 1000;
+
+    private Mode mode = Mode.DETECT;
+    private float speechDbfs = DEFAULT_SPEECH_DBFS;
+    private float noiseMarginDb = DEFAULT_NOISE_MARGIN_DB;
+    private int zeroCrossingRate = DEFAULT_ZERO_CROSSING_RATE;
+    private int hangoverMs = DEFAULT_HANGOVER_MS;
+    private int paddingMs = DEFAULT_PADDING_MS;
+    private int maxSilenceMs = DEFAULT_MAX_SILENCE_MS;
+    private Listener listener;
+
+    private int sampleRate;
+    private int channelCount;
+    private int paddingSlots;
+    /**
+     * 中间静音最多保留的槽位数，TRIM时不限制
+     */
+    private int silenceSlots;
+    /**
+     * 第一段语音之前的静音，只保留最近的paddingMs
+     */
+    private PcmRingBuffer leadingBuffer;
+    /**
+     * 语音之间的静音，TRIM时全部暂存（超出内存部分写入临时文件），COMPRESS时只保留最近的maxSilenceMs
+     */
+    private PcmRingBuffer silenceBuffer;
+    private short[] scratch;
+
+    private float noiseFloorDbfs;
+    private boolean speech;
+    private boolean speechSeen;
+    private long hangoverFrames;
+    private long hangoverRemaining;
+    private long speechStartFrame;
+
+    // 以下统计字段只在录音线程写入
+    private volatile long inputFrames;
+    private volatile long outputFrames;
+    private volatile long speechFrames;
+    private volatile int segmentCount;
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @param speechDbfs    能量超过该值才可能是语音，默认-45dBFS
+     * @param noiseMarginDb 能量需要高出噪声基底的dB数，默认10
+     */
+    public void setThreshold(float speechDbfs, float noiseMarginDb) {
+        this.speechDbfs = speechDbfs;
+        this.noiseMarginDb = noiseMarginDb;
+    }
+
+    /**
+     * @param zeroCrossingRate 每秒过零次数超过该值且能量接近阈值时视为清辅音，默认3000
+     */
+    public void setZeroCrossingRate(int zeroCrossingRate) {
+        this.zeroCrossingRate = zeroCrossingRate;
+    }
+
+    public void setHangoverMs(int hangoverMs) {
+        this.hangoverMs = hangoverMs;
+    }
+
+    /**
+     * @param paddingMs 语音前后保留的静音时长，默认200ms
+     */
+    public void setPaddingMs(int paddingMs) {
+        this.paddingMs = paddingMs;
+    }
+
+    /**
+     * @param maxSilenceMs COMPRESS时中间静音最多保留的时长，默认1000ms
+     */
+    public void setMaxSilenceMs(int maxSilenceMs) {
+        this.maxSilenceMs = maxSilenceMs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * 每次录音开始前调用
+     *
+     * @param slotSize  一块PCM的最大采样数
+     * @param spillFile TRIM时静音太长会写入该临时文件，结束后删除
+     */
+    public void start(int sampleRate, int channelCount, int slotSize, File spillFile) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        release();
+        noiseFloorDbfs = VolumeMeter.MIN_DBFS;
+        speech = false;
+        speechSeen = false;
+        hangoverFrames = (long) sampleRate * hangoverMs / 1000;
+        hangoverRemaining = 0;
+        inputFrames = 0;
+        outputFrames = 0;
+        speechFrames = 0;
+        segmentCount = 0;
+        if (mode == Mode.DETECT) {
+            return;
+        }
+        // PcmRingBuffer会把容量向上取整到2的幂，实际能存下的比要求的多，取出时要按这里的槽位数截断
+        paddingSlots = slotsFor(paddingMs, slotSize);
+        leadingBuffer = new PcmRingBuffer(paddingSlots, slotSize, PcmRingBuffer.OverrunPolicy.DROP_OLDEST, null);
+        if (mode == Mode.TRIM) {
+            // 录音线程不能被阻塞，放不下的部分写入文件
+            silenceSlots = Integer.MAX_VALUE;
+            silenceBuffer = new PcmRingBuffer(Math.max(paddingSlots, 16), slotSize,
+                    PcmRingBuffer.OverrunPolicy.SPILL, spillFile);
+        } else {
+            silenceSlots = slotsFor(maxSilenceMs, slotSize);
+            silenceBuffer = new PcmRingBuffer(Math.max(paddingSlots, silenceSlots), slotSize,
+                    PcmRingBuffer.OverrunPolicy.DROP_OLDEST, null);
+        }
+        scratch = new short[slotSize];
+    }
+
+    private int slotsFor(int millis, int slotSize) {
+        long samples = (long) sampleRate * channelCount * millis / 1000;
+        return (int) Math.max(1, (samples + slotSize - 1) / slotSize);
+    }
+
+    /**
+     * 判断一块PCM并决定编码、暂存还是丢弃
+     *
+     * @param sumSquares    这块数据的平方和，即{@link VolumeMeter#getChunkSumSquares()}
+     * @param zeroCrossings 这块数据的过零次数，即{@link VolumeMeter#getChunkZeroCrossings()}
+     */
+    public void process(short[] pcm, int length, long sumSquares, int zeroCrossings,
+                        AudioRecorder.AudioEncoder encoder) {
+        if (detect(length, sumSquares, zeroCrossings, encoder)) {
+            encoder.addTask(pcm, length);
+            outputFrames += length / channelCount;
+        } else {
+            (speechSeen ? silenceBuffer : leadingBuffer).write(pcm, 0, length);
+        }
+    }
+
+    /**
+     * 同{@link #process(short[], int, long, int, AudioRecorder.AudioEncoder)}，从pcm的position开始读取
+     */
+    public void process(ByteBuffer pcm, int length, long sumSquares, int zeroCrossings,
+                        AudioRecorder.AudioEncoder encoder) {
+        if (detect(length, sumSquares, zeroCrossings, encoder)) {
+            encoder.addTask(pcm, length);
+            outputFrames += length / channelCount;
+        } else {
+            (speechSeen ? silenceBuffer : leadingBuffer).write(pcm, length);
+        }
+    }
+
+    /**
+     * @return 为true时这块数据需要直接编码
+     */
+    private boolean detect(int length, long sumSquares, int zeroCrossings, AudioRecorder.AudioEncoder encoder) {
+        int frames = length / channelCount;
+        long position = inputFrames;
+        inputFrames += frames;
+
+        float dbfs = VolumeMeter.toDbfs((int) Math.sqrt((double) sumSquares / Math.max(1, length)));
+        float threshold = Math.max(speechDbfs, noiseFloorDbfs + noiseMarginDb);
+        long crossingsPerSecond = (long) zeroCrossings * sampleRate / Math.max(1, length);
+        boolean active = dbfs >= threshold
+                || (dbfs >= threshold - UNVOICED_MARGIN_DB && crossingsPerSecond >= zeroCrossingRate);
+        if (!active) {
+            float rise = NOISE_FLOOR_RISE_DB_PER_SECOND * frames / sampleRate;
+            noiseFloorDbfs = Math.min(dbfs, noiseFloorDbfs + rise);
+        }
+
+        if (active) {
+            hangoverRemaining = hangoverFrames;
+            if (!speech) {
+                speech = true;
+                speechStartFrame = position;
+                segmentCount++;
+                onSpeechStart(encoder);
+                if (listener != null) {
+                    listener.onSpeechStart(position * 1000 / sampleRate);
+                }
+            }
+        } else if (speech) {
+            hangoverRemaining -= frames;
+            if (hangoverRemaining < 0) {
+                speech = false;
+                if (listener != null) {
+                    listener.onSpeechEnd(position * 1000 / sampleRate,
+                            (position - speechStartFrame) * 1000 / sampleRate);
+                }
+            }
+        }
+        if (speech) {
+            speechFrames += frames;
+        }
+        return speech || mode == Mode.DETECT;
+    }
+
+    /**
+     * 语音开始时先把需要保留的静音补进编码队列
+     */
+    private void onSpeechStart(AudioRecorder.AudioEncoder encoder) {
+        if (mode == Mode.DETECT) {
+            return;
+        }
+        if (!speechSeen) {
+            speechSeen = true;
+            drain(leadingBuffer, leadingBuffer.size() - paddingSlots, Integer.MAX_VALUE, encoder);
+        } else {
+            drain(silenceBuffer, silenceBuffer.size() - silenceSlots, Integer.MAX_VALUE, encoder);
+        }
+    }
+
+    /**
+     * 录音结束时调用，最后一段语音之后只保留paddingMs的静音
+     */
+    public void finish(AudioRecorder.AudioEncoder encoder) {
+        if (mode != Mode.DETECT && speechSeen && !speech) {
+            drain(silenceBuffer, 0, paddingSlots, encoder);
+        }
+        if (speech && listener != null) {
+            listener.onSpeechEnd(inputFrames * 1000 / sampleRate,
+                    (inputFrames - speechStartFrame) * 1000 / sampleRate);
+        }
+        speech = false;
+        release();
+    }
+
+    private void drain(PcmRingBuffer buffer, int skipSlots, int maxSlots, AudioRecorder.AudioEncoder encoder) {
+        int slots = 0;
+        while (slots < maxSlots) {
+            int length = buffer.read(scratch, 0);
+            if (length <= 0) {
+                break;
+            }
+            if (skipSlots-- > 0) {
+                continue;
+            }
+            encoder.addTask(scratch, length);
+            outputFrames += length / channelCount;
+            slots++;
+        }
+    }
+
+    private void release() {
+        if (leadingBuffer != null) {
+            leadingBuffer.close();
+            leadingBuffer = null;
+        }
+        if (silenceBuffer != null) {
+            silenceBuffer.close();
+            silenceBuffer = null;
+        }
+    }
+
+    public boolean isSpeech() {
+        return speech;
+    }
+
+    /**
+     * @return 本次录音检测到的语音段数
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return 本次录音中判定为语音的时长（含hangover）
+     */
+    public long getSpeechMillis() {
+        return sampleRate > 0 ? speechFrames * 1000 / sampleRate : 0;
+    }
+
+    /**
+     * @return 本次录音没有被编码的帧数，录音结束之前暂存的静音也算在内
+     */
+    public long getSkippedFrames() {
+        return inputFrames - outputFrames;
+    }
+
+    public long getSkippedMillis() {
+        return sampleRate > 0 ? getSkippedFrames() * 1000 / sampleRate : 0;
+    }
+
+    public long getInputFrames() {
+        return inputFrames;
+    }
+}
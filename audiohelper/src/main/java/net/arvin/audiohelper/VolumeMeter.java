@@ -0,0 +1,180 @@
+package net.arvin.audiohelper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 音量计
+ * <p>
+ * 逐采样的统计只用long累加平方和与峰值，不做浮点运算也不分配对象；
+ * 只有累计满一个更新周期时才计算一次RMS和dBFS，供UI按固定频率刷新。
+ * <p>
+ * {@link #process}只能在一个线程中调用，结果可以在任意线程读取。
+ */
+public class VolumeMeter {
+
+    public static final int FULL_SCALE = 32768;
+    /**
+     * 静音时的dBFS下限
+     */
+    public static final float MIN_DBFS = -96f;
+
+    private final int samplesPerUpdate;
+    private final int channelCount;
+
+    // 最近一次process的单块统计
+    private long chunkSumSquares;
+    private int chunkPeak;
+    private int chunkSamples;
+    private int chunkZeroCrossings;
+
+    // 当前更新周期内的累计
+    private long windowSumSquares;
+    private int windowPeak;
+    private int windowSamples;
+
+    private volatile int rms;
+    private volatile int peak;
+    private volatile float dbfs = MIN_DBFS;
+
+    /**
+     * @param sampleRate   采样率
+     * @param channelCount 声道数，统计时不区分声道
+     * @param updateRate   每秒更新几次结果
+     */
+    public VolumeMeter(int sampleRate, int channelCount, int updateRate) {
+        samplesPerUpdate = Math.max(1, sampleRate * channelCount / Math.max(1, updateRate));
+        this.channelCount = Math.max(1, channelCount);
+    }
+
+    /**
+     * @return 本次数据是否使结果更新
+     */
+    public boolean process(short[] buffer, int offset, int length) {
+        long sum = 0;
+        int max = 0;
+        int crossings = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int sample = buffer[i];
+            sum += sample * sample;
+            int abs = sample < 0 ? -sample : sample;
+            if (abs > max) {
+                max = abs;
+            }
+            // 与同一声道的上一个采样异号
+            if (i - offset >= channelCount && (sample ^ buffer[i - channelCount]) < 0) {
+                crossings++;
+            }
+        }
+        chunkZeroCrossings = crossings;
+        return accumulate(sum, max, length);
+    }
+
+    /**
+     * 同{@link #process(short[], int, int)}，从buffer的position开始读取，不改变position
+     */
+    public boolean process(ByteBuffer buffer, int length) {
+        long sum = 0;
+        int max = 0;
+        int crossings = 0;
+        int start = buffer.position();
+        for (int i = 0; i < length; i++) {
+            int sample = buffer.getShort(start + i * 2);
+            sum += sample * sample;
+            int abs = sample < 0 ? -sample : sample;
+            if (abs > max) {
+                max = abs;
+            }
+            if (i >= channelCount && (sample ^ buffer.getShort(start + (i - channelCount) * 2)) < 0) {
+                crossings++;
+            }
+        }
+        chunkZeroCrossings = crossings;
+        return accumulate(sum, max, length);
+    }
+
+    private boolean accumulate(long sum, int max, int length) {
+        chunkSumSquares = sum;
+        chunkPeak = max;
+        chunkSamples = length;
+
+        windowSumSquares += sum;
+        windowSamples += length;
+        if (max > windowPeak) {
+            windowPeak = max;
+        }
+        if (windowSamples < samplesPerUpdate) {
+            return false;
+        }
+        int windowRms = (int) Math.sqrt((double) windowSumSquares / windowSamples);
+        rms = windowRms;
+        peak = windowPeak;
+        dbfs = toDbfs(windowRms);
+        windowSumSquares = 0;
+        windowSamples = 0;
+        windowPeak = 0;
+        return true;
+    }
+
+    public void reset() {
+        chunkSumSquares = 0;
+        chunkPeak = 0;
+        chunkSamples = 0;
+        chunkZeroCrossings = 0;
+        windowSumSquares = 0;
+        windowSamples = 0;
+        windowPeak = 0;
+        rms = 0;
+        peak = 0;
+        dbfs = MIN_DBFS;
+    }
+
+    public static float toDbfs(int amplitude) {
+        if (amplitude <= 0) {
+            return MIN_DBFS;
+        }
+        return Math.max(MIN_DBFS, (float) (20 * Math.log10((double) amplitude / FULL_SCALE)));
+    }
+
+    /**
+     * @return 最近一个更新周期的RMS，范围0~32768
+     */
+    public int getRms() {
+        return rms;
+    }
+
+    /**
+     * @return 最近一个更新周期的峰值，范围0~32768
+     */
+    public int getPeak() {
+        return peak;
+    }
+
+    /**
+     * @return 最近一个更新周期RMS对应的dBFS，范围{@link #MIN_DBFS}~0
+     */
+    public float getDbfs() {
+        return dbfs;
+    }
+
+    /**
+     * @return 最近一次process的平方和，仅限调用process的线程读取
+     */
+    public long getChunkSumSquares() {
+        return chunkSumSquares;
+    }
+
+    public int getChunkPeak() {
+        return chunkPeak;
+    }
+
+    public int getChunkSamples() {
+        return chunkSamples;
+    }
+
+    /**
+     * @return 最近一次process中各声道过零次数之和
+     */
+    public int getChunkZeroCrossings() {
+        return chunkZeroCrossings;
+    }
+}
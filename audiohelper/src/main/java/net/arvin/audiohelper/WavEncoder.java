@@ -0,0 +1,180 @@
+package net.arvin.audiohelper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 不做压缩的WAV编码器，只是把PCM按小端序写出并补上WAV头
+ * <p>
+ * 适合由服务端统一转码的场景，几乎没有CPU开销。
+ */
+public class WavEncoder implements Encoder {
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public Encoder create() {
+            return new WavEncoder();
+        }
+    };
+
+    public static final int HEADER_SIZE = 44;
+
+    private int sampleRate;
+    private int channelCount;
+    private boolean headerWritten;
+    private long dataSize;
+    private final byte[] headerBuffer = new byte[HEADER_SIZE];
+
+    @Override
+    public void init(int sampleRate, int channelCount, int bitRate, int quality) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        headerWritten = false;
+        dataSize = 0;
+    }
+
+    @Override
+    public int encode(short[] bufferLeft, short[] bufferRight, int samples, byte[] out) {
+        int offset = writePlaceholderHeader(out);
+        if (channelCount == 1) {
+            for (int i = 0; i < samples; i++) {
+                short sample = bufferLeft[i];
+                out[offset++] = (byte) sample;
+                out[offset++] = (byte) (sample >> 8);
+            }
+        } else {
+            for (int i = 0; i < samples; i++) {
+                short left = bufferLeft[i];
+                short right = bufferRight[i];
+                out[offset++] = (byte) left;
+                out[offset++] = (byte) (left >> 8);
+                out[offset++] = (byte) right;
+                out[offset++] = (byte) (right >> 8);
+            }
+        }
+        dataSize += (long) samples * channelCount * 2;
+        return offset;
+    }
+
+    @Override
+    public int encodeInterleaved(short[] pcm, int frames, byte[] out) {
+        int offset = writePlaceholderHeader(out);
+        int samples = frames * channelCount;
+        for (int i = 0; i < samples; i++) {
+            short sample = pcm[i];
+            out[offset++] = (byte) sample;
+            out[offset++] = (byte) (sample >> 8);
+        }
+        dataSize += (long) samples * 2;
+        return offset;
+    }
+
+    @Override
+    public int encode(ByteBuffer pcm, int frames, ByteBuffer out) {
+        int outStart = out.position();
+        int headerSize = writePlaceholderHeader(headerBuffer);
+        out.put(headerBuffer, 0, headerSize);
+        int samples = frames * channelCount;
+        int pcmStart = pcm.position();
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            // 字节序一致时整块拷贝
+            int limit = pcm.limit();
+            pcm.limit(pcmStart + samples * 2);
+            out.put(pcm);
+            pcm.limit(limit);
+        } else {
+            for (int i = 0; i < samples; i++) {
+                short sample = pcm.getShort(pcmStart + i * 2);
+                out.put((byte) sample);
+                out.put((byte) (sample >> 8));
+            }
+        }
+        pcm.position(pcmStart);
+        int written = out.position() - outStart;
+        out.position(outStart);
+        dataSize += (long) samples * 2;
+        return written;
+    }
+
+    @Override
+    public int flush(byte[] out) {
+        return writePlaceholderHeader(out);
+    }
+
+    @Override
+    public int getHeader(byte[] out) {
+        writeHeader(out, 0, sampleRate, channelCount, dataSize);
+        return HEADER_SIZE;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int getOutputBufferSize(int samples) {
+        return HEADER_SIZE + samples * 2 * 2;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "wav";
+    }
+
+    /**
+     * 第一次输出时先占位WAV头，数据长度在结束时由{@link #getHeader}回写
+     */
+    private int writePlaceholderHeader(byte[] out) {
+        if (headerWritten) {
+            return 0;
+        }
+        headerWritten = true;
+        writeHeader(out, 0, sampleRate, channelCount, 0);
+        return HEADER_SIZE;
+    }
+
+    static void writeHeader(byte[] out, int offset, int sampleRate, int channelCount, long dataSize) {
+        int byteRate = sampleRate * channelCount * 2;
+        int dataLength = (int) Math.min(dataSize, 0xFFFFFFFFL - 36);
+        writeAscii(out, offset, "RIFF");
+        writeIntLE(out, offset + 4, 36 + dataLength);
+        writeAscii(out, offset + 8, "WAVE");
+        writeAscii(out, offset + 12, "fmt ");
+        writeIntLE(out, offset + 16, 16);
+        writeShortLE(out, offset + 20, 1);// PCM
+        writeShortLE(out, offset + 22, channelCount);
+        writeIntLE(out, offset + 24, sampleRate);
+        writeIntLE(out, offset + 28, byteRate);
+        writeShortLE(out, offset + 32, channelCount * 2);
+        writeShortLE(out, offset + 34, 16);
+        writeAscii(out, offset + 36, "data");
+        writeIntLE(out, offset + 40, dataLength);
+    }
+
+    /**
+     * 边录边发送时使用的WAV头，发出后无法回写，RIFF和data的长度都写为0xFFFFFFFF表示未知
+     */
+    static void writeStreamingHeader(byte[] out, int offset, int sampleRate, int channelCount) {
+        writeHeader(out, offset, sampleRate, channelCount, 0);
+        writeIntLE(out, offset + 4, 0xFFFFFFFF);
+        writeIntLE(out, offset + 40, 0xFFFFFFFF);
+    }
+
+    private static void writeAscii(byte[] out, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            out[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    private static void writeIntLE(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+        out[offset + 2] = (byte) (value >> 16);
+        out[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void writeShortLE(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,368 @@
+package net.arvin.audiohelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 波形索引，录音时顺便统计，和录音文件放在一起，画波形不需要再解码
+ * <p>
+ * 按每256、4096和65536帧分三级保存最小值、最大值和RMS，相邻两级相差16倍。
+ * 画任意宽度、任意区间的波形时选择区间内格数不少于宽度的最粗一级，每个像素合并区间内对应的所有格，
+ * 除最粗一级外每个像素不超过约16格，耗时只与宽度有关；区间超过宽度乘以16*65536帧时落在最粗一级，
+ * 每个像素的格数随区间长度增长，但一小时的录音也只有约2400格。
+ * <p>
+ * 文件为录音文件路径加".peaks"，小端序：
+ * "PEAK"、版本、采样率、声道数、总帧数、级数，之后每一级依次为每格帧数、格数、min[]、max[]、rms[]。
+ */
+public class WaveformIndex {
+
+    public static final String SUFFIX = ".peaks";
+
+    static final int[] FRAMES_PER_BIN = {256, 4096, 65536};
+
+    private static final int MAGIC = 0x4B414550;// "PEAK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 4 + 8 + 4;
+    private static final int LEVEL_HEADER_SIZE = 8;
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final long totalFrames;
+    private final int[] framesPerBin;
+    private final short[][] mins;
+    private final short[][] maxs;
+    private final short[][] rmss;
+
+    WaveformIndex(int sampleRate, int channelCount, long totalFrames, int[] framesPerBin,
+                  short[][] mins, short[][] maxs, short[][] rmss) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.totalFrames = totalFrames;
+        this.framesPerBin = framesPerBin;
+        this.mins = mins;
+        this.maxs = maxs;
+        this.rmss = rmss;
+    }
+
+    public static File getIndexFile(File audioFile) {
+        return new File(audioFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * 读取索引文件，文件不存在或格式不对时返回null
+     */
+    public static WaveformIndex read(File indexFile) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(indexFile);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            int sampleRate = buffer.getInt();
+            int channelCount = buffer.getInt();
+            long totalFrames = buffer.getLong();
+            int levelCount = buffer.getInt();
+            int[] framesPerBin = new int[levelCount];
+            short[][] mins = new short[levelCount][];
+            short[][] maxs = new short[levelCount][];
+            short[][] rmss = new short[levelCount][];
+            for (int level = 0; level < levelCount; level++) {
+                framesPerBin[level] = buffer.getInt();
+                int bins = buffer.getInt();
+                mins[level] = readShorts(buffer, bins);
+                maxs[level] = readShorts(buffer, bins);
+                rmss[level] = readShorts(buffer, bins);
+            }
+            return new WaveformIndex(sampleRate, channelCount, totalFrames, framesPerBin, mins, maxs, rmss);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static short[] readShorts(ByteBuffer buffer, int count) {
+        short[] values = new short[count];
+        buffer.asShortBuffer().get(values);
+        buffer.position(buffer.position() + count * 2);
+        return values;
+    }
+
+    void write(File indexFile) throws IOException {
+        int size = HEADER_SIZE;
+        for (short[] min : mins) {
+            size += LEVEL_HEADER_SIZE + min.length * 2 * 3;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(sampleRate).putInt(channelCount)
+                .putLong(totalFrames).putInt(framesPerBin.length);
+        for (int level = 0; level < framesPerBin.length; level++) {
+            buffer.putInt(framesPerBin[level]).putInt(mins[level].length);
+            writeShorts(buffer, mins[level]);
+            writeShorts(buffer, maxs[level]);
+            writeShorts(buffer, rmss[level]);
+        }
+        buffer.flip();
+        FileOutputStream out = new FileOutputStream(indexFile);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeShorts(ByteBuffer buffer, short[] values) {
+        buffer.asShortBuffer().put(values);
+        buffer.position(buffer.position() + values.length * 2);
+    }
+
+    /**
+     * 取整段录音的波形，见{@link #getPeaks(long, long, int, short[], short[], short[])}
+     */
+    public int getPeaks(int width, short[] min, short[] max, short[] rms) {
+        return getPeaks(0, totalFrames, width, min, max, rms);
+    }
+
+    /**
+     * 取[startFrame, endFrame)区间的波形，每个像素一组min、max和rms
+     *
+     * @param min 长度不小于width，rms可以为null
+     * @return 实际填充的像素数，区间比最细一级的格子还少时小于width
+     */
+    public int getPeaks(long startFrame, long endFrame, int width, short[] min, short[] max, short[] rms) {
+        startFrame = Math.max(0, startFrame);
+        endFrame = Math.min(totalFrames, endFrame);
+        if (width <= 0 || endFrame <= startFrame) {
+            return 0;
+        }
+        // 区间内格数不少于width的最粗一级
+        int level = 0;
+        for (int i = framesPerBin.length - 1; i >= 0; i--) {
+            if ((endFrame - startFrame) / framesPerBin[i] >= width) {
+                level = i;
+                break;
+            }
+        }
+        int binFrames = framesPerBin[level];
+        short[] levelMin = mins[level];
+        short[] levelMax = maxs[level];
+        short[] levelRms = rmss[level];
+        int firstBin = (int) (startFrame / binFrames);
+        int endBin = Math.min(levelMin.length, (int) ((endFrame + binFrames - 1) / binFrames));
+        int bins = endBin - firstBin;
+        if (bins <= 0) {
+            return 0;
+        }
+        int pixels = Math.min(width, bins);
+        for (int pixel = 0; pixel < pixels; pixel++) {
+            int from = firstBin + (int) ((long) bins * pixel / pixels);
+            // 不截断，否则最粗一级时每个像素只统计了开头的一部分
+            int to = Math.max(from + 1, firstBin + (int) ((long) bins * (pixel + 1) / pixels));
+            int pixelMin = Short.MAX_VALUE;
+            int pixelMax = Short.MIN_VALUE;
+            long sumSquares = 0;
+            for (int bin = from; bin < to; bin++) {
+                pixelMin = Math.min(pixelMin, levelMin[bin]);
+                pixelMax = Math.max(pixelMax, levelMax[bin]);
+                sumSquares += (long) levelRms[bin] * levelRms[bin];
+            }
+            min[pixel] = (short) pixelMin;
+            max[pixel] = (short) pixelMax;
+            if (rms != null) {
+                rms[pixel] = (short) Math.sqrt((double) sumSquares / (to - from));
+            }
+        }
+        return pixels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    public long getDurationMs() {
+        return sampleRate > 0 ? totalFrames * 1000 / sampleRate : 0;
+    }
+
+    /**
+     * 编码线程中逐块统计，多声道时所有声道合并为一条波形
+     */
+    public static class Builder {
+        private static final int INITIAL_BINS = 1024;
+
+        private final int sampleRate;
+        private final int channelCount;
+        private final short[][] mins = new short[FRAMES_PER_BIN.length][];
+        private final short[][] maxs = new short[FRAMES_PER_BIN.length][];
+        private final short[][] rmss = new short[FRAMES_PER_BIN.length][];
+        private final int[] binCounts = new int[FRAMES_PER_BIN.length];
+
+        // 每一级当前未满的一格
+        private final int[] binMin = new int[FRAMES_PER_BIN.length];
+        private final int[] binMax = new int[FRAMES_PER_BIN.length];
+        private final long[] binSumSquares = new long[FRAMES_PER_BIN.length];
+        private final int[] binSamples = new int[FRAMES_PER_BIN.length];
+
+        private long totalSamples;
+
+        public Builder(int sampleRate, int channelCount) {
+            this.sampleRate = sampleRate;
+            this.channelCount = Math.max(1, channelCount);
+            for (int level = 0; level < FRAMES_PER_BIN.length; level++) {
+                int bins = Math.max(16, INITIAL_BINS >> (level * 4));
+                mins[level] = new short[bins];
+                maxs[level] = new short[bins];
+                rmss[level] = new short[bins];
+                resetBin(level);
+            }
+        }
+
+        public void process(short[] pcm, int offset, int length) {
+            int end = offset + length;
+            int binSize = FRAMES_PER_BIN[0] * channelCount;
+            while (offset < end) {
+                int count = Math.min(end - offset, binSize - binSamples[0]);
+                int min = binMin[0];
+                int max = binMax[0];
+                long sum = 0;
+                for (int i = offset; i < offset + count; i++) {
+                    int sample = pcm[i];
+                    if (sample < min) {
+                        min = sample;
+                    }
+                    if (sample > max) {
+                        max = sample;
+                    }
+                    sum += sample * sample;
+                }
+                accumulate(min, max, sum, count);
+                offset += count;
+            }
+        }
+
+        /**
+         * 同{@link #process(short[], int, int)}，从pcm的position开始读取，不改变position
+         */
+        public void process(ByteBuffer pcm, int length) {
+            int start = pcm.position();
+            int binSize = FRAMES_PER_BIN[0] * channelCount;
+            int index = 0;
+            while (index < length) {
+                int count = Math.min(length - index, binSize - binSamples[0]);
+                int min = binMin[0];
+                int max = binMax[0];
+                long sum = 0;
+                for (int i = index; i < index + count; i++) {
+                    int sample = pcm.getShort(start + i * 2);
+                    if (sample < min) {
+                        min = sample;
+                    }
+                    if (sample > max) {
+                        max = sample;
+                    }
+                    sum += sample * sample;
+                }
+                accumulate(min, max, sum, count);
+                index += count;
+            }
+        }
+
+        /**
+         * 把最细一级的统计累加到所有级别，某一级满一格时存下来
+         */
+        private void accumulate(int min, int max, long sumSquares, int samples) {
+            totalSamples += samples;
+            for (int level = 0; level < FRAMES_PER_BIN.length; level++) {
+                if (min < binMin[level]) {
+                    binMin[level] = min;
+                }
+                if (max > binMax[level]) {
+                    binMax[level] = max;
+                }
+                binSumSquares[level] += sumSquares;
+                binSamples[level] += samples;
+                if (binSamples[level] >= FRAMES_PER_BIN[level] * channelCount) {
+                    storeBin(level);
+                }
+            }
+        }
+
+        private void storeBin(int level) {
+            int index = binCounts[level];
+            if (index == mins[level].length) {
+                int capacity = index * 2;
+                mins[level] = copyOf(mins[level], capacity);
+                maxs[level] = copyOf(maxs[level], capacity);
+                rmss[level] = copyOf(rmss[level], capacity);
+            }
+            mins[level][index] = (short) binMin[level];
+            maxs[level][index] = (short) binMax[level];
+            rmss[level][index] = (short) Math.min(Short.MAX_VALUE,
+                    Math.sqrt((double) binSumSquares[level] / binSamples[level]));
+            binCounts[level]++;
+            resetBin(level);
+        }
+
+        private void resetBin(int level) {
+            binMin[level] = Short.MAX_VALUE;
+            binMax[level] = Short.MIN_VALUE;
+            binSumSquares[level] = 0;
+            binSamples[level] = 0;
+        }
+
+        private static short[] copyOf(short[] values, int length) {
+            short[] copy = new short[length];
+            System.arraycopy(values, 0, copy, 0, Math.min(values.length, length));
+            return copy;
+        }
+
+        /**
+         * 录音结束时调用，最后不满一格的数据也单独存为一格
+         */
+        public WaveformIndex build() {
+            short[][] levelMins = new short[FRAMES_PER_BIN.length][];
+            short[][] levelMaxs = new short[FRAMES_PER_BIN.length][];
+            short[][] levelRmss = new short[FRAMES_PER_BIN.length][];
+            for (int level = 0; level < FRAMES_PER_BIN.length; level++) {
+                if (binSamples[level] > 0) {
+                    storeBin(level);
+                }
+                levelMins[level] = copyOf(mins[level], binCounts[level]);
+                levelMaxs[level] = copyOf(maxs[level], binCounts[level]);
+                levelRmss[level] = copyOf(rmss[level], binCounts[level]);
+            }
+            return new WaveformIndex(sampleRate, channelCount, totalSamples / channelCount,
+                    FRAMES_PER_BIN.clone(), levelMins, levelMaxs, levelRmss);
+        }
+    }
+}
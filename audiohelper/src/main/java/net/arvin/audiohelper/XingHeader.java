@@ -0,0 +1,283 @@
+package net.arvin.audiohelper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * mp3文件开头的Info/Xing标签帧
+ * <p>
+ * 编码时在第一段输出的最前面预留一帧，并记录之后每一帧的位置；结束时生成帧数、字节数、100项的TOC
+ * 以及LAME扩展中的编码延迟和补齐采样数，回写到文件开头。播放器和{@link AudioProbe}读取标签即可得到
+ * 准确的时长，seek时按TOC直接定位，不需要扫描整个文件。
+ * <p>
+ * 标签帧使用能放下标签的最低码率，与音频帧的码率无关，所以低码率CBR也能写入。
+ */
+public class XingHeader {
+    /**
+     * 标签帧的最大长度，编码输出缓冲需要额外预留这么多字节
+     */
+    public static final int MAX_FRAME_SIZE = 512;
+    public static final int TOC_SIZE = 100;
+
+    private static final int TAG_XING = 0x58696E67;
+    private static final int TAG_INFO = 0x496E666F;
+    private static final int FLAG_ALL = 0xF;
+    /**
+     * "Xing"、flags、帧数、字节数、TOC和quality
+     */
+    private static final int XING_SIZE = 120;
+    private static final int LAME_TAG_SIZE = 36;
+    private static final byte[] LAME_VERSION = {'L', 'A', 'M', 'E', '3', '.', '1', '0', '0'};
+    private static final int VBR_METHOD_UNKNOWN = 0;
+    private static final int VBR_METHOD_CBR = 1;
+
+    private static final int SEEK_TABLE_SIZE = 400;
+
+    private final Mp3FrameHeader header = new Mp3FrameHeader();
+    private final byte[] pendingHeader = new byte[Mp3FrameHeader.HEADER_SIZE];
+    private int pendingSize;
+    private int frameRemaining;
+
+    /**
+     * 预留的标签帧长度，0表示还没有输出，-1表示输出不是mp3帧，不写标签
+     */
+    private int frameSize;
+    private int tagHeader;
+    private int sideInfoSize;
+
+    private long audioBytes;
+    private long frameCount;
+    private int firstBitrate;
+    private boolean vbr;
+
+    /**
+     * 第k项为第k * seekInterval帧相对第一个音频帧的位置，满了以后隔一个保留一个，间隔加倍
+     */
+    private final long[] seekTable = new long[SEEK_TABLE_SIZE];
+    private int seekCount;
+    private int seekInterval = 1;
+
+    public void reset() {
+        pendingSize = 0;
+        frameRemaining = 0;
+        frameSize = 0;
+        audioBytes = 0;
+        frameCount = 0;
+        firstBitrate = 0;
+        vbr = false;
+        seekCount = 0;
+        seekInterval = 1;
+    }
+
+    /**
+     * 处理一段编码输出，第一次调用时把输出后移，在前面插入预留的标签帧
+     *
+     * @param out  编码输出，剩余空间至少还有{@link #MAX_FRAME_SIZE}字节
+     * @param size 编码输出的字节数
+     * @return 插入标签帧后的字节数
+     */
+    public int process(byte[] out, int size) {
+        if (size <= 0) {
+            return size;
+        }
+        int reserved = 0;
+        if (frameSize == 0 && reserve(out[0], out[1], out[2], out[3])) {
+            reserved = frameSize;
+            System.arraycopy(out, 0, out, reserved, size);
+            writeFrame(out, 0, 0, 0, null, 0, 0);
+        }
+        scan(out, null, reserved, reserved + size);
+        return size + reserved;
+    }
+
+    /**
+     * 同{@link #process(byte[], int)}，输出位于out的[start, start + size)，不改变position
+     */
+    public int process(ByteBuffer out, int start, int size) {
+        if (size <= 0) {
+            return size;
+        }
+        int reserved = 0;
+        if (frameSize == 0 && reserve(out.get(start), out.get(start + 1), out.get(start + 2), out.get(start + 3))) {
+            reserved = frameSize;
+            // 只在第一次输出时发生
+            byte[] audio = new byte[size];
+            ByteBuffer source = out.duplicate();
+            source.position(start);
+            source.get(audio);
+            byte[] frame = new byte[reserved];
+            writeFrame(frame, 0, 0, 0, null, 0, 0);
+            ByteBuffer target = out.duplicate();
+            target.position(start);
+            target.put(frame);
+            target.put(audio);
+        }
+        scan(null, out, start + reserved, start + reserved + size);
+        return size + reserved;
+    }
+
+    /**
+     * 根据第一个音频帧选出标签帧的帧头
+     */
+    private boolean reserve(byte b0, byte b1, byte b2, byte b3) {
+        int first = ((b0 & 0xFF) << 24) | ((b1 & 0xFF) << 16) | ((b2 & 0xFF) << 8) | (b3 & 0xFF);
+        if (!header.parse(first)) {
+            frameSize = -1;
+            return false;
+        }
+        sideInfoSize = header.getSideInfoSize();
+        int needed = Mp3FrameHeader.HEADER_SIZE + sideInfoSize + XING_SIZE + LAME_TAG_SIZE;
+        // 去掉CRC和padding，从低到高找能放下标签的码率
+        int base = (first | 0x10000) & ~0xF200;
+        for (int bitrateIndex = 1; bitrateIndex < 15; bitrateIndex++) {
+            int candidate = base | (bitrateIndex << 12);
+            if (header.parse(candidate) && header.frameLength >= needed && header.frameLength <= MAX_FRAME_SIZE) {
+                tagHeader = candidate;
+                frameSize = header.frameLength;
+                return true;
+            }
+        }
+        frameSize = -1;
+        return false;
+    }
+
+    private void scan(byte[] data, ByteBuffer buffer, int offset, int end) {
+        int i = offset;
+        while (i < end) {
+            if (frameRemaining > 0) {
+                int skip = Math.min(frameRemaining, end - i);
+                frameRemaining -= skip;
+                audioBytes += skip;
+                i += skip;
+                continue;
+            }
+            pendingHeader[pendingSize++] = data != null ? data[i] : buffer.get(i);
+            audioBytes++;
+            i++;
+            if (pendingSize < Mp3FrameHeader.HEADER_SIZE) {
+                continue;
+            }
+            int raw = ((pendingHeader[0] & 0xFF) << 24) | ((pendingHeader[1] & 0xFF) << 16)
+                    | ((pendingHeader[2] & 0xFF) << 8) | (pendingHeader[3] & 0xFF);
+            if (header.parse(raw)) {
+                onFrame(audioBytes - Mp3FrameHeader.HEADER_SIZE);
+                frameRemaining = header.frameLength - Mp3FrameHeader.HEADER_SIZE;
+                pendingSize = 0;
+            } else {
+                // 不是帧头，后移一个字节重新同步
+                System.arraycopy(pendingHeader, 1, pendingHeader, 0, Mp3FrameHeader.HEADER_SIZE - 1);
+                pendingSize = Mp3FrameHeader.HEADER_SIZE - 1;
+            }
+        }
+    }
+
+    private void onFrame(long position) {
+        if (frameCount == 0) {
+            firstBitrate = header.bitrate;
+        } else if (header.bitrate != firstBitrate) {
+            vbr = true;
+        }
+        if (frameCount % seekInterval == 0) {
+            if (seekCount == SEEK_TABLE_SIZE) {
+                for (int i = 0; i < SEEK_TABLE_SIZE / 2; i++) {
+                    seekTable[i] = seekTable[i * 2];
+                }
+                seekCount = SEEK_TABLE_SIZE / 2;
+                seekInterval *= 2;
+            }
+            if (frameCount % seekInterval == 0) {
+                seekTable[seekCount++] = position;
+            }
+        }
+        frameCount++;
+    }
+
+    /**
+     * 生成最终的标签帧，用于回写到文件开头
+     *
+     * @param delay   编码器在开头加入的采样数
+     * @param padding 末尾补齐的采样数
+     * @return 标签帧的长度，没有预留标签帧时返回0
+     */
+    public int write(byte[] out, int delay, int padding) {
+        if (frameSize <= 0) {
+            return 0;
+        }
+        long totalBytes = frameSize + audioBytes;
+        writeFrame(out, 0, frameCount, totalBytes, buildToc(totalBytes), delay, padding);
+        return frameSize;
+    }
+
+    private byte[] buildToc(long totalBytes) {
+        byte[] toc = new byte[TOC_SIZE];
+        if (seekCount == 0) {
+            return toc;
+        }
+        for (int i = 1; i < TOC_SIZE; i++) {
+            double index = i * frameCount / (double) TOC_SIZE / seekInterval;
+            int k = (int) index;
+            double position;
+            if (k + 1 < seekCount) {
+                position = seekTable[k] + (index - k) * (seekTable[k + 1] - seekTable[k]);
+            } else {
+                position = seekTable[Math.min(k, seekCount - 1)];
+            }
+            toc[i] = (byte) Math.min(255, (int) ((frameSize + position) * 256 / totalBytes));
+        }
+        return toc;
+    }
+
+    private void writeFrame(byte[] out, int offset, long frames, long bytes, byte[] toc, int delay, int padding) {
+        Arrays.fill(out, offset, offset + frameSize, (byte) 0);
+        putInt(out, offset, tagHeader);
+        int xing = offset + Mp3FrameHeader.HEADER_SIZE + sideInfoSize;
+        // CBR写Info，VBR写Xing，结构相同
+        putInt(out, xing, vbr ? TAG_XING : TAG_INFO);
+        putInt(out, xing + 4, FLAG_ALL);
+        putInt(out, xing + 8, (int) frames);
+        putInt(out, xing + 12, (int) bytes);
+        if (toc != null) {
+            System.arraycopy(toc, 0, out, xing + 16, TOC_SIZE);
+        }
+        int lame = xing + XING_SIZE;
+        System.arraycopy(LAME_VERSION, 0, out, lame, LAME_VERSION.length);
+        out[lame + 9] = (byte) (vbr ? VBR_METHOD_UNKNOWN : VBR_METHOD_CBR);
+        out[lame + 20] = (byte) Math.min(255, firstBitrate);
+        out[lame + 21] = (byte) (delay >> 4);
+        out[lame + 22] = (byte) (((delay & 0xF) << 4) | ((padding >> 8) & 0xF));
+        out[lame + 23] = (byte) padding;
+        putInt(out, lame + 28, (int) bytes);
+        int crc = crc16(out, offset, lame + 34 - offset);
+        out[lame + 34] = (byte) (crc >> 8);
+        out[lame + 35] = (byte) crc;
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    /**
+     * LAME标签使用的CRC-16（多项式0x8005，反射）
+     */
+    private static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public boolean isVbr() {
+        return vbr;
+    }
+}
@@ -0,0 +1,365 @@
+package net.arvin.audiohelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用本机的假源站检查AudioCache对残留临时文件的处理：计入总大小并参与淘汰，续传，
+ * 以及续传位置已经到结尾时源站返回416的情况；另外检查请求与close()交错时不会死锁或一直等待，
+ * 以及代理拒绝不带token或没有登记过的url
+ */
+public class AudioCacheTest {
+
+    private static final int LENGTH = 100 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private AudioCache cache;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[LENGTH];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31 + 7);
+        }
+        server = new StubServer(content);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (cache != null) {
+            cache.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void downloadsAndCaches() throws Exception {
+        cache = new AudioCache(folder.getRoot(), 10 * LENGTH);
+        String url = server.getUrl();
+
+        assertArrayEquals(content, get(cache.getProxyUrl(url)));
+        waitUntilCached(url);
+        assertEquals(LENGTH, cache.getCachedBytes());
+        assertFalse(tempFile(url).exists());
+    }
+
+    @Test
+    public void resumesPartialTempFile() throws Exception {
+        String url = server.getUrl();
+        write(tempFile(url), Arrays.copyOf(content, LENGTH / 2));
+        cache = new AudioCache(folder.getRoot(), 10 * LENGTH);
+        assertEquals("temp file counts toward the cache size", LENGTH / 2, cache.getCachedBytes());
+
+        assertArrayEquals(content, get(cache.getProxyUrl(url)));
+        assertEquals("bytes=" + LENGTH / 2 + "-", server.ranges.get(0));
+        waitUntilCached(url);
+        assertEquals(LENGTH, cache.getCachedBytes());
+    }
+
+    @Test
+    public void completeTempFileIsCommittedOn416() throws Exception {
+        String url = server.getUrl();
+        write(tempFile(url), content);
+        cache = new AudioCache(folder.getRoot(), 10 * LENGTH);
+
+        assertArrayEquals(content, get(cache.getProxyUrl(url)));
+        assertEquals("bytes=" + LENGTH + "-", server.ranges.get(0));
+        waitUntilCached(url);
+        assertFalse(tempFile(url).exists());
+        assertEquals(LENGTH, cache.getCachedBytes());
+    }
+
+    @Test
+    public void oversizedTempFileIsDeletedOn416() throws Exception {
+        String url = server.getUrl();
+        write(tempFile(url), Arrays.copyOf(content, LENGTH + 10));
+        cache = new AudioCache(folder.getRoot(), 10 * LENGTH);
+
+        assertEquals(HttpURLConnection.HTTP_BAD_GATEWAY, getCode(cache.getProxyUrl(url)));
+        waitForDownload(url);
+        assertFalse(tempFile(url).exists());
+        assertFalse(cache.isCached(url));
+
+        // 临时文件已删除，下一次从头下载
+        assertArrayEquals(content, get(cache.getProxyUrl(url)));
+        waitUntilCached(url);
+    }
+
+    @Test
+    public void tempFilesAreEvicted() throws Exception {
+        File stale = new File(folder.getRoot(), "stale.mp3.download");
+        write(stale, new byte[LENGTH]);
+        stale.setLastModified(System.currentTimeMillis() - 60000);
+        File cached = new File(folder.getRoot(), "cached.mp3");
+        write(cached, new byte[LENGTH]);
+
+        cache = new AudioCache(folder.getRoot(), LENGTH + LENGTH / 2);
+
+        assertFalse(stale.exists());
+        assertTrue(cached.exists());
+        assertEquals(LENGTH, cache.getCachedBytes());
+    }
+
+    @Test
+    public void rangePastEndIs416() throws Exception {
+        cache = new AudioCache(folder.getRoot(), 10 * LENGTH);
+        String url = server.getUrl();
+
+        // 还在下载时按源站返回的总长度判断
+        String proxyUrl = cache.getProxyUrl(url);
+        HttpURLConnection connection = openRange(proxyUrl, LENGTH);
+        try {
+            assertEquals(416, connection.getResponseCode());
+            assertEquals("bytes */" + LENGTH, connection.getHeaderField("Content-Range"));
+        } finally {
+            connection.disconnect();
+        }
+        waitUntilCached(url);
+
+        // 已缓存时按文件长度判断，播放器继续使用之前的代理地址
+        connection = openRange(proxyUrl, LENGTH + 100);
+        try {
+            assertEquals(416, connection.getResponseCode());
+            assertEquals("bytes */" + LENGTH, connection.getHeaderField("Content-Range"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void closeWhileRequestsArriveDoesNotStrandEntries() throws Exception {
+        cache = new AudioCache(folder.getRoot(), 10 * LENGTH);
+        final int rounds = 50;
+        for (int i = 0; i < rounds; i++) {
+            final String proxyUrl = cache.getProxyUrl(server.getUrl() + "?n=" + i);
+            Thread request = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getCode(proxyUrl);
+                    } catch (IOException e) {
+                        // 代理关闭时连接被拒绝或断开
+                    }
+                }
+            });
+            request.start();
+            // 错开关闭的时机，让一部分请求在getEntry前后遇到close()
+            LockSupport.parkNanos(i % 10 * 200000L);
+            cache.close();
+            request.join(10000);
+            assertFalse("request hung across close()", request.isAlive());
+        }
+
+        // 重启代理后，与close()交错的url不能一直等待一个不存在的下载
+        for (int i = 0; i < rounds; i++) {
+            String proxyUrl = cache.getProxyUrl(server.getUrl() + "?n=" + i);
+            // 关闭前开始的下载可能已经完成，这时返回的是缓存文件
+            byte[] data = proxyUrl.startsWith("http") ? get(proxyUrl) : Files.readAllBytes(new File(proxyUrl).toPath());
+            assertArrayEquals(content, data);
+        }
+    }
+
+    @Test
+    public void rejectsUnknownTokenAndUnregisteredUrls() throws Exception {
+        cache = new AudioCache(folder.getRoot(), 10 * LENGTH);
+        String url = server.getUrl();
+        String proxyUrl = cache.getProxyUrl(url);
+        URL proxy = new URL(proxyUrl);
+        String base = "http://127.0.0.1:" + proxy.getPort() + "/";
+        String token = proxy.getPath().substring(1, proxy.getPath().indexOf('/', 1));
+
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN, getCode(base + URLEncoder.encode(url, "UTF-8")));
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN,
+                getCode(base + "0123456789abcdef0123456789abcdef/" + URLEncoder.encode(url, "UTF-8")));
+        // token正确但url没有登记过，不能借代理去下载任意地址
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN,
+                getCode(base + token + "/" + URLEncoder.encode(url + "?other", "UTF-8")));
+        assertEquals(0, server.requests.get());
+
+        assertArrayEquals(content, get(proxyUrl));
+    }
+
+    private static HttpURLConnection openRange(String url, long start) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Range", "bytes=" + start + "-");
+        return connection;
+    }
+
+    private File tempFile(String url) {
+        return new File(folder.getRoot(), AudioCache.getCacheName(url) + ".download");
+    }
+
+    /**
+     * 播放器读完数据时下载线程可能还没有把临时文件转为缓存文件
+     */
+    private void waitUntilCached(String url) throws InterruptedException {
+        for (int i = 0; i < 100 && !cache.isCached(url); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(cache.isCached(url));
+    }
+
+    /**
+     * 下载线程在代理回复502之后才删除临时文件
+     */
+    private void waitForDownload(String url) throws InterruptedException {
+        for (int i = 0; i < 100 && tempFile(url).exists(); i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static int getCode(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setReadTimeout(10000);
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+            InputStream input = connection.getInputStream();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 只支持GET和"bytes=start-"形式Range的源站，起始位置超出长度时返回416
+     */
+    private static class StubServer implements Runnable {
+        private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+
+        final List<String> ranges = new CopyOnWriteArrayList<>();
+        final AtomicInteger requests = new AtomicInteger();
+        private final byte[] content;
+        private final ServerSocket serverSocket;
+
+        StubServer(byte[] content) throws IOException {
+            this.content = content;
+            serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "StubServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/audio.mp3";
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        handle(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // 关闭时accept抛出异常
+                }
+            }
+        }
+
+        private void handle(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            if (reader.readLine() == null) {
+                return;
+            }
+            requests.incrementAndGet();
+            String range = null;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring(6).trim();
+                }
+            }
+            OutputStream out = socket.getOutputStream();
+            int start = 0;
+            if (range != null) {
+                ranges.add(range);
+                Matcher matcher = RANGE.matcher(range);
+                start = matcher.matches() ? Integer.parseInt(matcher.group(1)) : 0;
+                if (start >= content.length) {
+                    out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + content.length
+                            + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                    out.flush();
+                    return;
+                }
+            }
+            StringBuilder headers = new StringBuilder();
+            headers.append(range != null ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Type: audio/mpeg\r\n");
+            headers.append("Content-Length: ").append(content.length - start).append("\r\n");
+            if (range != null) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(content.length - 1)
+                        .append('/').append(content.length).append("\r\n");
+            }
+            headers.append("Connection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("UTF-8"));
+            out.write(content, start, content.length - start);
+            out.flush();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
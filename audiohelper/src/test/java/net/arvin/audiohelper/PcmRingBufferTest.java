@@ -0,0 +1,267 @@
+package net.arvin.audiohelper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 生产者连续写入、消费者故意落后，检查每种{@link PcmRingBuffer.OverrunPolicy}下数据不丢失、不乱序、槽位不被写坏
+ * <p>
+ * 溢出文件中的数据读完后文件会被清空。
+ * <p>
+ * 每块数据的前两个采样为序号，其余采样由序号推算，长度也随序号变化，读出后可以逐个校验。
+ */
+public class PcmRingBufferTest {
+
+    private static final int SLOT_COUNT = 8;
+    private static final int SLOT_SIZE = 64;
+    private static final int CHUNKS = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blockLosesNothing() throws Exception {
+        PcmRingBuffer buffer = new PcmRingBuffer(SLOT_COUNT, SLOT_SIZE, PcmRingBuffer.OverrunPolicy.BLOCK, null);
+        Result result = run(buffer, false);
+
+        assertEquals(0, result.rejectedSamples);
+        assertEquals(0, buffer.getDroppedSamples());
+        assertEquals(CHUNKS, result.readChunks);
+        assertEquals(result.writtenSamples, result.readSamples);
+        assertTrue("consumer lag should stall the producer", buffer.getStallCount() > 0);
+    }
+
+    @Test
+    public void blockLosesNothingWithDirectBuffers() throws Exception {
+        PcmRingBuffer buffer = new PcmRingBuffer(SLOT_COUNT, SLOT_SIZE, PcmRingBuffer.OverrunPolicy.BLOCK, null);
+        Result result = run(buffer, true);
+
+        assertEquals(CHUNKS, result.readChunks);
+        assertEquals(result.writtenSamples, result.readSamples);
+    }
+
+    @Test
+    public void dropOldestCountsEveryDroppedSample() throws Exception {
+        PcmRingBuffer buffer = new PcmRingBuffer(SLOT_COUNT, SLOT_SIZE,
+                PcmRingBuffer.OverrunPolicy.DROP_OLDEST, null);
+        Result result = run(buffer, false);
+
+        assertTrue("lagging consumer should cause drops", buffer.getDroppedSamples() > 0);
+        assertEquals(result.writtenSamples,
+                result.readSamples + buffer.getDroppedSamples() + result.rejectedSamples);
+        assertEquals(0, buffer.getStallCount());
+    }
+
+    @Test
+    public void spillLosesNothingAndKeepsOrder() throws Exception {
+        File spillFile = new File(folder.getRoot(), "ring.spill");
+        PcmRingBuffer buffer = new PcmRingBuffer(SLOT_COUNT, SLOT_SIZE,
+                PcmRingBuffer.OverrunPolicy.SPILL, spillFile);
+        Result result = run(buffer, false);
+
+        assertTrue("lagging consumer should spill", buffer.getSpilledSamples() > 0);
+        assertEquals(0, result.rejectedSamples);
+        assertEquals(0, buffer.getDroppedSamples());
+        assertEquals(0, buffer.getStallCount());
+        assertEquals(CHUNKS, result.readChunks);
+        assertEquals(result.writtenSamples, result.readSamples);
+
+        buffer.close();
+        assertFalse(spillFile.exists());
+    }
+
+    @Test
+    public void spillFileIsEmptiedOnceDrained() throws Exception {
+        File spillFile = new File(folder.getRoot(), "rewind.spill");
+        PcmRingBuffer buffer = new PcmRingBuffer(SLOT_COUNT, SLOT_SIZE,
+                PcmRingBuffer.OverrunPolicy.SPILL, spillFile);
+        long recordSize = 4 + SLOT_SIZE * 2;
+        int chunks = SLOT_COUNT * 5;
+        short[] chunk = new short[SLOT_SIZE];
+        int seq = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < chunks; i++, seq++) {
+                assertTrue(buffer.write(chunk, 0, fill(chunk, seq)));
+            }
+            // 每一轮都从文件开头写起，而不是接在上一轮后面
+            assertEquals((chunks - SLOT_COUNT) * recordSize, spillFile.length());
+            for (int i = seq - chunks; i < seq; i++) {
+                assertEquals(i, verify(chunk, buffer.read(chunk, 0)));
+            }
+            assertTrue(buffer.isEmpty());
+            assertEquals(0, spillFile.length());
+        }
+        buffer.close();
+        assertFalse(spillFile.exists());
+    }
+
+    @Test
+    public void closeWhileSpillingStopsProducerCleanly() throws Exception {
+        final File spillFile = new File(folder.getRoot(), "close.spill");
+        final PcmRingBuffer buffer = new PcmRingBuffer(SLOT_COUNT, SLOT_SIZE,
+                PcmRingBuffer.OverrunPolicy.SPILL, spillFile);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long[] rejected = new long[1];
+
+        // 没有消费者，缓冲很快写满，之后每次写入都走溢出文件
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    short[] chunk = new short[SLOT_SIZE];
+                    while (rejected[0] < 1000) {
+                        if (!buffer.write(chunk, 0, SLOT_SIZE)) {
+                            rejected[0]++;
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        producer.start();
+        while (buffer.getSpilledSamples() == 0) {
+            Thread.yield();
+        }
+        buffer.close();
+        producer.join(60000);
+
+        assertFalse(producer.isAlive());
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals("writes after close must be rejected, not dropped", 0, buffer.getDroppedSamples());
+        assertFalse("spill file must not be recreated after close", spillFile.exists());
+    }
+
+    private static class Result {
+        long writtenSamples;
+        long rejectedSamples;
+        long readSamples;
+        int readChunks;
+    }
+
+    /**
+     * 生产者不停写入，消费者每读4块暂停一下；不丢数据的策略要求序号连续，DROP_OLDEST只要求递增
+     */
+    private Result run(final PcmRingBuffer buffer, final boolean direct) throws Exception {
+        final Result result = new Result();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final boolean lossless = buffer.getPolicy() != PcmRingBuffer.OverrunPolicy.DROP_OLDEST;
+        final Object done = new Object();
+        final boolean[] producerDone = new boolean[1];
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] chunk = new short[SLOT_SIZE];
+                ByteBuffer directChunk = ByteBuffer.allocateDirect(SLOT_SIZE * 2).order(ByteOrder.nativeOrder());
+                for (int seq = 0; seq < CHUNKS; seq++) {
+                    int length = fill(chunk, seq);
+                    boolean written;
+                    if (direct) {
+                        directChunk.clear();
+                        directChunk.asShortBuffer().put(chunk, 0, length);
+                        written = buffer.write(directChunk, length);
+                    } else {
+                        written = buffer.write(chunk, 0, length);
+                    }
+                    result.writtenSamples += length;
+                    if (!written) {
+                        result.rejectedSamples += length;
+                    }
+                }
+                synchronized (done) {
+                    producerDone[0] = true;
+                }
+            }
+        });
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    short[] chunk = new short[SLOT_SIZE];
+                    ByteBuffer directChunk = ByteBuffer.allocateDirect(SLOT_SIZE * 2).order(ByteOrder.nativeOrder());
+                    int lastSeq = -1;
+                    while (true) {
+                        int length;
+                        if (direct) {
+                            directChunk.clear();
+                            length = buffer.read(directChunk);
+                            directChunk.flip();
+                            directChunk.asShortBuffer().get(chunk, 0, length);
+                        } else {
+                            length = buffer.read(chunk, 0);
+                        }
+                        if (length == 0) {
+                            boolean finished;
+                            synchronized (done) {
+                                finished = producerDone[0];
+                            }
+                            if (finished && buffer.isEmpty()) {
+                                break;
+                            }
+                            Thread.yield();
+                            continue;
+                        }
+                        int seq = verify(chunk, length);
+                        if (lossless) {
+                            assertEquals("out of order or lost chunk", lastSeq + 1, seq);
+                        } else {
+                            assertTrue("out of order chunk", seq > lastSeq);
+                        }
+                        lastSeq = seq;
+                        result.readSamples += length;
+                        result.readChunks++;
+                        if (result.readChunks % 4 == 0) {
+                            LockSupport.parkNanos(50000);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+
+        producer.start();
+        consumer.start();
+        producer.join(60000);
+        consumer.join(60000);
+        assertFalse(producer.isAlive() || consumer.isAlive());
+        assertNull(String.valueOf(failure.get()), failure.get());
+        return result;
+    }
+
+    private static int fill(short[] chunk, int seq) {
+        int length = 2 + seq % (SLOT_SIZE - 1);
+        chunk[0] = (short) seq;
+        chunk[1] = (short) (seq >>> 16);
+        for (int i = 2; i < length; i++) {
+            chunk[i] = (short) (seq * 7 + i);
+        }
+        return length;
+    }
+
+    /**
+     * @return 这块数据的序号，长度或内容与序号不符时说明槽位被覆盖或读写交错
+     */
+    private static int verify(short[] chunk, int length) {
+        int seq = (chunk[0] & 0xFFFF) | (chunk[1] << 16);
+        assertEquals("torn slot length at seq " + seq, 2 + seq % (SLOT_SIZE - 1), length);
+        for (int i = 2; i < length; i++) {
+            assertEquals("torn slot content at seq " + seq, (short) (seq * 7 + i), chunk[i]);
+        }
+        return seq;
+    }
+}
@@ -0,0 +1,82 @@
+package net.arvin.audiohelper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 打开或写入分段失败时，异常要从之后的write和close抛出，而不是只打印后继续录音
+ */
+public class SegmentedSinkTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    /**
+     * 每次写入的字节数，不对齐帧边界；分段只在块之间切换
+     */
+    private static final int CHUNK = 417;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void splitsByDuration() throws Exception {
+        File recordFile = new File(folder.getRoot(), "record.mp3");
+        SegmentedSink sink = new SegmentedSink(recordFile, StreamingSink.FORMAT_MP3, SAMPLE_RATE, 1,
+                1000, 0, null);
+        // 200帧约5.2秒
+        XingHeaderTest.Frames frames = XingHeaderTest.frames(200, false);
+        for (int offset = 0; offset < frames.data.length; offset += CHUNK) {
+            sink.write(frames.data, offset, Math.min(CHUNK, frames.data.length - offset));
+        }
+        sink.close();
+
+        List<SegmentedSink.Segment> segments = sink.getSegments();
+        assertEquals(5, segments.size());
+        long bytes = 0;
+        for (SegmentedSink.Segment segment : segments) {
+            assertTrue(segment.complete);
+            assertEquals(segment.bytes, segment.file.length());
+            bytes += segment.bytes;
+        }
+        assertEquals(frames.data.length, bytes);
+    }
+
+    @Test
+    public void segmentFailureIsRethrown() throws Exception {
+        File recordFile = new File(folder.getRoot(), "record.mp3");
+        // 第1个分段的位置被目录占住，切换分段时打开失败
+        assertTrue(SegmentedSink.getSegmentFile(recordFile, 1).mkdir());
+        SegmentedSink sink = new SegmentedSink(recordFile, StreamingSink.FORMAT_MP3, SAMPLE_RATE, 1,
+                1000, 0, null);
+        XingHeaderTest.Frames frames = XingHeaderTest.frames(200, false);
+
+        IOException failure = null;
+        for (int offset = 0; offset < frames.data.length && failure == null; offset += CHUNK) {
+            try {
+                sink.write(frames.data, offset, Math.min(CHUNK, frames.data.length - offset));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        assertNotNull("write must report the failed segment", failure);
+        assertEquals(1, sink.getSegments().size());
+
+        try {
+            sink.close();
+            fail("close must report the failed segment");
+        } catch (IOException e) {
+            assertEquals(failure, e);
+        }
+        assertFalse(SegmentedSink.getSegmentFile(recordFile, 2).exists());
+    }
+}
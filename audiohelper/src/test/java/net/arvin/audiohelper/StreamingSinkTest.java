@@ -0,0 +1,226 @@
+package net.arvin.audiohelper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * mp3流式输出不包含占位的标签帧，时间戳和时长只按音频帧计算；ChannelListener在上传线程中写入，
+ * 慢速的channel不会阻塞写入，写入失败时从之后的write和close抛出
+ */
+public class StreamingSinkTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Test
+    public void dropsPlaceholderTagFrame() throws IOException {
+        XingHeaderTest.Frames frames = XingHeaderTest.frames(200, true);
+        Collector collector = new Collector();
+        StreamingSink sink = new StreamingSink(StreamingSink.FORMAT_MP3, SAMPLE_RATE, 1, collector);
+
+        // 和编码线程一样，第一段输出前面插入了占位的标签帧
+        XingHeader xing = new XingHeader();
+        byte[] out = new byte[500 + XingHeader.MAX_FRAME_SIZE];
+        for (int offset = 0; offset < frames.data.length; offset += 500) {
+            int size = Math.min(500, frames.data.length - offset);
+            System.arraycopy(frames.data, offset, out, 0, size);
+            sink.write(out, 0, xing.process(out, size));
+        }
+        sink.close();
+
+        assertArrayEquals(frames.data, collector.data.toByteArray());
+        assertEquals(200L * 1152 * 1000000 / SAMPLE_RATE, collector.durationUs);
+        assertEquals(0, collector.firstTimestampUs);
+        assertEquals(frames.data.length, collector.totalBytes);
+    }
+
+    @Test
+    public void keepsFirstAudioFrameWithoutTag() throws IOException {
+        XingHeaderTest.Frames frames = XingHeaderTest.frames(20, false);
+        Collector collector = new Collector();
+        StreamingSink sink = new StreamingSink(StreamingSink.FORMAT_MP3, SAMPLE_RATE, 1, collector);
+
+        sink.write(frames.data, 0, frames.data.length);
+        sink.close();
+
+        assertArrayEquals(frames.data, collector.data.toByteArray());
+        assertEquals(20L * 1152 * 1000000 / SAMPLE_RATE, collector.durationUs);
+    }
+
+    @Test
+    public void wavStreamStartsWithStreamingHeader() throws IOException {
+        WavEncoder encoder = new WavEncoder();
+        encoder.init(SAMPLE_RATE, 2, 0, 0);
+        short[] pcm = new short[2 * 1000];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (i * 13);
+        }
+        byte[] out = new byte[encoder.getOutputBufferSize(1000)];
+        Collector collector = new Collector();
+        StreamingSink sink = new StreamingSink(StreamingSink.FORMAT_WAV, SAMPLE_RATE, 2, collector);
+        sink.write(out, 0, encoder.encodeInterleaved(pcm, 1000, out));
+        sink.close();
+
+        byte[] data = collector.data.toByteArray();
+        assertEquals(WavEncoder.HEADER_SIZE + pcm.length * 2, data.length);
+        assertEquals("RIFF", new String(data, 0, 4));
+        assertEquals(-1, getIntLE(data, 4));
+        assertEquals("data", new String(data, 36, 4));
+        assertEquals(-1, getIntLE(data, 40));
+        assertEquals(2, data[22]);
+        assertEquals(SAMPLE_RATE, getIntLE(data, 24));
+        assertEquals(1000L * 1000000 / SAMPLE_RATE, collector.durationUs);
+    }
+
+    @Test(timeout = 10000)
+    public void channelFailureIsRethrown() throws Exception {
+        XingHeaderTest.Frames frames = XingHeaderTest.frames(200, false);
+        TestChannel channel = new TestChannel(5000, null);
+        StreamingSink.ChannelListener listener = new StreamingSink.ChannelListener(channel, true);
+        StreamingSink sink = new StreamingSink(StreamingSink.FORMAT_MP3, SAMPLE_RATE, 1, listener);
+
+        for (int offset = 0; offset < frames.data.length; offset += 500) {
+            sink.write(frames.data, offset, Math.min(500, frames.data.length - offset));
+        }
+        // 写入在上传线程中进行，失败在之后的回调中抛出
+        while (listener.getFailure() == null) {
+            Thread.sleep(5);
+        }
+        IOException failure = listener.getFailure();
+        int written = channel.written;
+        try {
+            sink.write(frames.data, 0, frames.data.length);
+            fail("write after a failure must rethrow it");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+        try {
+            sink.close();
+            fail("close must rethrow the failure");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+        while (channel.isOpen()) {
+            Thread.sleep(5);
+        }
+        assertEquals(written, channel.written);
+    }
+
+    @Test(timeout = 10000)
+    public void slowChannelDoesNotBlockTheEncoderThread() throws Exception {
+        XingHeaderTest.Frames frames = XingHeaderTest.frames(200, false);
+        CountDownLatch network = new CountDownLatch(1);
+        TestChannel channel = new TestChannel(Integer.MAX_VALUE, network);
+        StreamingSink.ChannelListener listener = new StreamingSink.ChannelListener(channel, true, 4,
+                StreamingSink.ChannelListener.OverflowPolicy.DROP);
+        StreamingSink sink = new StreamingSink(StreamingSink.FORMAT_MP3, SAMPLE_RATE, 1, listener);
+
+        // channel一直阻塞，写入仍然马上返回，放不下的块被丢掉
+        for (int offset = 0; offset < frames.data.length; offset += 500) {
+            sink.write(frames.data, offset, Math.min(500, frames.data.length - offset));
+        }
+        assertTrue(listener.getDroppedChunks() > 0);
+        network.countDown();
+        sink.close();
+        while (channel.isOpen()) {
+            Thread.sleep(5);
+        }
+        assertTrue(channel.written > 0 && channel.written < frames.data.length);
+        assertNull(listener.getFailure());
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        listener = new StreamingSink.ChannelListener(new TestChannel(Integer.MAX_VALUE, blocked), true, 4,
+                StreamingSink.ChannelListener.OverflowPolicy.FAIL);
+        sink = new StreamingSink(StreamingSink.FORMAT_MP3, SAMPLE_RATE, 1, listener);
+        try {
+            for (int offset = 0; offset < frames.data.length; offset += 500) {
+                sink.write(frames.data, offset, Math.min(500, frames.data.length - offset));
+            }
+            fail("a full upload queue must fail the stream");
+        } catch (IOException e) {
+            assertSame(listener.getFailure(), e);
+        } finally {
+            blocked.countDown();
+        }
+    }
+
+    private static int getIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8)
+                | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+    }
+
+    private static class Collector implements StreamingSink.Listener {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long durationUs;
+        long firstTimestampUs = -1;
+        long totalBytes;
+
+        @Override
+        public void onChunk(byte[] data, int offset, int length, long sequence, long timestampUs, long durationUs) {
+            if (firstTimestampUs < 0) {
+                firstTimestampUs = timestampUs;
+            }
+            this.data.write(data, offset, length);
+            this.durationUs += durationUs;
+        }
+
+        @Override
+        public void onComplete(long chunkCount, long totalBytes) {
+            this.totalBytes = totalBytes;
+        }
+    }
+
+    /**
+     * 写入limit字节后抛出异常，模拟断开的socket；network不为null时每次写入都等它放行，模拟很慢的网络
+     */
+    private static class TestChannel implements WritableByteChannel {
+        private final int limit;
+        private final CountDownLatch network;
+        volatile int written;
+        private volatile boolean open = true;
+
+        TestChannel(int limit, CountDownLatch network) {
+            this.limit = limit;
+            this.network = network;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (network != null) {
+                try {
+                    network.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (written + src.remaining() > limit) {
+                throw new IOException("broken pipe");
+            }
+            int length = src.remaining();
+            src.position(src.limit());
+            written += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.arvin.audiohelper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 区间很长、宽度很小时落在最粗一级，每个像素要合并区间内所有的格，不能只统计开头的16格
+ */
+public class WaveformIndexTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHUNK = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void coarsestLevelCoversWholeRange() {
+        // 最粗一级40格，画成1个像素时峰值在最后一格
+        long frames = 40L * WaveformIndex.FRAMES_PER_BIN[2];
+        WaveformIndex index = build(frames, frames - 100, (short) 20000);
+
+        short[] min = new short[1];
+        short[] max = new short[1];
+        assertEquals(1, index.getPeaks(1, min, max, null));
+        assertEquals(20000, max[0]);
+        assertEquals(-20000, min[0]);
+    }
+
+    @Test
+    public void everyPixelSeesItsOwnPeak() {
+        long frames = 40L * WaveformIndex.FRAMES_PER_BIN[2];
+        WaveformIndex index = build(frames, frames - 100, (short) 20000);
+
+        short[] min = new short[2];
+        short[] max = new short[2];
+        short[] rms = new short[2];
+        assertEquals(2, index.getPeaks(2, min, max, rms));
+        assertEquals(100, max[0]);
+        assertEquals(20000, max[1]);
+        assertEquals(100, rms[0]);
+    }
+
+    @Test
+    public void writeAndReadBack() throws Exception {
+        WaveformIndex index = build(3L * WaveformIndex.FRAMES_PER_BIN[1] + 17, 5000, (short) 12345);
+        File file = folder.newFile("record.mp3" + WaveformIndex.SUFFIX);
+        index.write(file);
+        WaveformIndex read = WaveformIndex.read(file);
+
+        assertEquals(index.getTotalFrames(), read.getTotalFrames());
+        assertEquals(SAMPLE_RATE, read.getSampleRate());
+        short[] expectedMax = new short[64];
+        short[] actualMax = new short[64];
+        short[] expectedMin = new short[64];
+        short[] actualMin = new short[64];
+        assertEquals(index.getPeaks(64, expectedMin, expectedMax, null), read.getPeaks(64, actualMin, actualMax, null));
+        assertArrayEquals(expectedMax, actualMax);
+        assertArrayEquals(expectedMin, actualMin);
+    }
+
+    /**
+     * 单声道±100的方波，在peakFrame处放一对±peak
+     */
+    private static WaveformIndex build(long frames, long peakFrame, short peak) {
+        WaveformIndex.Builder builder = new WaveformIndex.Builder(SAMPLE_RATE, 1);
+        short[] pcm = new short[CHUNK];
+        for (long offset = 0; offset < frames; offset += CHUNK) {
+            int length = (int) Math.min(CHUNK, frames - offset);
+            for (int i = 0; i < length; i++) {
+                long frame = offset + i;
+                if (frame == peakFrame) {
+                    pcm[i] = peak;
+                } else if (frame == peakFrame + 1) {
+                    pcm[i] = (short) -peak;
+                } else {
+                    pcm[i] = (short) ((frame & 1) == 0 ? 100 : -100);
+                }
+            }
+            builder.process(pcm, 0, length);
+        }
+        return builder.build();
+    }
+}
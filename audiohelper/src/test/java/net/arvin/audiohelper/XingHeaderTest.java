@@ -0,0 +1,230 @@
+package net.arvin.audiohelper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用合成的mp3帧驱动{@link XingHeader#process}和{@link XingHeader#write}，再从生成的标签中读回帧数、字节数、TOC和LAME扩展
+ * <p>
+ * 帧的内容不影响标签，只需要合法的帧头；输出按不对齐帧边界的块送入，覆盖帧头跨块的情况。
+ */
+public class XingHeaderTest {
+
+    /**
+     * MPEG1 Layer III，44100Hz单声道，分别为32kbps和64kbps
+     */
+    static final int HEADER_32K = 0xFFFB10C0;
+    static final int HEADER_64K = 0xFFFB50C0;
+
+    private static final int FRAME_COUNT = 1000;
+    private static final int CHUNK_SIZE = 777;
+    private static final int DELAY = 576;
+    private static final int PADDING = 1234;
+
+    private static final int TAG_XING = 0x58696E67;
+    private static final int TAG_INFO = 0x496E666F;
+    private static final int XING_TOC_OFFSET = 16;
+    private static final int LAME_OFFSET = 120;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cbrTagRoundTrip() throws Exception {
+        Frames frames = frames(FRAME_COUNT, false);
+        XingHeader xing = new XingHeader();
+        byte[] file = encode(xing, frames.data);
+        int tagSize = file.length - frames.data.length;
+
+        assertFalse(xing.isVbr());
+        assertEquals(FRAME_COUNT, xing.getFrameCount());
+        assertTag(file, tagSize, frames, TAG_INFO);
+
+        AudioInfo info = AudioProbe.probe(write(file).getPath());
+        assertEquals((FRAME_COUNT * 1152L - DELAY - PADDING) * 1000 / 44100, info.durationMs);
+        assertEquals(tagSize, info.dataOffset);
+        assertFalse(info.vbr);
+        assertTrue(info.hasToc());
+    }
+
+    @Test
+    public void vbrTagRoundTrip() {
+        Frames frames = frames(FRAME_COUNT, true);
+        XingHeader xing = new XingHeader();
+        byte[] file = encode(xing, frames.data);
+
+        assertTrue(xing.isVbr());
+        assertTag(file, file.length - frames.data.length, frames, TAG_XING);
+    }
+
+    @Test
+    public void byteBufferMatchesArray() {
+        Frames frames = frames(FRAME_COUNT, true);
+        byte[] expected = encode(new XingHeader(), frames.data);
+
+        XingHeader xing = new XingHeader();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        ByteBuffer out = ByteBuffer.allocateDirect(CHUNK_SIZE + XingHeader.MAX_FRAME_SIZE + 3);
+        byte[] copy = new byte[out.capacity()];
+        for (int offset = 0; offset < frames.data.length; offset += CHUNK_SIZE) {
+            int size = Math.min(CHUNK_SIZE, frames.data.length - offset);
+            // 从非0的位置开始写，检查start参数
+            out.clear();
+            out.position(3);
+            out.put(frames.data, offset, size);
+            int written = xing.process(out, 3, size);
+            out.position(3);
+            out.get(copy, 0, written);
+            file.write(copy, 0, written);
+        }
+        byte[] actual = file.toByteArray();
+        byte[] tag = new byte[XingHeader.MAX_FRAME_SIZE];
+        int tagSize = xing.write(tag, DELAY, PADDING);
+        System.arraycopy(tag, 0, actual, 0, tagSize);
+
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void nonMp3OutputIsLeftAlone() {
+        XingHeader xing = new XingHeader();
+        byte[] out = new byte[64 + XingHeader.MAX_FRAME_SIZE];
+        Arrays.fill(out, 0, 64, (byte) 0x11);
+
+        assertEquals(64, xing.process(out, 64));
+        assertEquals(0x11, out[0]);
+        assertEquals(0, xing.write(new byte[XingHeader.MAX_FRAME_SIZE], DELAY, PADDING));
+    }
+
+    @Test
+    public void resetStartsANewTag() {
+        XingHeader xing = new XingHeader();
+        encode(xing, frames(FRAME_COUNT, true).data);
+        xing.reset();
+
+        Frames frames = frames(10, false);
+        byte[] file = encode(xing, frames.data);
+        assertTag(file, file.length - frames.data.length, frames, TAG_INFO);
+    }
+
+    private void assertTag(byte[] file, int tagSize, Frames frames, int expectedTag) {
+        Mp3FrameHeader header = new Mp3FrameHeader();
+        assertTrue("tag frame must start with a valid frame header", header.parse(file, 0));
+        assertEquals(tagSize, header.frameLength);
+        assertArrayEquals(frames.data, Arrays.copyOfRange(file, tagSize, file.length));
+
+        int xing = Mp3FrameHeader.HEADER_SIZE + header.getSideInfoSize();
+        assertEquals(expectedTag, getInt(file, xing));
+        assertEquals(0xF, getInt(file, xing + 4));
+        assertEquals(frames.count, getInt(file, xing + 8));
+        assertEquals(file.length, getInt(file, xing + 12));
+
+        // 第i项为第i%处的帧在文件中的位置 * 256 / 文件长度，间隔内按线性插值，允许差1
+        int previous = 0;
+        for (int i = 0; i < XingHeader.TOC_SIZE; i++) {
+            int toc = file[xing + XING_TOC_OFFSET + i] & 0xFF;
+            double frame = i * frames.count / (double) XingHeader.TOC_SIZE;
+            int k = (int) frame;
+            double offset = frames.offsets[k];
+            if (k + 1 < frames.count) {
+                offset += (frame - k) * (frames.offsets[k + 1] - frames.offsets[k]);
+            }
+            double position = i == 0 ? 0 : tagSize + offset;
+            int expected = (int) (position * 256 / file.length);
+            assertTrue("toc[" + i + "] = " + toc + ", expected " + expected, Math.abs(toc - expected) <= 1);
+            assertTrue("toc must not decrease", toc >= previous);
+            previous = toc;
+        }
+
+        int lame = xing + LAME_OFFSET;
+        assertEquals("LAME3.100", new String(file, lame, 9));
+        int delay = ((file[lame + 21] & 0xFF) << 4) | ((file[lame + 22] & 0xFF) >>> 4);
+        int padding = ((file[lame + 22] & 0x0F) << 8) | (file[lame + 23] & 0xFF);
+        assertEquals(DELAY, delay);
+        assertEquals(PADDING, padding);
+        assertEquals(file.length, getInt(file, lame + 28));
+    }
+
+    /**
+     * 按编码线程的方式分块调用process，最后把write生成的标签回写到开头
+     */
+    static byte[] encode(XingHeader xing, byte[] audio) {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        byte[] out = new byte[CHUNK_SIZE + XingHeader.MAX_FRAME_SIZE];
+        for (int offset = 0; offset < audio.length; offset += CHUNK_SIZE) {
+            int size = Math.min(CHUNK_SIZE, audio.length - offset);
+            System.arraycopy(audio, offset, out, 0, size);
+            int written = xing.process(out, size);
+            file.write(out, 0, written);
+        }
+        byte[] data = file.toByteArray();
+        byte[] tag = new byte[XingHeader.MAX_FRAME_SIZE];
+        int tagSize = xing.write(tag, DELAY, PADDING);
+        System.arraycopy(tag, 0, data, 0, tagSize);
+        return data;
+    }
+
+    static class Frames {
+        byte[] data;
+        int count;
+        /**
+         * 每一帧相对第一帧的位置
+         */
+        long[] offsets;
+    }
+
+    /**
+     * @param vbr 为true时每3帧中有1帧为64kbps，否则都是32kbps
+     */
+    static Frames frames(int count, boolean vbr) {
+        Mp3FrameHeader header = new Mp3FrameHeader();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Frames frames = new Frames();
+        frames.count = count;
+        frames.offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            int raw = vbr && i % 3 == 2 ? HEADER_64K : HEADER_32K;
+            header.parse(raw);
+            byte[] frame = new byte[header.frameLength];
+            frame[0] = (byte) (raw >>> 24);
+            frame[1] = (byte) (raw >>> 16);
+            frame[2] = (byte) (raw >>> 8);
+            frame[3] = (byte) raw;
+            for (int j = Mp3FrameHeader.HEADER_SIZE; j < frame.length; j++) {
+                frame[j] = (byte) (i + j);
+            }
+            frames.offsets[i] = data.size();
+            data.write(frame, 0, frame.length);
+        }
+        frames.data = data.toByteArray();
+        return frames;
+    }
+
+    private File write(byte[] data) throws Exception {
+        File file = folder.newFile("tag.mp3");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
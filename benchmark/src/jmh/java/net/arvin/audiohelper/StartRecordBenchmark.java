@@ -0,0 +1,133 @@
+package net.arvin.audiohelper;
+
+import android.os.Handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * startRecord中与线程有关的耗时：从调用到录音循环和编码线程都开始运行
+ * <p>
+ * 放在库的包内，直接调用包内可见的{@link AudioThreads}，HandlerThread等在JVM上用的是src/main/java/android/os中的最小实现。
+ * <ul>
+ * <li>spawnThreads对应最初的写法：每个AudioRecorder一个newCachedThreadPool，每次录音新建一个编码HandlerThread，
+ * 进入录音页面后的第一次录音两个线程都要新建；</li>
+ * <li>firstStartRecord是进入录音页面（AudioRecorder构造时acquire）后的第一次录音，每次调用前都重新acquire；</li>
+ * <li>nextStartRecord是之后的录音，线程已经运行过一次；</li>
+ * <li>acquire是AudioRecorder构造时创建线程的耗时，从startRecord移到了进入页面时。</li>
+ * </ul>
+ * AudioRecord的创建和startRecording在两种写法中相同，不在JVM上测量。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StartRecordBenchmark {
+
+    /**
+     * 每次调用前acquire、调用后release，对应每次进入录音页面
+     */
+    @State(Scope.Thread)
+    public static class FirstRecord {
+        AudioThreads threads;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            threads = AudioThreads.acquire();
+            // 进入页面到按下录音键之间，提前创建的线程已经开始等待任务
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            AudioThreads.release();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class NextRecord {
+        AudioThreads threads;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            threads = AudioThreads.acquire();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            AudioThreads.release();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Release {
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            AudioThreads.release();
+        }
+    }
+
+    @Benchmark
+    public void spawnThreads() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(2);
+        // HandlerThread.getLooper会等到新线程开始运行
+        Thread encodeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+            }
+        }, "AudioEncoder");
+        encodeThread.start();
+        ExecutorService pool = Executors.newCachedThreadPool();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+            }
+        });
+        running.await();
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public void firstStartRecord(FirstRecord state) throws InterruptedException {
+        startRecord(state.threads);
+    }
+
+    @Benchmark
+    public void nextStartRecord(NextRecord state) throws InterruptedException {
+        startRecord(state.threads);
+    }
+
+    @Benchmark
+    public AudioThreads acquire(Release state) {
+        return AudioThreads.acquire();
+    }
+
+    /**
+     * 与AudioRecorder.startRecord相同：AudioEncoder在编码线程的Looper上创建Handler，录音循环交给录音线程
+     */
+    private static void startRecord(AudioThreads threads) throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(2);
+        Runnable countDown = new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+            }
+        };
+        new Handler(threads.getEncodeLooper()).post(countDown);
+        threads.getCaptureExecutor().execute(countDown);
+        running.await();
+    }
+}
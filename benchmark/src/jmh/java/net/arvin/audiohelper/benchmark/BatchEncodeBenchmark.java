@@ -0,0 +1,124 @@
+package net.arvin.audiohelper.benchmark;
+
+import net.arvin.audiohelper.Encoder;
+import net.arvin.audiohelper.FileSink;
+import net.arvin.audiohelper.LameEncoder;
+import net.arvin.audiohelper.WavEncoder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量编码和按周期通知逐块编码的对比，每次调用都编码slots块PCM
+ * <p>
+ * perNotification对应关闭setBatchEncode时的行为：每块一次encodeInterleaved和一次写入；
+ * batched对应开启时的行为：把slots块合并成一次encodeInterleaved和一次写入。
+ * 计数器frames为每秒编码的帧数，cpuNs为每秒消耗的编码线程CPU时间（纳秒），
+ * 两者相除再乘以采样率即为每秒音频消耗的CPU时间。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class BatchEncodeBenchmark {
+
+    private static final int BIT_RATE = 32;
+    private static final int QUALITY = 7;
+
+    @Param({"lame", "wav"})
+    public String format;
+
+    /**
+     * 一次唤醒时队列中排队的块数，AudioRecorder中最多合并8块
+     */
+    @Param({"4", "8"})
+    public int slots;
+
+    private short[] pcm;
+    private short[] slot;
+    private short[] batch;
+    private Encoder encoder;
+    private byte[] out;
+    private File file;
+    private FileSink sink;
+    private ThreadMXBean threadBean;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long frames;
+        public long cpuNs;
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        pcm = Pcm.speechLike(Pcm.CHUNK * slots);
+        slot = new short[Pcm.CHUNK];
+        batch = new short[Pcm.CHUNK * slots];
+        encoder = "lame".equals(format) ? new LameEncoder() : new WavEncoder();
+        out = new byte[encoder.getOutputBufferSize(Pcm.CHUNK * slots)];
+        threadBean = ManagementFactory.getThreadMXBean();
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        encoder.init(Pcm.SAMPLE_RATE, 1, BIT_RATE, QUALITY);
+        file = File.createTempFile("batch", "." + encoder.getFileExtension());
+        sink = new FileSink(file);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        sink.close();
+        encoder.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int perNotification(Counters counters) throws IOException {
+        long cpuStart = threadBean.getCurrentThreadCpuTime();
+        int total = 0;
+        for (int i = 0; i < slots; i++) {
+            // 每块从队列槽位拷贝出来再编码，和encodePcm2Mp3一致
+            System.arraycopy(pcm, i * Pcm.CHUNK, slot, 0, Pcm.CHUNK);
+            int size = encoder.encodeInterleaved(slot, Pcm.CHUNK, out);
+            if (size > 0) {
+                sink.write(out, 0, size);
+                total += size;
+            }
+        }
+        counters.cpuNs += threadBean.getCurrentThreadCpuTime() - cpuStart;
+        counters.frames += Pcm.CHUNK * slots;
+        return total;
+    }
+
+    @Benchmark
+    public int batched(Counters counters) throws IOException {
+        long cpuStart = threadBean.getCurrentThreadCpuTime();
+        // 依次从各槽位拷贝进编码缓冲，和readSlots一致
+        for (int i = 0; i < slots; i++) {
+            System.arraycopy(pcm, i * Pcm.CHUNK, batch, i * Pcm.CHUNK, Pcm.CHUNK);
+        }
+        int size = encoder.encodeInterleaved(batch, Pcm.CHUNK * slots, out);
+        if (size > 0) {
+            sink.write(out, 0, size);
+        }
+        counters.cpuNs += threadBean.getCurrentThreadCpuTime() - cpuStart;
+        counters.frames += Pcm.CHUNK * slots;
+        return size;
+    }
+}
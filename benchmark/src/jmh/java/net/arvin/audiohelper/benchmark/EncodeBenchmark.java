@@ -0,0 +1,106 @@
+package net.arvin.audiohelper.benchmark;
+
+import net.arvin.audiohelper.Encoder;
+import net.arvin.audiohelper.FileSink;
+import net.arvin.audiohelper.LameEncoder;
+import net.arvin.audiohelper.WavEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编码一块PCM并写出的耗时，对应编码线程每次唤醒做的事
+ * <p>
+ * legacy为最初的写法：左右声道传同一个数组，每块一次FileOutputStream.write；
+ * 其余使用{@link FileSink}合并写盘，direct为AudioRecorder.setDirectBuffer(true)时的通路。
+ * lame需要先编译本机的liblame_util，见build.gradle中的buildHostLame。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    private static final int BIT_RATE = 32;
+    private static final int QUALITY = 7;
+
+    @Param({"lame", "wav"})
+    public String format;
+
+    private short[] pcm;
+    private ByteBuffer directPcm;
+    private Encoder encoder;
+    private byte[] out;
+    private ByteBuffer directOut;
+    private File file;
+    private FileSink sink;
+    private FileOutputStream stream;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        pcm = Pcm.speechLike(Pcm.CHUNK);
+        directPcm = Pcm.direct(pcm);
+        encoder = "lame".equals(format) ? new LameEncoder() : new WavEncoder();
+        out = new byte[encoder.getOutputBufferSize(Pcm.CHUNK)];
+        directOut = ByteBuffer.allocateDirect(out.length);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        encoder.init(Pcm.SAMPLE_RATE, 1, BIT_RATE, QUALITY);
+        file = File.createTempFile("encode", "." + encoder.getFileExtension());
+        sink = new FileSink(file);
+        stream = new FileOutputStream(new File(file.getPath() + ".legacy"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        sink.close();
+        stream.close();
+        encoder.close();
+        new File(file.getPath() + ".legacy").delete();
+        file.delete();
+    }
+
+    @Benchmark
+    public int legacyEncodeAndWrite() throws IOException {
+        int size = encoder.encode(pcm, pcm, Pcm.CHUNK, out);
+        if (size > 0) {
+            stream.write(out, 0, size);
+        }
+        return size;
+    }
+
+    @Benchmark
+    public int encodeAndWrite() throws IOException {
+        int size = encoder.encodeInterleaved(pcm, Pcm.CHUNK, out);
+        if (size > 0) {
+            sink.write(out, 0, size);
+        }
+        return size;
+    }
+
+    @Benchmark
+    public int directEncodeAndWrite() throws IOException {
+        directOut.clear();
+        int size = encoder.encode(directPcm, Pcm.CHUNK, directOut);
+        if (size > 0) {
+            directOut.limit(size);
+            sink.write(directOut);
+        }
+        return size;
+    }
+}
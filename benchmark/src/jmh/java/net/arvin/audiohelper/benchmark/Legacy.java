@@ -0,0 +1,68 @@
+package net.arvin.audiohelper.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 最初版本AudioRecorder中的实现，作为对比的基准
+ * <p>
+ * 最初的addTask直接保存了录音线程复用的数组，这里改为拷贝，否则结果不可比也不正确。
+ */
+final class Legacy {
+
+    private Legacy() {
+    }
+
+    /**
+     * 最初的calculateRealVolume
+     */
+    static int calculateRealVolume(short[] buffer, int readSize) {
+        double sum = 0;
+        for (int i = 0; i < readSize; i++) {
+            sum += buffer[i] * buffer[i];
+        }
+        if (readSize > 0) {
+            double amplitude = sum / readSize;
+            return (int) Math.sqrt(amplitude);
+        }
+        return 0;
+    }
+
+    /**
+     * 最初的编码队列：synchronizedList中每块一个RecordTask
+     */
+    static final class TaskQueue {
+        private final List<RecordTask> tasks = Collections.synchronizedList(new ArrayList<RecordTask>());
+
+        void addTask(short[] pcmBuffer, int readSize) {
+            tasks.add(new RecordTask(pcmBuffer.clone(), readSize));
+        }
+
+        /**
+         * @return 取出的采样数，队列为空时返回0
+         */
+        int poll(short[] dst) {
+            if (tasks.size() <= 0) {
+                return 0;
+            }
+            RecordTask task = tasks.remove(0);
+            System.arraycopy(task.pcmBuffer, 0, dst, 0, task.readSize);
+            return task.readSize;
+        }
+
+        int size() {
+            return tasks.size();
+        }
+    }
+
+    static final class RecordTask {
+        final short[] pcmBuffer;
+        final int readSize;
+
+        RecordTask(short[] pcmBuffer, int readSize) {
+            this.pcmBuffer = pcmBuffer;
+            this.readSize = readSize;
+        }
+    }
+}
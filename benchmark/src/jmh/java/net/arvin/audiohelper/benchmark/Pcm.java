@@ -0,0 +1,42 @@
+package net.arvin.audiohelper.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * 合成的测试PCM，和录音时一次read的大小一致
+ */
+final class Pcm {
+    /**
+     * 44100Hz单声道时AudioRecord.getMinBufferSize按160帧对齐后的大小，与AudioRecorder一致
+     */
+    static final int CHUNK = 1920;
+    static final int SAMPLE_RATE = 44100;
+
+    private Pcm() {
+    }
+
+    /**
+     * 几个谐波加噪声，幅度随时间起伏，接近语音的频谱和电平变化
+     */
+    static short[] speechLike(int samples) {
+        Random random = new Random(42);
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * t);
+            double voice = Math.sin(2 * Math.PI * 180 * t) + 0.5 * Math.sin(2 * Math.PI * 360 * t)
+                    + 0.25 * Math.sin(2 * Math.PI * 720 * t);
+            double value = 6000 * envelope * voice + 300 * random.nextGaussian();
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        return pcm;
+    }
+
+    static ByteBuffer direct(short[] pcm) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pcm.length * 2).order(ByteOrder.nativeOrder());
+        buffer.asShortBuffer().put(pcm);
+        return buffer;
+    }
+}
@@ -0,0 +1,65 @@
+package net.arvin.audiohelper.benchmark;
+
+import net.arvin.audiohelper.AudioInfo;
+import net.arvin.audiohelper.AudioProbe;
+import net.arvin.audiohelper.FileSink;
+import net.arvin.audiohelper.LameEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读取一条60秒录音的时长，uncached每次都解析文件头，cached为列表中重复读取的情况
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ProbeBenchmark {
+
+    private static final int SECONDS = 60;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("probe", ".mp3");
+        LameEncoder encoder = new LameEncoder();
+        encoder.init(Pcm.SAMPLE_RATE, 1, 32, 7);
+        short[] pcm = Pcm.speechLike(Pcm.CHUNK);
+        byte[] out = new byte[encoder.getOutputBufferSize(Pcm.CHUNK)];
+        FileSink sink = new FileSink(file);
+        for (long samples = 0; samples < (long) SECONDS * Pcm.SAMPLE_RATE; samples += Pcm.CHUNK) {
+            sink.write(out, 0, encoder.encodeInterleaved(pcm, Pcm.CHUNK, out));
+        }
+        sink.write(out, 0, encoder.flush(out));
+        sink.patch(0, out, 0, encoder.getHeader(out));
+        sink.close();
+        encoder.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public AudioInfo uncached() {
+        AudioProbe.clearCache();
+        return AudioProbe.probe(file.getPath());
+    }
+
+    @Benchmark
+    public AudioInfo cached() {
+        return AudioProbe.probe(file.getPath());
+    }
+}
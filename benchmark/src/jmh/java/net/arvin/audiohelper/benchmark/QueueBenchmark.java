@@ -0,0 +1,130 @@
+package net.arvin.audiohelper.benchmark;
+
+import net.arvin.audiohelper.PcmRingBuffer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 录音线程到编码线程的队列，对应AudioEncoder.addTask和编码时的取数据
+ * <p>
+ * 单线程的写入+读取用来看每块的耗时和分配（加-prof gc看gc.alloc.rate.norm）；
+ * producer/consumer两个线程同时运行，看竞争下的吞吐，以消费者实际取到的块数delivered为准。
+ * 队列满时两边都丢弃数据（ring buffer使用DROP_OLDEST），避免迭代结束时消费者先停下让生产者一直等待。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class QueueBenchmark {
+
+    private static final int SLOT_COUNT = 32;
+
+    @State(Scope.Thread)
+    public static class Chunk {
+        short[] pcm;
+        short[] dst;
+        ByteBuffer directPcm;
+        ByteBuffer directDst;
+
+        @Setup
+        public void setup() {
+            pcm = Pcm.speechLike(Pcm.CHUNK);
+            dst = new short[Pcm.CHUNK];
+            directPcm = Pcm.direct(pcm);
+            directDst = ByteBuffer.allocateDirect(Pcm.CHUNK * 2);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Delivered {
+        public long delivered;
+    }
+
+    @State(Scope.Group)
+    public static class Queues {
+        Legacy.TaskQueue legacy;
+        PcmRingBuffer ring;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            legacy = new Legacy.TaskQueue();
+            ring = new PcmRingBuffer(SLOT_COUNT, Pcm.CHUNK, PcmRingBuffer.OverrunPolicy.DROP_OLDEST, null);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            ring.close();
+        }
+    }
+
+    @Benchmark
+    @Group("legacyRoundTrip")
+    public int legacyRoundTrip(Queues queues, Chunk chunk) {
+        queues.legacy.addTask(chunk.pcm, Pcm.CHUNK);
+        return queues.legacy.poll(chunk.dst);
+    }
+
+    @Benchmark
+    @Group("ringRoundTrip")
+    public int ringRoundTrip(Queues queues, Chunk chunk) {
+        queues.ring.write(chunk.pcm, 0, Pcm.CHUNK);
+        return queues.ring.read(chunk.dst, 0);
+    }
+
+    @Benchmark
+    @Group("ringDirectRoundTrip")
+    public int ringDirectRoundTrip(Queues queues, Chunk chunk) {
+        chunk.directPcm.position(0);
+        queues.ring.write(chunk.directPcm, Pcm.CHUNK);
+        chunk.directDst.clear();
+        return queues.ring.read(chunk.directDst);
+    }
+
+    @Benchmark
+    @Group("legacyContended")
+    @GroupThreads(1)
+    public void legacyProducer(Queues queues, Chunk chunk) {
+        // 最初的队列没有上限，这里按相同的槽位数丢弃，否则消费者跟不上时会耗尽内存
+        if (queues.legacy.size() < SLOT_COUNT) {
+            queues.legacy.addTask(chunk.pcm, Pcm.CHUNK);
+        }
+    }
+
+    @Benchmark
+    @Group("legacyContended")
+    @GroupThreads(1)
+    public void legacyConsumer(Queues queues, Chunk chunk, Delivered delivered) {
+        if (queues.legacy.poll(chunk.dst) > 0) {
+            delivered.delivered++;
+        }
+    }
+
+    @Benchmark
+    @Group("ringContended")
+    @GroupThreads(1)
+    public boolean ringProducer(Queues queues, Chunk chunk) {
+        return queues.ring.write(chunk.pcm, 0, Pcm.CHUNK);
+    }
+
+    @Benchmark
+    @Group("ringContended")
+    @GroupThreads(1)
+    public void ringConsumer(Queues queues, Chunk chunk, Delivered delivered) {
+        if (queues.ring.read(chunk.dst, 0) > 0) {
+            delivered.delivered++;
+        }
+    }
+}
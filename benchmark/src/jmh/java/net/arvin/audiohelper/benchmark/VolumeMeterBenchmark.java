@@ -0,0 +1,55 @@
+package net.arvin.audiohelper.benchmark;
+
+import net.arvin.audiohelper.VolumeMeter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 音量统计每个采样的耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class VolumeMeterBenchmark {
+
+    private short[] pcm;
+    private ByteBuffer directPcm;
+    private VolumeMeter meter;
+
+    @Setup
+    public void setup() {
+        pcm = Pcm.speechLike(Pcm.CHUNK);
+        directPcm = Pcm.direct(pcm);
+        meter = new VolumeMeter(Pcm.SAMPLE_RATE, 1, 30);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Pcm.CHUNK)
+    public int legacyCalculateRealVolume() {
+        return Legacy.calculateRealVolume(pcm, Pcm.CHUNK);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Pcm.CHUNK)
+    public long volumeMeterArray() {
+        meter.process(pcm, 0, Pcm.CHUNK);
+        return meter.getChunkSumSquares();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Pcm.CHUNK)
+    public long volumeMeterDirect() {
+        meter.process(directPcm, Pcm.CHUNK);
+        return meter.getChunkSumSquares();
+    }
+}
@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * 在JVM上运行AudioThreads用的最小实现，只支持post
+ */
+public class Handler {
+
+    private final Looper looper;
+
+    public Handler(Looper looper) {
+        this.looper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        looper.enqueue(r);
+        return true;
+    }
+
+    public final Looper getLooper() {
+        return looper;
+    }
+}
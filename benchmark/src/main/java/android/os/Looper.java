@@ -0,0 +1,59 @@
+package android.os;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 在JVM上运行AudioThreads用的最小实现，只支持post和quit
+ */
+public final class Looper {
+
+    private static final ThreadLocal<Looper> LOOPERS = new ThreadLocal<>();
+    private static final Runnable QUIT = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+
+    private Looper() {
+    }
+
+    public static void prepare() {
+        if (LOOPERS.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        LOOPERS.set(new Looper());
+    }
+
+    public static Looper myLooper() {
+        return LOOPERS.get();
+    }
+
+    public static void loop() {
+        Looper looper = myLooper();
+        if (looper == null) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        while (true) {
+            Runnable task;
+            try {
+                task = looper.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == QUIT) {
+                return;
+            }
+            task.run();
+        }
+    }
+
+    public void quit() {
+        queue.offer(QUIT);
+    }
+
+    void enqueue(Runnable task) {
+        queue.offer(task);
+    }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * 在JVM上运行AudioThreads用的最小实现，JVM上不能设置线程的nice值，setThreadPriority不做任何事
+ */
+public class Process {
+
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+    public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+    public static void setThreadPriority(int priority) {
+    }
+}